@@ -0,0 +1,119 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zalando.testmailserver.logbackext.OneFilePerEventAppender;
+import org.zalando.testmailserver.logbackext.RawContent;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * {@link OneFilePerEventAppender} writing raw content, from one thread and from four threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Messages.LOGBACK_CONFIG)
+public class AppenderBenchmark {
+
+	@Param({"1024", "102400"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean async;
+
+	private Path folder;
+	private OneFilePerEventAppender<ILoggingEvent> appender;
+	private ILoggingEvent event;
+
+	@Setup
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("appender-benchmark");
+		final LoggerContext context = new LoggerContext();
+		final PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern("%msg");
+		layout.start();
+		appender = new OneFilePerEventAppender<>();
+		appender.setContext(context);
+		appender.setName("benchmark");
+		appender.setFolder(folder.toString());
+		appender.setLayout(layout);
+		appender.setAsync(async);
+		appender.start();
+		final byte[] data = Messages.create(size);
+		final RawContent content = out -> out.write(data);
+		final Logger logger = context.getLogger("benchmark");
+		event = new LoggingEvent(Logger.class.getName(), logger, Level.DEBUG, "{}", null, new Object[]{content});
+	}
+
+	@TearDown(org.openjdk.jmh.annotations.Level.Iteration)
+	public void deleteFiles() {
+		Messages.deleteFiles(folder);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		appender.stop();
+		Messages.deleteFiles(folder);
+		Files.delete(folder);
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void append() {
+		appender.doAppend(event);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void appendContended() {
+		appender.doAppend(event);
+	}
+
+}
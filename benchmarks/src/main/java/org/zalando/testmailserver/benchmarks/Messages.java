@@ -0,0 +1,98 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.benchmarks;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.zalando.testmailserver.LoggingMessageListener;
+import org.zalando.testmailserver.TestMessage;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Test data and cleanup shared by the benchmarks.
+ */
+final class Messages {
+
+	/**
+	 * The message folder of benchmark-logback.xml.
+	 */
+	static final Path FOLDER = FileSystems.getDefault().getPath("benchlogs", "msg");
+
+	static final String LOGBACK_CONFIG = "-Dlogback.configurationFile=benchmark-logback.xml";
+
+	/**
+	 * Static utility class.
+	 */
+	private Messages() { }
+
+	/**
+	 * @return a plain text message of about the given size, with lines of 78 characters.
+	 */
+	static byte[] create(final int size) {
+		final StringBuilder sb = new StringBuilder(size + 100);
+		sb.append("From: sender@example.com\r\nTo: recipient@example.com\r\n");
+		sb.append("Subject: Benchmark message\r\nMessage-ID: <benchmark@example.com>\r\n\r\n");
+		int line = 0;
+		while (sb.length() < size) {
+			sb.append(String.format("%08d", line++));
+			for (int i = 8; i < 76; i++) sb.append((char) ('a' + i % 26));
+			sb.append("\r\n");
+		}
+		return sb.toString().getBytes(US_ASCII);
+	}
+
+	/**
+	 * @return a TestMessage as received by the server.
+	 */
+	static TestMessage receive(final byte[] data) throws IOException {
+		final LoggingMessageListener listener = new LoggingMessageListener();
+		final AtomicReference<TestMessage> received = new AtomicReference<>();
+		listener.addConsumer(received::set);
+		listener.deliver("sender@example.com", ImmutableList.of("recipient@example.com"), 
+				new ByteArrayInputStream(data));
+		return received.get();
+	}
+
+	/**
+	 * Deletes the written message files, so that the disk does not fill up.
+	 */
+	static void deleteFiles(final Path folder) {
+		if (!Files.isDirectory(folder)) return;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (final Path file : files) Files.delete(file);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+}
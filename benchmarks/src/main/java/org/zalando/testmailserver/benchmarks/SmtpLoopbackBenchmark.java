@@ -0,0 +1,150 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.benchmarks;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zalando.testmailserver.TestMailServer;
+
+/**
+ * One SMTP transaction over loopback, from MAIL to the reply to the DATA, with a 
+ * {@link TestMailServer} on the subethasmtp front end and on the NIO front end. 
+ * Each benchmark thread keeps its connection open.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = Messages.LOGBACK_CONFIG)
+@Threads(4)
+public class SmtpLoopbackBenchmark {
+
+	@Param({"1024", "102400"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean nio;
+
+	private TestMailServer server;
+	private byte[] data;
+
+	@Setup
+	public void setUp() throws Exception {
+		server = new TestMailServer(0);
+		if (nio) server.useNioFrontEnd(2);
+		server.start();
+		//The client sends the message as it is, so it must not contain a line starting with a dot:
+		data = Messages.create(size);
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteFiles() {
+		Messages.deleteFiles(Messages.FOLDER);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		server.close();
+		Messages.deleteFiles(Messages.FOLDER);
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+
+		private Socket socket;
+		private BufferedReader in;
+		private OutputStream out;
+
+		@Setup
+		public void connect(final SmtpLoopbackBenchmark benchmark) throws IOException {
+			socket = new Socket("localhost", benchmark.server.getPort());
+			socket.setTcpNoDelay(true);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII));
+			out = socket.getOutputStream();
+			expect("220");
+			command("HELO benchmark", "250");
+		}
+
+		/**
+		 * The first thread that finishes closes the server, so the reply to QUIT is not awaited.
+		 */
+		@TearDown
+		public void close() throws IOException {
+			try {
+				out.write("QUIT\r\n".getBytes(US_ASCII));
+				out.flush();
+			} catch (final IOException e) {
+				//Already closed by the server.
+			} finally {
+				socket.close();
+			}
+		}
+
+		private void command(final String command, final String expectedCode) throws IOException {
+			out.write((command + "\r\n").getBytes(US_ASCII));
+			out.flush();
+			expect(expectedCode);
+		}
+
+		private void expect(final String code) throws IOException {
+			String line;
+			do {
+				line = in.readLine();
+				if (line == null || !line.startsWith(code))
+					throw new IOException("Expected " + code + " but got " + line);
+			} while (line.charAt(3) == '-');
+		}
+	}
+
+	@Benchmark
+	public void send(final Client client) throws IOException {
+		client.command("MAIL FROM:<sender@example.com>", "250");
+		client.command("RCPT TO:<recipient@example.com>", "250");
+		client.command("DATA", "354");
+		client.out.write(data);
+		client.command(".", "250");
+	}
+
+}
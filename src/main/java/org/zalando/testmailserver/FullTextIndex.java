@@ -0,0 +1,334 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Inverted index over the Subject and the decoded text parts of received messages.
+ * 
+ * Text is split into tokens at every character that is not a letter or digit, and tokens
+ * are compared case-insensitively. A query matches the messages that contain all of its tokens.
+ * 
+ * Parsing a message is expensive, so {@link #accept(TestMessage)} only queues it and a 
+ * daemon thread with minimum priority indexes it after {@link #start()}. The queue is limited
+ * by the size of the queued messages. If it is full, messages are not indexed and counted as 
+ * dropped. The index holds at most maxSize messages, if there are more, the oldest are removed. 
+ * Messages deleted from the log should be removed with {@link #remove(String)}.
+ */
+@ThreadSafe
+public final class FullTextIndex implements Consumer<TestMessage>, AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FullTextIndex.class);
+
+	public static final int DEFAULT_MAX_SIZE = 100_000;
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
+
+	private static final int MAX_TOKEN_LENGTH = 64;
+
+	private static final Session SESSION = Session.getInstance(new Properties());
+
+	private final int maxSize;
+	private final long maxQueuedBytes;
+	private final BlockingQueue<TestMessage> queue = new LinkedBlockingQueue<>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final Thread indexer;
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean running = false;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	@GuardedBy("lock")
+	private final Map<String, Postings> postings = new HashMap<>();
+	/**
+	 * Message IDs by document number, starting with document {@link #base}. Document numbers 
+	 * are assigned in delivery order, so every posting list is sorted. The ID of a document
+	 * removed by {@link #remove(String)} is null.
+	 */
+	@GuardedBy("lock")
+	private final List<String> ids = new ArrayList<>();
+	@GuardedBy("lock")
+	private final Map<String, Integer> documents = new HashMap<>();
+	@GuardedBy("lock")
+	private int base = 0;
+	/**
+	 * The oldest document that has not been removed. Removed documents are skipped by 
+	 * {@link #search(String, int)} and dropped from the posting lists once there are 
+	 * maxSize of them.
+	 */
+	@GuardedBy("lock")
+	private int first = 0;
+
+	public FullTextIndex() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_QUEUED_BYTES);
+	}
+
+	/**
+	 * @param maxSize the maximum number of indexed messages.
+	 * @param maxQueuedBytes the maximum total size of the messages waiting to be indexed.
+	 */
+	public FullTextIndex(final int maxSize, final long maxQueuedBytes) {
+		if (maxSize < 1) throw new IllegalArgumentException("Invalid maximum size " + maxSize + ".");
+		this.maxSize = maxSize;
+		this.maxQueuedBytes = maxQueuedBytes;
+		indexer = new Thread(this::run, "full-text-index");
+		indexer.setDaemon(true);
+		indexer.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	public void start() {
+		running = true;
+		indexer.start();
+	}
+
+	/**
+	 * Stops the indexer, messages still in the queue are not indexed.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		running = false;
+		indexer.interrupt();
+		indexer.join();
+	}
+
+	@Override
+	public void accept(final TestMessage message) {
+		final long size = message.getSize();
+		if (queuedBytes.addAndGet(size) > maxQueuedBytes) {
+			queuedBytes.addAndGet(-size);
+			dropped.incrementAndGet();
+			return;
+		}
+		queue.add(message);
+	}
+
+	/**
+	 * Removes a message from the index, if it is still there.
+	 */
+	public void remove(final String id) {
+		lock.lock();
+		try {
+			final Integer document = documents.remove(id);
+			//Its postings are dropped with the other old ones:
+			if (document != null) ids.set(document - base, null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of messages that have not been indexed because the queue was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				final TestMessage message = queue.take();
+				queuedBytes.addAndGet(-message.getSize());
+				index(message);
+			} catch (final InterruptedException e) {
+				//Closed.
+			}
+		}
+	}
+
+	/**
+	 * Indexes a message on the calling thread.
+	 */
+	void index(final TestMessage message) {
+		final Set<String> tokens = new LinkedHashSet<>();
+		try {
+			final MimeMessage mime = new MimeMessage(SESSION, new ByteArrayInputStream(message.messageData));
+			final String subject = mime.getSubject();
+			if (subject != null) tokenize(subject, tokens);
+			addText(mime, tokens);
+		} catch (final MessagingException | IOException | RuntimeException e) {
+			LOG.warn("Could not extract the text of message {}: {}", message.getId(), e.toString());
+		}
+		lock.lock();
+		try {
+			final int document = base + ids.size();
+			ids.add(message.getId());
+			documents.put(message.getId(), document);
+			for (final String token : tokens) {
+				postings.computeIfAbsent(token, t -> new Postings()).add(document);
+			}
+			if (document - first >= maxSize) {
+				first++;
+				if (first - base >= maxSize) compact();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the removed documents.
+	 */
+	@GuardedBy("lock")
+	private void compact() {
+		final List<String> removed = ids.subList(0, first - base);
+		for (final String id : removed) {
+			if (id != null) documents.remove(id);
+		}
+		removed.clear();
+		base = first;
+		final Iterator<Postings> lists = postings.values().iterator();
+		while (lists.hasNext()) {
+			final Postings list = lists.next();
+			list.removeBefore(first);
+			if (list.size == 0) lists.remove();
+		}
+	}
+
+	/**
+	 * @return the IDs of at most limit messages that contain all tokens of the query, newest first.
+	 */
+	public List<String> search(final String query, final int limit) {
+		final Set<String> tokens = new LinkedHashSet<>();
+		tokenize(query, tokens);
+		if (tokens.isEmpty()) return new ArrayList<>();
+		lock.lock();
+		try {
+			int[] matches = null;
+			int count = 0;
+			for (final String token : tokens) {
+				final Postings list = postings.get(token);
+				if (list == null) return new ArrayList<>();
+				if (matches == null) {
+					final int from = list.indexOf(first);
+					matches = Arrays.copyOfRange(list.documents, from, list.size);
+					count = matches.length;
+				} else {
+					count = list.retain(matches, count);
+				}
+			}
+			//Document order is delivery order, so the newest matches are at the end:
+			final List<String> result = new ArrayList<>(Math.min(limit, count));
+			for (int i = count - 1; i >= 0 && result.size() < limit; i--) {
+				final @Nullable String id = ids.get(matches[i] - base);
+				if (id != null) result.add(id);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static void addText(final Part part, final Set<String> tokens) throws MessagingException, IOException {
+		if (part.isMimeType("text/*")) {
+			final Object content = part.getContent();
+			if (content instanceof String) tokenize((String) content, tokens);
+		} else if (part.isMimeType("multipart/*")) {
+			final Multipart multipart = (Multipart) part.getContent();
+			for (int i = 0; i < multipart.getCount(); i++) addText(multipart.getBodyPart(i), tokens);
+		} else if (part.isMimeType("message/rfc822")) {
+			addText((Part) part.getContent(), tokens);
+		}
+	}
+
+	static void tokenize(final String text, final Set<String> tokens) {
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			final boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (tokenChar && start < 0) {
+				start = i;
+			} else if (!tokenChar && start >= 0) {
+				if (i - start <= MAX_TOKEN_LENGTH) tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				start = -1;
+			}
+		}
+	}
+
+	/**
+	 * Ascending document numbers of the messages that contain a token.
+	 */
+	private static final class Postings {
+		private int[] documents = new int[4];
+		private int size = 0;
+
+		private void add(final int document) {
+			if (size == documents.length) documents = Arrays.copyOf(documents, size * 2);
+			documents[size++] = document;
+		}
+
+		/**
+		 * @return the position of the first document that is not less than the given one.
+		 */
+		private int indexOf(final int document) {
+			final int i = Arrays.binarySearch(documents, 0, size, document);
+			return i >= 0 ? i : -i - 1;
+		}
+
+		private void removeBefore(final int document) {
+			final int from = indexOf(document);
+			System.arraycopy(documents, from, documents, 0, size - from);
+			size -= from;
+		}
+
+		/**
+		 * Keeps only the first count candidates that are also contained in this list.
+		 * @return the new count.
+		 */
+		private int retain(final int[] candidates, final int count) {
+			int kept = 0;
+			int j = 0;
+			for (int i = 0; i < count; i++) {
+				while (j < size && documents[j] < candidates[i]) j++;
+				if (j < size && documents[j] == candidates[i]) candidates[kept++] = candidates[i];
+			}
+			return kept;
+		}
+	}
+
+}
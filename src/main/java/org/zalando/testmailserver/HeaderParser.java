@@ -0,0 +1,137 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.function.BiConsumer;
+
+import javax.annotation.Nullable;
+import javax.mail.internet.MimeUtility;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Reads the header section of a message (RFC 5322), without reading the body.
+ */
+final class HeaderParser {
+
+	/**
+	 * Headers beyond this size are ignored.
+	 */
+	static final int MAX_HEADER_SIZE = 64 * 1024;
+
+	/**
+	 * Static utility class.
+	 */
+	private HeaderParser() { }
+
+	/**
+	 * Reads lines until the first empty line and returns the unfolded headers. The names
+	 * are converted to lower case. The stream is left positioned at the start of the body.
+	 */
+	static ListMultimap<String, String> parse(final InputStream in) throws IOException {
+		final ListMultimap<String, String> headers = ArrayListMultimap.create();
+		final Unfolder unfolder = new Unfolder(headers::put);
+		int read = 0;
+		String line;
+		while ((line = readLine(in)) != null && !line.isEmpty() && read < MAX_HEADER_SIZE) {
+			read += line.length();
+			unfolder.line(line);
+		}
+		unfolder.end();
+		return headers;
+	}
+
+	/**
+	 * Reads a line terminated by LF or CRLF, without the terminator.
+	 * @return null at the end of the stream.
+	 */
+	static @Nullable String readLine(final InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') line.write(b);
+		if (b == -1 && line.size() == 0) return null;
+		final byte[] bytes = line.toByteArray();
+		final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, UTF_8);
+	}
+
+	/**
+	 * Decodes RFC 2047 encoded words, e.g. in a Subject.
+	 */
+	static String decode(final String value) {
+		try {
+			return MimeUtility.decodeText(value);
+		} catch (final UnsupportedEncodingException e) {
+			return value;
+		}
+	}
+
+	/**
+	 * Joins folded header lines and passes each header to a consumer, with the name in lower case
+	 * and the value trimmed. Lines without a colon are ignored. Shared by this parser and
+	 * {@link MimePart}.
+	 */
+	static final class Unfolder {
+		private final BiConsumer<String, String> consumer;
+		private @Nullable StringBuilder current = null;
+
+		Unfolder(final BiConsumer<String, String> consumer) {
+			this.consumer = consumer;
+		}
+
+		/**
+		 * @param line a non-empty header line without the terminator.
+		 */
+		void line(final String line) {
+			if (line.charAt(0) == ' ' || line.charAt(0) == '\t') {
+				if (current != null) current.append(' ').append(line.trim());
+			} else {
+				end();
+				current = new StringBuilder(line);
+			}
+		}
+
+		/**
+		 * Passes the last header on, called at the end of the header section.
+		 */
+		void end() {
+			final StringBuilder header = current;
+			current = null;
+			if (header == null) return;
+			final int colon = header.indexOf(":");
+			if (colon > 0) {
+				consumer.accept(header.substring(0, colon).trim().toLowerCase(Locale.ROOT), 
+						header.substring(colon + 1).trim());
+			}
+		}
+	}
+
+}
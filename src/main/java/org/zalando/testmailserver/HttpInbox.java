@@ -0,0 +1,544 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.testmailserver.store.DeduplicatingStore;
+import org.zalando.testmailserver.store.SegmentFormat;
+import org.zalando.testmailserver.store.SegmentStoreReader;
+import org.zalando.testmailserver.util.ByteBufferInputStream;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Read-only HTTP access to an {@link InMemoryMessageStore}, using the JDK's built-in HTTP server.
+ * <ul>
+ * <li>{@code GET /messages?after=<cursor>&limit=<n>&from=<sender>&to=<recipient>} lists
+ * the messages as JSON, oldest first. The response contains the cursor for the next request
+ * in the field {@code next}.</li>
+ * <li>{@code GET /messages/<id>} returns the raw message DATA. If a message folder is given, the
+ * DATA is streamed from the file or segment the message has been stored in, otherwise
+ * from the in-memory store.</li>
+ * <li>{@code GET /search?q=<words>&limit=<n>} returns the IDs of the messages containing all words, 
+ * newest first, if a {@link FullTextIndex} is available.</li>
+ * </ul>
+ * Requests are handled by a few threads. If they are all busy and their queue is full, 
+ * the server's dispatcher thread handles the request itself and accepts nothing else meanwhile.
+ */
+final class HttpInbox implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HttpInbox.class);
+
+	private static final String PATH = "/messages";
+	private static final String SEARCH_PATH = "/search";
+	private static final int DEFAULT_LIMIT = 100;
+	private static final int MAX_LIMIT = 1000;
+	private static final int THREADS = 4;
+	private static final int QUEUE_SIZE = 100;
+	/**
+	 * IDs are used as file names, so they must not reach outside of the message folder.
+	 */
+	private static final Pattern VALID_ID = Pattern.compile("[\\w+\\-][\\w.+\\-]*");
+
+	private final InMemoryMessageStore store;
+	private final @Nullable FullTextIndex fullTextIndex;
+	private final @Nullable Path folder;
+	private final @Nullable Segments segments;
+	private final int port;
+	private volatile @Nullable HttpServer server;
+	private volatile @Nullable ExecutorService executor;
+
+	/**
+	 * Does not bind the port yet, see {@link #start()}.
+	 * 
+	 * @param folder the folder the messages are stored in by the MSG appender, or null to
+	 * return the DATA from the in-memory store only.
+	 */
+	HttpInbox(final InMemoryMessageStore store, @Nullable final FullTextIndex fullTextIndex, 
+			@Nullable final Path folder, final int port) {
+		this.store = store;
+		this.fullTextIndex = fullTextIndex;
+		this.folder = folder;
+		segments = folder == null ? null : new Segments(folder);
+		this.port = port;
+	}
+
+	void start() throws IOException {
+		if (server != null) throw new IllegalStateException("HTTP inbox is already started.");
+		final HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.createContext(PATH, this::handle);
+		httpServer.createContext(SEARCH_PATH, this::handle);
+		final AtomicInteger threads = new AtomicInteger();
+		final ExecutorService handlers = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(QUEUE_SIZE), r -> {
+					final Thread thread = new Thread(r, "http-inbox-" + threads.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		httpServer.setExecutor(handlers);
+		httpServer.start();
+		executor = handlers;
+		server = httpServer;
+		LOG.info("HTTP inbox listening on port {}.", getPort());
+	}
+
+	/**
+	 * @throws IllegalStateException if the HTTP inbox has not been started.
+	 */
+	int getPort() {
+		final HttpServer httpServer = server;
+		if (httpServer == null) throw new IllegalStateException("HTTP inbox is not started.");
+		return httpServer.getAddress().getPort();
+	}
+
+	@Override
+	public void close() {
+		final HttpServer httpServer = server;
+		if (httpServer != null) httpServer.stop(0);
+		final ExecutorService handlers = executor;
+		if (handlers != null) handlers.shutdown();
+		//Responses that are still being sent keep their segments until they are done:
+		if (segments != null) segments.close();
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				sendError(exchange, 405, "Method not allowed.");
+				return;
+			}
+			final String path = exchange.getRequestURI().getPath();
+			if (path.equals(PATH) || path.equals(PATH + "/")) {
+				list(exchange);
+			} else if (path.equals(SEARCH_PATH)) {
+				search(exchange);
+			} else if (path.startsWith(PATH + "/")) {
+				//The path has already been decoded by the URI:
+				get(exchange, path.substring(PATH.length() + 1));
+			} else {
+				sendError(exchange, 404, "Not found.");
+			}
+		} catch (final IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+		} catch (final RuntimeException e) {
+			LOG.error("Could not handle request {}.", exchange.getRequestURI(), e);
+			sendError(exchange, 500, "Internal error.");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void list(final HttpExchange exchange) throws IOException {
+		final Map<String, String> parameters = getParameters(exchange.getRequestURI());
+		final long after = parseLong(parameters, "after", 0);
+		final int limit = (int) Math.min(parseLong(parameters, "limit", DEFAULT_LIMIT), MAX_LIMIT);
+		if (after < 0 || limit < 1) 
+			throw new IllegalArgumentException("Parameters after and limit must be positive.");
+		Predicate<TestMessage> filter = m -> true;
+		if (parameters.containsKey("from")) filter = filter.and(MessageFilters.from(parameters.get("from")));
+		if (parameters.containsKey("to")) filter = filter.and(MessageFilters.to(parameters.get("to")));
+
+		final InMemoryMessageStore.Page page = store.getPage(after, filter, limit);
+		final StringBuilder json = new StringBuilder();
+		json.append("{\"next\":").append(page.getNextCursor()).append(",\"messages\":[");
+		boolean first = true;
+		for (final TestMessage message : page.getMessages()) {
+			if (!first) json.append(',');
+			first = false;
+			json.append("{\"id\":");
+			appendString(json, message.getId());
+			json.append(",\"timestamp\":").append(message.getTimestamp());
+			json.append(",\"size\":").append(message.getSize());
+			json.append(",\"sender\":");
+			appendString(json, message.getEnvelopeSender());
+			json.append(",\"recipients\":[");
+			for (int i = 0; i < message.getEnvelopeReceivers().size(); i++) {
+				if (i > 0) json.append(',');
+				appendString(json, message.getEnvelopeReceivers().get(i));
+			}
+			json.append("]}");
+		}
+		json.append("]}");
+		send(exchange, 200, "application/json; charset=utf-8", json.toString().getBytes(UTF_8));
+	}
+
+	private void search(final HttpExchange exchange) throws IOException {
+		if (fullTextIndex == null) {
+			sendError(exchange, 404, "Full text index is not enabled.");
+			return;
+		}
+		final Map<String, String> parameters = getParameters(exchange.getRequestURI());
+		final String query = parameters.get("q");
+		if (query == null) throw new IllegalArgumentException("Parameter q is missing.");
+		final int limit = (int) Math.min(parseLong(parameters, "limit", DEFAULT_LIMIT), MAX_LIMIT);
+		final StringBuilder json = new StringBuilder("{\"ids\":[");
+		boolean first = true;
+		for (final String id : fullTextIndex.search(query, limit)) {
+			if (!first) json.append(',');
+			first = false;
+			appendString(json, id);
+		}
+		json.append("]}");
+		send(exchange, 200, "application/json; charset=utf-8", json.toString().getBytes(UTF_8));
+	}
+
+	private void get(final HttpExchange exchange, final String id) throws IOException {
+		InputStream data = VALID_ID.matcher(id).matches() ? openStored(id) : null;
+		if (data == null) {
+			final Optional<TestMessage> message = store.getMessage(id);
+			//The message is immutable, so its DATA can be read without cloning:
+			if (message.isPresent()) data = new ByteBufferInputStream(message.get().getDataBuffer());
+		}
+		if (data == null) {
+			sendError(exchange, 404, "No message with ID " + id + ".");
+			return;
+		}
+		try (final InputStream in = data) {
+			exchange.getResponseHeaders().set("Content-Type", "message/rfc822");
+			exchange.sendResponseHeaders(200, 0);
+			try (final OutputStream out = exchange.getResponseBody()) {
+				ByteStreams.copy(in, out);
+			}
+		}
+	}
+
+	/**
+	 * Opens the DATA of a message stored by the OneFilePerEventAppender, the DeduplicatingAppender
+	 * or the SegmentStoreAppender, skipping the envelope header written by {@link TestMessage#writeTo}.
+	 * 
+	 * @return null if there is no message folder or the message is not stored in it.
+	 */
+	private @Nullable InputStream openStored(final String id) throws IOException {
+		if (folder == null || segments == null) return null;
+		InputStream in = openStoredFile(folder, id);
+		if (in == null) in = segments.open(id);
+		if (in == null) return null;
+		try {
+			String line;
+			while ((line = HeaderParser.readLine(in)) != null && !line.isEmpty()) {
+				//Envelope header
+			}
+			return in;
+		} catch (final IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private static @Nullable InputStream openStoredFile(final Path folder, final String id) throws IOException {
+		try {
+			return new BufferedInputStream(Files.newInputStream(folder.resolve(id + ".log")));
+		} catch (final NoSuchFileException e) {
+			//Try the next format.
+		}
+		try {
+			return new GZIPInputStream(Files.newInputStream(folder.resolve(id + ".log.gz")));
+		} catch (final NoSuchFileException e) {
+			//Try the next format.
+		}
+		final Path manifest = folder.resolve(id + DeduplicatingStore.MANIFEST_EXTENSION);
+		if (Files.exists(manifest)) {
+			try {
+				return new BufferedInputStream(DeduplicatingStore.openStream(manifest));
+			} catch (final NoSuchFileException e) {
+				//Deleted in the meantime.
+			}
+		}
+		return null;
+	}
+
+	private static void sendError(final HttpExchange exchange, final int status, final String text) throws IOException {
+		send(exchange, status, "text/plain; charset=utf-8", text.getBytes(UTF_8));
+	}
+
+	private static void send(final HttpExchange exchange, final int status, final String contentType, 
+			final byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try (final OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static Map<String, String> getParameters(final URI uri) {
+		final Map<String, String> result = new HashMap<>();
+		final String query = uri.getRawQuery();
+		if (query != null) {
+			for (final String parameter : query.split("&")) {
+				final int i = parameter.indexOf('=');
+				if (i > 0) result.put(decode(parameter.substring(0, i)), decode(parameter.substring(i + 1)));
+			}
+		}
+		return result;
+	}
+
+	private static long parseLong(final Map<String, String> parameters, final String name, final long defaultValue) {
+		final String value = parameters.get(name);
+		if (value == null) return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Parameter " + name + " must be a number.");
+		}
+	}
+
+	private static String decode(final String encoded) {
+		try {
+			return URLDecoder.decode(encoded, UTF_8.name());
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void appendString(final StringBuilder json, final String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			switch (c) {
+			case '"':  json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+				else json.append(c);
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 * The segment store in the message folder. One reader is kept open. It is only reopened 
+	 * when a message is not found and the newest index file has grown since, or new files have
+	 * been created in the folder. As such a folder may be full of other messages, it is listed 
+	 * at most once per {@link #LIST_INTERVAL_NANOS}.
+	 */
+	@ThreadSafe
+	private static final class Segments {
+
+		private static final long LIST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		private final Path folder;
+		private final Object lock = new Object();
+		@GuardedBy("lock")
+		private @Nullable SharedReader reader;
+		/**
+		 * The newest index file and its size when the reader has been opened.
+		 */
+		@GuardedBy("lock")
+		private @Nullable Path lastIndex;
+		@GuardedBy("lock")
+		private long lastIndexSize;
+		@GuardedBy("lock")
+		private @Nullable FileTime folderModified;
+		@GuardedBy("lock")
+		private long listedNanos = System.nanoTime() - LIST_INTERVAL_NANOS;
+		@GuardedBy("lock")
+		private boolean closed = false;
+
+		private Segments(final Path folder) {
+			this.folder = folder;
+		}
+
+		/**
+		 * @return the content of the record, or null if there is none.
+		 */
+		private @Nullable InputStream open(final String id) throws IOException {
+			SharedReader r;
+			synchronized (lock) {
+				r = reader;
+				if (r != null) r.retain();
+			}
+			if (r != null) {
+				final InputStream in = r.open(id);
+				if (in != null) return in;
+			}
+			r = refresh();
+			return r == null ? null : r.open(id);
+		}
+
+		/**
+		 * @return the new reader, retained for the caller, or null if nothing has changed.
+		 */
+		private @Nullable SharedReader refresh() throws IOException {
+			synchronized (lock) {
+				if (closed) return null;
+				Path last = lastIndex;
+				FileTime modified = folderModified;
+				if (last == null || size(last) == lastIndexSize) {
+					final long now = System.nanoTime();
+					if (now - listedNanos < LIST_INTERVAL_NANOS) return null;
+					listedNanos = now;
+					try {
+						modified = Files.getLastModifiedTime(folder);
+					} catch (final NoSuchFileException e) {
+						return null;
+					}
+					if (modified.equals(folderModified)) return null;
+					final Path newest = findLastIndex();
+					if (newest == null || newest.equals(last)) {
+						folderModified = modified;
+						return null;
+					}
+					last = newest;
+				}
+				//The index is mapped at least as large as now:
+				final long size = size(last);
+				final SharedReader opened = new SharedReader(SegmentStoreReader.open(folder));
+				final SharedReader old = reader;
+				reader = opened;
+				lastIndex = last;
+				lastIndexSize = size;
+				folderModified = modified;
+				if (old != null) old.release();
+				opened.retain();
+				return opened;
+			}
+		}
+
+		private @Nullable Path findLastIndex() throws IOException {
+			Path last = null;
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SegmentFormat.INDEX_EXTENSION)) {
+				for (final Path file : files) {
+					if (last == null || file.getFileName().toString().compareTo(last.getFileName().toString()) > 0) 
+						last = file;
+				}
+			}
+			return last;
+		}
+
+		private static long size(final Path file) throws IOException {
+			try {
+				return Files.size(file);
+			} catch (final NoSuchFileException e) {
+				return -1;
+			}
+		}
+
+		private void close() {
+			synchronized (lock) {
+				closed = true;
+				final SharedReader r = reader;
+				reader = null;
+				if (r != null) r.release();
+			}
+		}
+	}
+
+	/**
+	 * A segment reader that is closed when neither the inbox nor a response uses it any more.
+	 */
+	@ThreadSafe
+	private static final class SharedReader {
+
+		private final SegmentStoreReader reader;
+		/**
+		 * The inbox holds one reference until the reader is replaced.
+		 */
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		private SharedReader(final SegmentStoreReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Only called while the inbox holds its reference.
+		 */
+		private void retain() {
+			references.incrementAndGet();
+		}
+
+		private void release() {
+			if (references.decrementAndGet() == 0) reader.close();
+		}
+
+		/**
+		 * Takes over a reference: it is released when the returned stream is closed, 
+		 * or at once if the record is not found.
+		 */
+		private @Nullable InputStream open(final String id) {
+			try {
+				final Optional<SegmentStoreReader.Record> record = reader.find(id);
+				if (!record.isPresent()) {
+					release();
+					return null;
+				}
+				//The content is read from the mapped segment until the response is sent:
+				return new FilterInputStream(record.get().openStream()) {
+					private boolean closed = false;
+
+					@Override
+					public void close() throws IOException {
+						if (closed) return;
+						closed = true;
+						try {
+							super.close();
+						} finally {
+							release();
+						}
+					}
+				};
+			} catch (final RuntimeException e) {
+				release();
+				throw e;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Keeps the most recent messages in memory. If there are more than maxCount messages
+ * or their DATA is larger than maxBytes in total, the oldest messages are removed.
+ * 
+ * Purpose: Allows tests that run the server in-process to check received messages
+ * without reading files. {@link #awaitMessages(Predicate, int, Duration)} allows 
+ * them to wait for messages without polling.
+ */
+@ThreadSafe
+public final class InMemoryMessageStore implements Consumer<TestMessage> {
+
+	private final int maxCount;
+	private final long maxBytes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition added = lock.newCondition();
+	@GuardedBy("lock")
+	private final LinkedHashMap<String, Entry> messages = new LinkedHashMap<>();
+	@GuardedBy("lock")
+	private long bytes = 0;
+	@GuardedBy("lock")
+	private long lastSequence = 0;
+
+	public InMemoryMessageStore(final int maxCount, final long maxBytes) {
+		if (maxCount < 1 || maxBytes < 1)
+			throw new IllegalArgumentException(format(
+					"Maximum count ({}) and bytes ({}) must be positive.", maxCount, maxBytes));
+		this.maxCount = maxCount;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds the message and evicts the oldest messages if the store is full.
+	 */
+	@Override
+	public void accept(final TestMessage message) {
+		lock.lock();
+		try {
+			final Entry previous = messages.remove(message.getId());
+			if (previous != null) bytes -= previous.message.getSize();
+			lastSequence++;
+			messages.put(message.getId(), new Entry(lastSequence, message));
+			bytes += message.getSize();
+			final Iterator<Entry> oldest = messages.values().iterator();
+			while (messages.size() > maxCount || (bytes > maxBytes && messages.size() > 1)) {
+				bytes -= oldest.next().message.getSize();
+				oldest.remove();
+			}
+			added.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return all stored messages, oldest first.
+	 */
+	public List<TestMessage> getMessages() {
+		return getMessages(m -> true);
+	}
+
+	/**
+	 * @return all stored messages matching the filter, oldest first.
+	 * @see MessageFilters
+	 */
+	public List<TestMessage> getMessages(final Predicate<? super TestMessage> filter) {
+		lock.lock();
+		try {
+			final List<TestMessage> result = new ArrayList<>();
+			for (final Entry entry : messages.values()) {
+				if (filter.test(entry.message)) result.add(entry.message);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the store contains at least count messages matching the filter.
+	 * Wakes up whenever a message is added.
+	 * 
+	 * @return all matching messages, oldest first.
+	 * @throws TimeoutException if there are not enough matching messages within the timeout.
+	 */
+	public List<TestMessage> awaitMessages(final Predicate<? super TestMessage> filter, 
+			final int count, final Duration timeout) throws InterruptedException, TimeoutException {
+		long remaining = timeout.toNanos();
+		lock.lock();
+		try {
+			List<TestMessage> result = getMessages(filter);
+			while (result.size() < count) {
+				if (remaining <= 0)
+					throw new TimeoutException(format(
+							"Received {} instead of {} matching messages within {}.", 
+							result.size(), count, timeout));
+				remaining = added.awaitNanos(remaining);
+				result = getMessages(filter);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns up to limit messages matching the filter that have been added after the
+	 * position given by the cursor, oldest first. 
+	 * 
+	 * @param cursor 0 to start with the oldest message or the {@link Page#getNextCursor()} 
+	 * of the previous page.
+	 */
+	public Page getPage(final long cursor, final Predicate<? super TestMessage> filter, final int limit) {
+		lock.lock();
+		try {
+			final List<TestMessage> result = new ArrayList<>();
+			long next = cursor;
+			final Iterator<Entry> entries = messages.values().iterator();
+			while (entries.hasNext() && result.size() < limit) {
+				final Entry entry = entries.next();
+				if (entry.sequence > cursor) {
+					next = entry.sequence;
+					if (filter.test(entry.message)) result.add(entry.message);
+				}
+			}
+			return new Page(result, next);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public Optional<TestMessage> getMessage(final String id) {
+		lock.lock();
+		try {
+			final Entry entry = messages.get(id);
+			return Optional.ofNullable(entry == null ? null : entry.message);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCount() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			messages.clear();
+			bytes = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Result of {@link InMemoryMessageStore#getPage(long, Predicate, int)}.
+	 */
+	@Immutable
+	public static final class Page {
+		private final ImmutableList<TestMessage> messages;
+		private final long nextCursor;
+
+		private Page(final List<TestMessage> messages, final long nextCursor) {
+			this.messages = ImmutableList.copyOf(messages);
+			this.nextCursor = nextCursor;
+		}
+
+		public List<TestMessage> getMessages() {
+			return messages;
+		}
+
+		/**
+		 * The cursor for the next page. Stays the same if there are no newer messages.
+		 */
+		public long getNextCursor() {
+			return nextCursor;
+		}
+	}
+
+	@Immutable
+	private static final class Entry {
+		private final long sequence;
+		private final TestMessage message;
+
+		private Entry(final long sequence, final TestMessage message) {
+			this.sequence = sequence;
+			this.message = message;
+		}
+	}
+
+}
@@ -0,0 +1,406 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nullable;
+
+import org.zalando.testmailserver.metrics.LatencyHistogram;
+import org.zalando.testmailserver.metrics.LatencySnapshot;
+
+/**
+ * Sends messages over several concurrent SMTP connections, as fast as possible or at a 
+ * target rate, and reports the throughput and the latencies of the SMTP phases.
+ * 
+ * With a target rate, each message has a scheduled start time, and the total latency is 
+ * measured from that time. So a server that stalls is not hidden by the generator waiting
+ * for it (coordinated omission).
+ */
+public final class LoadGenerator {
+
+	private static final String USAGE = 
+			"Usage: java -cp testmailserver.jar " + LoadGenerator.class.getName() + " [<option>...]\n"
+			+ "Options:\n"
+			+ "  --host=<host>                 Default: localhost\n"
+			+ "  --port=<port>                 Default: 25\n"
+			+ "  --connections=<n>             Concurrent connections. Default: 10\n"
+			+ "  --messages=<n>                Number of messages to send. Default: 1000\n"
+			+ "  --rate=<n>                    Messages per second over all connections, 0 for as fast\n"
+			+ "                                as possible. Default: 0\n"
+			+ "  --size=<bytes>                Message size. Default: 10240\n"
+			+ "  --recipients=<n>              Recipients per message. Default: 1\n"
+			+ "  --messagesPerConnection=<n>   Reconnect after n messages, 0 for never. Default: 0\n"
+			+ "  --pipelining                  Send MAIL, RCPT and DATA at once (RFC 2920).";
+
+	/**
+	 * The measured phases. With pipelining, MAIL, RCPT and DATA are measured together as ENVELOPE.
+	 */
+	public static enum Phase {
+		CONNECT, HELO, MAIL, RCPT, DATA, ENVELOPE, TRANSFER, TOTAL
+	}
+
+	/**
+	 * Settings of a load test, see {@link LoadGenerator#USAGE}.
+	 */
+	public static final class Options {
+		public String host = "localhost";
+		public int port = 25;
+		public int connections = 10;
+		public long messages = 1000;
+		public double rate = 0;
+		public int size = 10240;
+		public int recipients = 1;
+		public int messagesPerConnection = 0;
+		public boolean pipelining = false;
+
+		static Options parse(final String[] args) {
+			final Options options = new Options();
+			for (final String arg : args) {
+				final int eq = arg.indexOf('=');
+				final String name = eq < 0 ? arg : arg.substring(0, eq);
+				final String value = eq < 0 ? "" : arg.substring(eq + 1);
+				switch (name) {
+				case "--host": options.host = value; break;
+				case "--port": options.port = Integer.parseInt(value); break;
+				case "--connections": options.connections = Integer.parseInt(value); break;
+				case "--messages": options.messages = Long.parseLong(value); break;
+				case "--rate": options.rate = Double.parseDouble(value); break;
+				case "--size": options.size = Integer.parseInt(value); break;
+				case "--recipients": options.recipients = Integer.parseInt(value); break;
+				case "--messagesPerConnection": options.messagesPerConnection = Integer.parseInt(value); break;
+				case "--pipelining": options.pipelining = true; break;
+				default: throw new IllegalArgumentException("Unknown option " + arg + ".");
+				}
+			}
+			if (options.connections < 1) throw new IllegalArgumentException("connections must be positive.");
+			if (options.recipients < 1) throw new IllegalArgumentException("recipients must be positive.");
+			return options;
+		}
+	}
+
+	/**
+	 * Result of a load test.
+	 */
+	public static final class Report {
+		private final long sent;
+		private final long failed;
+		private final long bytes;
+		private final long nanos;
+		private final Map<Phase, LatencySnapshot> latencies;
+		private final @Nullable String lastError;
+
+		private Report(final long sent, final long failed, final long bytes, final long nanos, 
+				final Map<Phase, LatencySnapshot> latencies, @Nullable final String lastError) {
+			this.sent = sent;
+			this.failed = failed;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.latencies = latencies;
+			this.lastError = lastError;
+		}
+
+		public long getSent() {
+			return sent;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+
+		public double getMessagesPerSecond() {
+			return sent * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+		}
+
+		/**
+		 * @return the latencies of the phases that have been measured.
+		 */
+		public Map<Phase, LatencySnapshot> getLatencies() {
+			return latencies;
+		}
+
+		public void print(final PrintStream out) {
+			final double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+			out.println(String.format("Sent %d messages in %.3f s, %d failed.", sent, seconds, failed));
+			if (lastError != null) out.println("Last error: " + lastError);
+			out.println(String.format("Throughput: %.1f messages/s, %.3f MB/s", 
+					getMessagesPerSecond(), bytes / seconds / (1024 * 1024)));
+			out.println(String.format("%-10s %9s %9s %9s %9s %9s %9s", 
+					"Phase [us]", "count", "p50", "p90", "p99", "p99.9", "max"));
+			for (final Map.Entry<Phase, LatencySnapshot> e : latencies.entrySet()) {
+				final LatencySnapshot s = e.getValue();
+				out.println(String.format("%-10s %9d %9d %9d %9d %9d %9d", e.getKey(), s.getCount(), 
+						s.getP50Micros(), s.getP90Micros(), s.getP99Micros(), s.getP999Micros(), s.getMaxMicros()));
+			}
+		}
+	}
+
+	public static void main(final String[] args) throws InterruptedException {
+		final Options options;
+		try {
+			options = Options.parse(args);
+		} catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			return;
+		}
+		new LoadGenerator(options).run(System.out).print(System.out);
+	}
+
+	private final Options options;
+	private final byte[] message;
+	private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+	private final AtomicLong tickets = new AtomicLong();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private volatile @Nullable String lastError;
+	private volatile long startNanos;
+
+	public LoadGenerator(final Options options) {
+		this.options = options;
+		message = createMessage(options.size);
+		for (final Phase phase : Phase.values()) histograms.put(phase, new LatencyHistogram());
+	}
+
+	/**
+	 * Sends the messages and waits until all connections are done.
+	 * 
+	 * @param progress receives a line per second while the test is running.
+	 */
+	public Report run(final PrintStream progress) throws InterruptedException {
+		final List<Thread> threads = new ArrayList<>();
+		startNanos = System.nanoTime();
+		for (int i = 0; i < options.connections; i++) {
+			final Thread thread = new Thread(this::sendMessages, "load-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		long last = 0;
+		for (final Thread thread : threads) {
+			while (thread.isAlive()) {
+				thread.join(TimeUnit.SECONDS.toMillis(1));
+				final long now = sent.sum();
+				if (thread.isAlive()) {
+					progress.println(String.format("%d sent, %d/s, %d failed", now, now - last, failed.sum()));
+					last = now;
+				}
+			}
+		}
+		final long nanos = System.nanoTime() - startNanos;
+		final Map<Phase, LatencySnapshot> latencies = new EnumMap<>(Phase.class);
+		for (final Map.Entry<Phase, LatencyHistogram> e : histograms.entrySet()) {
+			final LatencySnapshot snapshot = e.getValue().getSnapshot();
+			if (snapshot.getCount() > 0) latencies.put(e.getKey(), snapshot);
+		}
+		final long sentCount = sent.sum();
+		return new Report(sentCount, failed.sum(), sentCount * message.length, nanos, latencies, lastError);
+	}
+
+	/**
+	 * Runs in each connection thread. Takes tickets until all messages have been sent.
+	 */
+	private void sendMessages() {
+		Connection connection = null;
+		int onConnection = 0;
+		long ticket;
+		while ((ticket = tickets.getAndIncrement()) < options.messages) {
+			final long scheduled = options.rate > 0 
+					? startNanos + (long) (ticket * TimeUnit.SECONDS.toNanos(1) / options.rate) 
+					: System.nanoTime();
+			long wait;
+			while ((wait = scheduled - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+			try {
+				if (connection == null) {
+					connection = new Connection();
+					onConnection = 0;
+				}
+				connection.send(scheduled);
+				sent.increment();
+				if (options.messagesPerConnection > 0 && ++onConnection >= options.messagesPerConnection) {
+					connection.quit();
+					connection = null;
+				}
+			} catch (final IOException e) {
+				failed.increment();
+				lastError = e.toString();
+				if (connection != null) connection.close();
+				connection = null;
+			}
+		}
+		if (connection != null) {
+			try {
+				connection.quit();
+			} catch (final IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	private void record(final Phase phase, final long start) {
+		histograms.get(phase).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return a text message of about the given size, with lines of 78 characters, none starting with a dot.
+	 */
+	static byte[] createMessage(final int size) {
+		final StringBuilder sb = new StringBuilder(size + 100);
+		sb.append("From: load@example.com\r\nTo: load@example.com\r\nSubject: Load test\r\n\r\n");
+		int line = 0;
+		while (sb.length() < size) {
+			sb.append(String.format("%08d", line++));
+			for (int i = 8; i < 76; i++) sb.append((char) ('a' + i % 26));
+			sb.append("\r\n");
+		}
+		return sb.toString().getBytes(US_ASCII);
+	}
+
+	private final class Connection {
+
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private final boolean pipelining;
+
+		private Connection() throws IOException {
+			long start = System.nanoTime();
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(options.host, options.port));
+				in = new BufferedInputStream(socket.getInputStream());
+				out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+				expect(220);
+				record(Phase.CONNECT, start);
+				start = System.nanoTime();
+				write("EHLO loadgenerator\r\n");
+				final List<String> extensions = expect(250);
+				record(Phase.HELO, start);
+				pipelining = options.pipelining && extensions.contains("PIPELINING");
+			} catch (final IOException e) {
+				socket.close();
+				throw e;
+			}
+		}
+
+		private void send(final long scheduled) throws IOException {
+			final long begin = System.nanoTime();
+			if (pipelining) {
+				final StringBuilder envelope = new StringBuilder("MAIL FROM:<load@example.com>\r\n");
+				for (int i = 0; i < options.recipients; i++) envelope.append("RCPT TO:<rcpt").append(i).append("@example.com>\r\n");
+				write(envelope.append("DATA\r\n").toString());
+				expect(250);
+				for (int i = 0; i < options.recipients; i++) expect(250);
+				expect(354);
+				record(Phase.ENVELOPE, begin);
+			} else {
+				long start = begin;
+				write("MAIL FROM:<load@example.com>\r\n");
+				expect(250);
+				record(Phase.MAIL, start);
+				for (int i = 0; i < options.recipients; i++) {
+					start = System.nanoTime();
+					write("RCPT TO:<rcpt" + i + "@example.com>\r\n");
+					expect(250);
+					record(Phase.RCPT, start);
+				}
+				start = System.nanoTime();
+				write("DATA\r\n");
+				expect(354);
+				record(Phase.DATA, start);
+			}
+			final long start = System.nanoTime();
+			out.write(message);
+			write(".\r\n");
+			expect(250);
+			record(Phase.TRANSFER, start);
+			record(Phase.TOTAL, scheduled);
+		}
+
+		private void quit() throws IOException {
+			try {
+				write("QUIT\r\n");
+				expect(221);
+			} finally {
+				close();
+			}
+		}
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+				//Nothing to do.
+			}
+		}
+
+		private void write(final String command) throws IOException {
+			out.write(command.getBytes(US_ASCII));
+			out.flush();
+		}
+
+		/**
+		 * @return the text of the reply lines, without the code.
+		 */
+		private List<String> expect(final int code) throws IOException {
+			final List<String> lines = new ArrayList<>();
+			String line;
+			do {
+				line = readLine();
+				if (line.length() < 3 || !line.startsWith(Integer.toString(code)))
+					throw new IOException("Expected " + code + " but got " + line);
+				lines.add(line.length() > 4 ? line.substring(4) : "");
+			} while (line.length() > 3 && line.charAt(3) == '-');
+			return lines;
+		}
+
+		private String readLine() throws IOException {
+			final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b == -1) throw new IOException("Connection closed by server.");
+				if (b != '\r') line.write(b);
+			}
+			return new String(line.toByteArray(), US_ASCII);
+		}
+	}
+
+}
@@ -22,25 +22,84 @@
  */
 package org.zalando.testmailserver;
 
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.subethamail.smtp.helper.SimpleMessageListener;
+import org.subethamail.smtp.RejectException;
+import org.zalando.testmailserver.logbackext.AppendRejectedException;
+import org.zalando.testmailserver.logbackext.ContentReadException;
+import org.zalando.testmailserver.logbackext.RawContent;
+import org.zalando.testmailserver.util.UniqueNames;
 
 import com.google.common.io.ByteStreams;
 
 /**
- * This listener accepts all messages and logs them. Only suitable for small messages, because
- * they are kept in memory and not streamed.
+ * This listener accepts all messages and logs them. Messages are logged as {@link RawContent},
+ * so that appenders which support it store the DATA byte for byte as received.
+ * 
+ * In streaming mode, the message DATA is passed to the message log as {@link RawContent}
+ * and copied directly from the SMTP input to the log file, so memory usage does not depend
+ * on the message size. Otherwise messages are kept in memory, which is only suitable 
+ * for small messages. 
+ * 
+ * Consumers receive each message after it has been logged. In streaming mode, the DATA
+ * is copied to memory for them while it is streamed, up to {@link #setMaxConsumedSize(int)};
+ * larger messages are only logged.
  */
-public final class LoggingMessageListener implements SimpleMessageListener
+public final class LoggingMessageListener implements MultiRecipientMessageListener
 {
 	private final static Logger LOG = LoggerFactory.getLogger(LoggingMessageListener.class);
 	
 	public static final String MSG_LOG_NAME = LoggingMessageListener.class.getName()+".msg";
 	private final static Logger MSG_LOG = LoggerFactory.getLogger(MSG_LOG_NAME);
+
+	public static final int DEFAULT_MAX_CONSUMED_SIZE = 16 * 1024 * 1024;
+
+	private final boolean streaming;
+
+	private volatile int maxConsumedSize = DEFAULT_MAX_CONSUMED_SIZE;
+
+	private final List<Consumer<? super TestMessage>> consumers = new CopyOnWriteArrayList<>();
+
+	public LoggingMessageListener()
+	{
+		this(false);
+	}
+
+	public LoggingMessageListener(final boolean streaming)
+	{
+		this.streaming = streaming;
+	}
+	
+	/**
+	 * Adds a consumer that receives every message after it has been logged.
+	 */
+	public void addConsumer(final Consumer<? super TestMessage> consumer)
+	{
+		consumers.add(consumer);
+	}
+
+	/**
+	 * Sets the maximum DATA size of messages passed to the consumers in streaming mode. 
+	 * Default is 16MB.
+	 */
+	public void setMaxConsumedSize(final int maxConsumedSize)
+	{
+		if (maxConsumedSize < 0) throw new IllegalArgumentException("maxConsumedSize must not be negative.");
+		this.maxConsumedSize = maxConsumedSize;
+	}
 	
 	/** Always accept everything */
 	@Override
@@ -53,18 +112,140 @@ public final class LoggingMessageListener implements SimpleMessageListener
 	}
 
 	@Override
-	public void deliver(final String from, final String recipient, final InputStream data) 
+	public void deliver(final String from, final List<String> recipients, final InputStream data) 
 			throws IOException
 	{
 		if (LOG.isDebugEnabled())
-			LOG.debug("Logging mail from " + from + " to " + recipient);
+			LOG.debug("Logging mail from " + from + " to " + recipients);
+
+		final long start = System.nanoTime();
+		final long timestamp = System.currentTimeMillis();
+		final String id = UniqueNames.next(timestamp);
+		try {
+			if (streaming) {
+				if (consumers.isEmpty()) {
+					MSG_LOG.debug("{}", new StreamedMessage(id, timestamp, from, recipients, data));
+					logDuration(id, start);
+					return;
+				}
+				final Capture capture = new Capture(data, maxConsumedSize);
+				MSG_LOG.debug("{}", new StreamedMessage(id, timestamp, from, recipients, capture));
+				logDuration(id, start);
+				//Whatever the appenders have not read:
+				ByteStreams.copy(capture, ByteStreams.nullOutputStream());
+				final byte[] bytes = capture.getBytes();
+				if (bytes == null)
+					LOG.info("Message {} is larger than {} bytes, it is not passed to the consumers.", 
+							id, maxConsumedSize);
+				else
+					notifyConsumers(new TestMessage(id, timestamp, from, recipients, bytes));
+				return;
+			}
+
+			final byte[] bytes = ByteStreams.toByteArray(data);
+
+			LOG.debug("Message data length is {}.", bytes.length);
+
+			final TestMessage msg = new TestMessage(id, timestamp, from, recipients, bytes);
+			MSG_LOG.debug("{}", msg);
+			logDuration(id, start);
+			notifyConsumers(msg);
+		} catch (final ContentReadException e) {
+			//The client has disconnected or sent too much, the appender has discarded the message.
+			LOG.info("Could not read message {} from {}: {}", id, from, e.getCause().toString());
+			throw e.getCause();
+		} catch (final AppendRejectedException e) {
+			LOG.warn("Message from {} has been rejected: {}", from, e.getMessage());
+			//The SMTP session does not consume the rest of the DATA after a rejection.
+			ByteStreams.copy(data, ByteStreams.nullOutputStream());
+			throw new RejectException(451, "Requested action aborted: local error in processing");
+		}
+	}
+
+	private static void logDuration(final String id, final long start)
+	{
+		if (LOG.isDebugEnabled())
+			LOG.debug("Logged message {} in {} us.", id, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+	}
+
+	private void notifyConsumers(final TestMessage msg)
+	{
+		for (final Consumer<? super TestMessage> consumer : consumers) {
+			try {
+				consumer.accept(msg);
+			} catch (final RuntimeException e) {
+				LOG.error(format("Consumer {} failed for message {}.", consumer, msg.getId()), e);
+			}
+		}
+	}
+
+	/**
+	 * Copies the DATA read by the appenders to memory, until it exceeds the maximum size.
+	 */
+	private static final class Capture extends FilterInputStream
+	{
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final int maxSize;
+		private boolean exceeded = false;
+
+		private Capture(final InputStream in, final int maxSize)
+		{
+			super(in);
+			this.maxSize = maxSize;
+		}
+
+		/**
+		 * @return the DATA, null if it has exceeded the maximum size.
+		 */
+		private @Nullable byte[] getBytes()
+		{
+			return exceeded ? null : bytes.toByteArray();
+		}
+
+		/**
+		 * @return whether len more bytes fit.
+		 */
+		private boolean fits(final int len)
+		{
+			if (exceeded) return false;
+			if (len <= maxSize - bytes.size()) return true;
+			exceeded = true;
+			bytes.reset();
+			return false;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int b = in.read();
+			if (b != -1 && fits(1)) bytes.write(b);
+			return b;
+		}
 
-		final byte[] bytes = ByteStreams.toByteArray(data);
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException
+		{
+			final int read = in.read(b, off, len);
+			if (read > 0 && fits(read)) bytes.write(b, off, read);
+			return read;
+		}
 
-		LOG.debug("Message data length is {}.", bytes.length);
+		/**
+		 * Reads the skipped bytes, so that they are captured, too.
+		 */
+		@Override
+		public long skip(final long n) throws IOException
+		{
+			if (n <= 0) return 0;
+			final int read = read(new byte[(int) Math.min(n, 8192)]);
+			return Math.max(read, 0);
+		}
 
-		final TestMessage msg = new TestMessage(from, recipient, bytes);
-		MSG_LOG.debug(msg.toString());
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
 	}
 
 
@@ -0,0 +1,58 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import java.util.function.Predicate;
+
+/**
+ * Filters for {@link TestMessage}s.
+ */
+public final class MessageFilters {
+
+	/**
+	 * Static utility class.
+	 */
+	private MessageFilters() { }
+
+	/**
+	 * Messages with the given envelope sender (case insensitive).
+	 */
+	public static Predicate<TestMessage> from(final String sender) {
+		return m -> sender.equalsIgnoreCase(m.getEnvelopeSender());
+	}
+
+	/**
+	 * Messages that have the given address among their envelope recipients (case insensitive).
+	 */
+	public static Predicate<TestMessage> to(final String recipient) {
+		return m -> m.getEnvelopeReceivers().stream().anyMatch(recipient::equalsIgnoreCase);
+	}
+
+	/**
+	 * Messages received at or after the given time.
+	 */
+	public static Predicate<TestMessage> receivedSince(final long millis) {
+		return m -> m.getTimestamp() >= millis;
+	}
+
+}
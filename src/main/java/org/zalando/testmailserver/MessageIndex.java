@@ -0,0 +1,354 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static org.zalando.testmailserver.store.DeduplicatingStore.MANIFEST_EXTENSION;
+import static org.zalando.testmailserver.store.SegmentFormat.SEGMENT_EXTENSION;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zalando.testmailserver.store.DeduplicatingStore;
+import org.zalando.testmailserver.store.SegmentStoreReader;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Hash indexes from envelope sender, envelope recipients, Message-ID, Subject and an optional 
+ * correlation header to message IDs. Only the header section of each message is read.
+ * 
+ * Lookups return the IDs in the order in which the messages have been indexed.
+ * The IDs can be resolved with {@link InMemoryMessageStore#getMessage(String)} or
+ * found in the message log. Addresses, Message-IDs and subjects are compared case-insensitively.
+ * 
+ * The index holds at most maxSize messages, if there are more, the message indexed first is
+ * removed. Messages deleted from the log should be removed with {@link #remove(String)}.
+ */
+@ThreadSafe
+public final class MessageIndex implements Consumer<TestMessage> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessageIndex.class);
+
+	private static final String ENVELOPE_SENDER = "Envelope sender: ";
+	private static final String ENVELOPE_RECIPIENT = "Envelope recipient: ";
+	private static final String LOG_EXTENSION = ".log";
+	private static final String COMPRESSED_LOG_EXTENSION = ".log.gz";
+	public static final int DEFAULT_MAX_SIZE = 100_000;
+
+	public static enum Key {
+		SENDER, RECIPIENT, MESSAGE_ID, SUBJECT, CORRELATION
+	}
+
+	private final @Nullable String correlationHeader;
+	private final int maxSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * The IDs of each value, oldest first. Removing the oldest ID is cheap, as it is usually
+	 * at the head.
+	 */
+	@GuardedBy("lock")
+	private final Map<Key, Map<String, ArrayDeque<String>>> indexes = new EnumMap<>(Key.class);
+	/**
+	 * The entries of each indexed message, in the order in which the messages have been indexed.
+	 */
+	@GuardedBy("lock")
+	private final LinkedHashMap<String, List<Entry>> indexedIds = new LinkedHashMap<>();
+
+	/**
+	 * Holds at most {@value #DEFAULT_MAX_SIZE} messages.
+	 * 
+	 * @param correlationHeader the name of an additional header that is indexed, e.g. X-Correlation-ID.
+	 */
+	public MessageIndex(@Nullable final String correlationHeader) {
+		this(correlationHeader, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param correlationHeader the name of an additional header that is indexed, e.g. X-Correlation-ID.
+	 * @param maxSize the maximum number of indexed messages.
+	 */
+	public MessageIndex(@Nullable final String correlationHeader, final int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("Invalid maximum size " + maxSize + ".");
+		this.correlationHeader = correlationHeader == null ? null : correlationHeader.toLowerCase(Locale.ROOT);
+		this.maxSize = maxSize;
+		for (final Key key : Key.values()) indexes.put(key, new HashMap<>());
+	}
+
+	@Override
+	public void accept(final TestMessage message) {
+		add(message.getId(), message.getEnvelopeSender(), message.getEnvelopeReceivers(), 
+				message.getMime().getHeaders());
+	}
+
+	/**
+	 * @return the IDs of the messages that have the given value for the key.
+	 */
+	public List<String> find(final Key key, final String value) {
+		lock.lock();
+		try {
+			final ArrayDeque<String> ids = indexes.get(key).get(normalize(key, value));
+			return ids == null ? Collections.emptyList() : ImmutableList.copyOf(ids);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public List<String> findBySender(final String sender) {
+		return find(Key.SENDER, sender);
+	}
+
+	public List<String> findByRecipient(final String recipient) {
+		return find(Key.RECIPIENT, recipient);
+	}
+
+	public Optional<String> findByMessageId(final String messageId) {
+		final List<String> ids = find(Key.MESSAGE_ID, messageId);
+		return ids.isEmpty() ? Optional.empty() : Optional.of(ids.get(ids.size() - 1));
+	}
+
+	public List<String> findBySubject(final String subject) {
+		return find(Key.SUBJECT, subject);
+	}
+
+	public List<String> findByCorrelation(final String value) {
+		return find(Key.CORRELATION, value);
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return indexedIds.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a message, e.g. because it has been deleted from the log.
+	 * 
+	 * @return whether the message was indexed.
+	 */
+	public boolean remove(final String id) {
+		lock.lock();
+		try {
+			final List<Entry> entries = indexedIds.remove(id);
+			if (entries == null) return false;
+			removeEntries(id, entries);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Indexes the messages in a folder written by the 
+	 * {@link org.zalando.testmailserver.logbackext.OneFilePerEventAppender}, the
+	 * {@link org.zalando.testmailserver.logbackext.SegmentStoreAppender} or the
+	 * {@link org.zalando.testmailserver.logbackext.DeduplicatingAppender}. The files are
+	 * read one by one, oldest first, so lookups already work while the rebuild is running. 
+	 * Messages that are already indexed, or deleted while the folder is read, are skipped.
+	 * So are files that cannot be read, they are logged.
+	 */
+	public void rebuild(final Path folder) throws IOException {
+		final long start = System.currentTimeMillis();
+		final int before = size();
+		final List<Path> logged = new ArrayList<>();
+		boolean hasSegments = false;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (final Path file : files) {
+				final String name = file.getFileName().toString();
+				if (name.endsWith(SEGMENT_EXTENSION)) hasSegments = true;
+				else if (getLoggedId(name) != null) logged.add(file);
+			}
+		}
+		//The names start with the time of receipt, so the oldest messages are indexed first:
+		Collections.sort(logged);
+		for (final Path file : logged) addLogged(file);
+		if (hasSegments) {
+			try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+				reader.forEach(record -> {
+					if (!isIndexed(record.getId())) {
+						try (InputStream in = record.openStream()) {
+							addLogged(record.getId(), in);
+						} catch (final IOException e) {
+							LOG.warn("Could not index message {} in {}, skipping it.", record.getId(), folder, e);
+						}
+					}
+				});
+			}
+		}
+		LOG.info("Indexed {} messages from {} in {} ms.", 
+				size() - before, folder, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @return the message ID, or null if the file is not a message.
+	 */
+	private static @Nullable String getLoggedId(final String name) {
+		for (final String extension : new String[]{LOG_EXTENSION, COMPRESSED_LOG_EXTENSION, MANIFEST_EXTENSION}) {
+			if (name.endsWith(extension)) return name.substring(0, name.length() - extension.length());
+		}
+		return null;
+	}
+
+	private void addLogged(final Path file) {
+		final String name = file.getFileName().toString();
+		final String id = getLoggedId(name);
+		if (id == null || isIndexed(id)) return;
+		try (InputStream in = openLogged(file, name)) {
+			addLogged(id, in);
+		} catch (final NoSuchFileException e) {
+			//Deleted in the meantime.
+		} catch (final IOException e) {
+			LOG.warn("Could not index {}, skipping it.", file, e);
+		}
+	}
+
+	private static InputStream openLogged(final Path file, final String name) throws IOException {
+		if (name.endsWith(MANIFEST_EXTENSION)) return DeduplicatingStore.openStream(file);
+		final InputStream in = Files.newInputStream(file);
+		try {
+			return name.endsWith(COMPRESSED_LOG_EXTENSION) ? new GZIPInputStream(in) : new BufferedInputStream(in);
+		} catch (final IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private boolean isIndexed(final String id) {
+		lock.lock();
+		try {
+			return indexedIds.containsKey(id);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the envelope header written in front of the DATA by {@link TestMessage#writeTo}.
+	 */
+	private void addLogged(final String id, final InputStream in) throws IOException {
+		String sender = "";
+		final List<String> recipients = new ArrayList<>();
+		String line;
+		while ((line = HeaderParser.readLine(in)) != null && !line.isEmpty()) {
+			if (line.startsWith(ENVELOPE_SENDER)) sender = line.substring(ENVELOPE_SENDER.length());
+			else if (line.startsWith(ENVELOPE_RECIPIENT)) recipients.add(line.substring(ENVELOPE_RECIPIENT.length()));
+		}
+		add(id, sender, recipients, HeaderParser.parse(in));
+	}
+
+	private void add(final String id, final String sender, final List<String> recipients, 
+			final ListMultimap<String, String> headers) {
+		lock.lock();
+		try {
+			if (indexedIds.containsKey(id)) return;
+			final List<Entry> entries = new ArrayList<>();
+			put(Key.SENDER, sender, id, entries);
+			for (final String recipient : recipients) put(Key.RECIPIENT, recipient, id, entries);
+			for (final String messageId : headers.get("message-id")) put(Key.MESSAGE_ID, messageId, id, entries);
+			for (final String subject : headers.get("subject")) {
+				put(Key.SUBJECT, HeaderParser.decode(subject), id, entries);
+			}
+			if (correlationHeader != null) {
+				for (final String value : headers.get(correlationHeader)) put(Key.CORRELATION, value, id, entries);
+			}
+			indexedIds.put(id, entries);
+			if (indexedIds.size() > maxSize) {
+				final Iterator<Map.Entry<String, List<Entry>>> oldest = indexedIds.entrySet().iterator();
+				final Map.Entry<String, List<Entry>> removed = oldest.next();
+				oldest.remove();
+				removeEntries(removed.getKey(), removed.getValue());
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@GuardedBy("lock")
+	private void put(final Key key, final String value, final String id, final List<Entry> entries) {
+		final String normalized = normalize(key, value);
+		indexes.get(key).computeIfAbsent(normalized, k -> new ArrayDeque<>(2)).addLast(id);
+		entries.add(new Entry(key, normalized));
+	}
+
+	@GuardedBy("lock")
+	private void removeEntries(final String id, final List<Entry> entries) {
+		for (final Entry entry : entries) {
+			final Map<String, ArrayDeque<String>> index = indexes.get(entry.key);
+			final ArrayDeque<String> ids = index.get(entry.value);
+			if (ids == null) continue;
+			ids.removeFirstOccurrence(id);
+			if (ids.isEmpty()) index.remove(entry.value);
+		}
+	}
+
+	private static String normalize(final Key key, final String value) {
+		String result = value.trim();
+		if (key == Key.MESSAGE_ID && result.startsWith("<") && result.endsWith(">")) {
+			result = result.substring(1, result.length() - 1);
+		}
+		return key == Key.CORRELATION ? result : result.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * A normalized value under which a message has been indexed.
+	 */
+	private static final class Entry {
+		private final Key key;
+		private final String value;
+
+		private Entry(final Key key, final String value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+}
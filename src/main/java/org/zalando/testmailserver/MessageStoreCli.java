@@ -0,0 +1,127 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+import org.zalando.testmailserver.store.SegmentStoreReader;
+import org.zalando.testmailserver.store.SegmentStoreReader.Record;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Command line access to a message folder written by the 
+ * {@link org.zalando.testmailserver.logbackext.SegmentStoreAppender}.
+ */
+public final class MessageStoreCli {
+
+	private static final String USAGE = 
+			"Usage: java -cp testmailserver.jar " + MessageStoreCli.class.getName() + " <folder> <command>\n"
+			+ "Commands:\n"
+			+ "  count                 Print the number of messages.\n"
+			+ "  list [<from> [<to>]]  Print ID, time and stored size of the messages (received from <from>\n"
+			+ "                        inclusive to <to> exclusive, ISO-8601, e.g. 2015-06-01T12:00:00Z).\n"
+			+ "  cat <id>              Print the message with the given ID.";
+
+	/**
+	 * Static utility class.
+	 */
+	private MessageStoreCli() { }
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 2) {
+			usage();
+			return;
+		}
+		final Path folder = FileSystems.getDefault().getPath(args[0]);
+		try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+			switch (args[1]) {
+			case "count":
+				System.out.println(reader.count());
+				break;
+			case "list":
+				list(reader, 
+						args.length > 2 ? Instant.parse(args[2]).toEpochMilli() : Long.MIN_VALUE, 
+						args.length > 3 ? Instant.parse(args[3]).toEpochMilli() : Long.MAX_VALUE);
+				break;
+			case "cat":
+				if (args.length < 3) {
+					usage();
+					return;
+				}
+				cat(reader, args[2]);
+				break;
+			default:
+				usage();
+			}
+		}
+	}
+
+	private static void usage() {
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+
+	private static void list(final SegmentStoreReader reader, final long from, final long to) 
+			throws IOException {
+		final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF_8));
+		for (final Record record : reader.findByTime(from, to)) {
+			out.append(record.getId()).append('\t')
+				.append(Instant.ofEpochMilli(record.getTimestamp()).toString()).append('\t')
+				.append(Long.toString(record.getContentLength())).append('\n');
+		}
+		out.flush();
+	}
+
+	private static void cat(final SegmentStoreReader reader, final String id) throws IOException {
+		final Optional<Record> record = reader.find(id);
+		if (!record.isPresent()) {
+			System.err.println("No message with ID " + id + ".");
+			System.exit(1);
+		}
+		if (record.get().isCompressed()) {
+			try (InputStream in = record.get().openStream()) {
+				ByteStreams.copy(in, System.out);
+			}
+		} else {
+			final ByteBuffer content = record.get().getContent();
+			final WritableByteChannel out = Channels.newChannel(System.out);
+			while (content.hasRemaining()) out.write(content);
+		}
+		System.out.flush();
+	}
+
+}
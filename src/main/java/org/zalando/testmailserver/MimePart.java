@@ -0,0 +1,255 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.ParseException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * A MIME entity within the DATA of a {@link TestMessage}. 
+ * 
+ * The headers are parsed when first accessed, the parts of a multipart entity when 
+ * {@link #getParts()} is first called. Bodies are returned as read-only views of the 
+ * original message bytes, nothing is copied or decoded.
+ */
+@ThreadSafe
+public final class MimePart {
+
+	private static final String DEFAULT_CONTENT_TYPE = "text/plain";
+
+	private final byte[] data;
+	private final int start;
+	private final int end;
+
+	private volatile @Nullable Parsed parsed;
+	private volatile @Nullable List<MimePart> parts;
+
+	MimePart(final byte[] data, final int start, final int end) {
+		this.data = data;
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return the first value of the header with the given name (case insensitive), unfolded.
+	 */
+	public Optional<String> getHeader(final String name) {
+		final List<String> values = getHeaders(name);
+		return values.isEmpty() ? Optional.empty() : Optional.of(values.get(0));
+	}
+
+	/**
+	 * @return all values of the header with the given name (case insensitive), unfolded.
+	 */
+	public List<String> getHeaders(final String name) {
+		return parsed().headers.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return all headers, names in lower case.
+	 */
+	public ListMultimap<String, String> getHeaders() {
+		return parsed().headers;
+	}
+
+	/**
+	 * @return the MIME type without parameters, in lower case, e.g. "text/plain".
+	 */
+	public String getMimeType() {
+		final Optional<ContentType> contentType = getContentType();
+		return contentType.isPresent() ? contentType.get().getBaseType().toLowerCase(Locale.ROOT) : DEFAULT_CONTENT_TYPE;
+	}
+
+	/**
+	 * @return the header section including the terminating empty line.
+	 */
+	public ByteBuffer getHeaderSection() {
+		return slice(start, parsed().bodyStart);
+	}
+
+	/**
+	 * @return the body, still transfer-encoded.
+	 */
+	public ByteBuffer getBody() {
+		return slice(parsed().bodyStart, end);
+	}
+
+	/**
+	 * @return the whole entity, headers and body.
+	 */
+	public ByteBuffer getRaw() {
+		return slice(start, end);
+	}
+
+	/**
+	 * @return the parts of a multipart entity, or an empty list for other types.
+	 */
+	public List<MimePart> getParts() {
+		List<MimePart> result = parts;
+		if (result == null) {
+			result = parseParts();
+			parts = result;
+		}
+		return result;
+	}
+
+	/**
+	 * @return the position of the body in the message DATA.
+	 */
+	int getBodyStart() {
+		return parsed().bodyStart;
+	}
+
+	/**
+	 * @return the position after the last byte of the entity in the message DATA.
+	 */
+	int getEnd() {
+		return end;
+	}
+
+	private Optional<ContentType> getContentType() {
+		final Optional<String> value = getHeader("content-type");
+		if (!value.isPresent()) return Optional.empty();
+		try {
+			return Optional.of(new ContentType(value.get()));
+		} catch (final ParseException e) {
+			return Optional.empty();
+		}
+	}
+
+	private ByteBuffer slice(final int from, final int to) {
+		return ByteBuffer.wrap(data, from, to - from).slice().asReadOnlyBuffer();
+	}
+
+	private Parsed parsed() {
+		Parsed result = parsed;
+		if (result == null) {
+			result = parseHeaders();
+			parsed = result;
+		}
+		return result;
+	}
+
+	private Parsed parseHeaders() {
+		final ImmutableListMultimap.Builder<String, String> headers = ImmutableListMultimap.builder();
+		final HeaderParser.Unfolder unfolder = new HeaderParser.Unfolder(headers::put);
+		int lineStart = start;
+		while (lineStart < end) {
+			final int lineEnd = lineEnd(lineStart);
+			final int next = nextLine(lineEnd);
+			if (lineEnd == lineStart) {
+				unfolder.end();
+				return new Parsed(headers.build(), next);
+			}
+			unfolder.line(new String(data, lineStart, lineEnd - lineStart, UTF_8));
+			lineStart = next;
+		}
+		//No body:
+		unfolder.end();
+		return new Parsed(headers.build(), end);
+	}
+
+	private List<MimePart> parseParts() {
+		if (!getMimeType().startsWith("multipart/")) return Collections.emptyList();
+		final Optional<ContentType> contentType = getContentType();
+		final String boundary = contentType.isPresent() ? contentType.get().getParameter("boundary") : null;
+		if (boundary == null) return Collections.emptyList();
+		final byte[] delimiter = ("--" + boundary).getBytes(ISO_8859_1);
+		final List<MimePart> result = new ArrayList<>();
+		int partStart = -1;
+		int lineStart = parsed().bodyStart;
+		while (lineStart < end) {
+			final int lineEnd = lineEnd(lineStart);
+			if (startsWith(lineStart, lineEnd, delimiter)) {
+				if (partStart >= 0) result.add(new MimePart(data, partStart, previousLineEnd(lineStart, partStart)));
+				final boolean close = lineStart + delimiter.length + 2 <= lineEnd 
+						&& data[lineStart + delimiter.length] == '-' && data[lineStart + delimiter.length + 1] == '-';
+				if (close) break;
+				partStart = nextLine(lineEnd);
+			}
+			lineStart = nextLine(lineEnd);
+		}
+		return ImmutableList.copyOf(result);
+	}
+
+	/**
+	 * The line break before a delimiter belongs to the delimiter (RFC 2046).
+	 */
+	private int previousLineEnd(final int lineStart, final int partStart) {
+		int result = lineStart;
+		if (result > partStart && data[result - 1] == '\n') result--;
+		if (result > partStart && data[result - 1] == '\r') result--;
+		return result;
+	}
+
+	private boolean startsWith(final int lineStart, final int lineEnd, final byte[] prefix) {
+		if (lineEnd - lineStart < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[lineStart + i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the position of the line break (CR of CRLF, or LF) or the end.
+	 */
+	private int lineEnd(final int lineStart) {
+		int i = lineStart;
+		while (i < end && data[i] != '\n') i++;
+		return i > lineStart && data[i - 1] == '\r' ? i - 1 : i;
+	}
+
+	private int nextLine(final int lineEnd) {
+		int i = lineEnd;
+		if (i < end && data[i] == '\r') i++;
+		if (i < end && data[i] == '\n') i++;
+		return i;
+	}
+
+	private static final class Parsed {
+		private final ImmutableListMultimap<String, String> headers;
+		private final int bodyStart;
+
+		private Parsed(final ImmutableListMultimap<String, String> headers, final int bodyStart) {
+			this.headers = headers;
+			this.bodyStart = bodyStart;
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.subethamail.smtp.TooMuchDataException;
+
+/**
+ * Like {@link org.subethamail.smtp.helper.SimpleMessageListener}, but a message is delivered 
+ * only once for all accepted recipients of a mail transaction.
+ */
+public interface MultiRecipientMessageListener {
+
+	/**
+	 * Called once for every RCPT TO during a mail transaction.
+	 * 
+	 * @return true if the recipient is accepted.
+	 */
+	boolean accept(String from, String recipient);
+
+	/**
+	 * Called once per mail transaction with all accepted recipients.
+	 * 
+	 * @param data the message DATA, only valid during this call.
+	 */
+	void deliver(String from, List<String> recipients, InputStream data) 
+			throws TooMuchDataException, IOException;
+
+}
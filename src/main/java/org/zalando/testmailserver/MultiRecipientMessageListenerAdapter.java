@@ -0,0 +1,187 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.Session;
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.metrics.SessionTimes;
+import org.zalando.testmailserver.metrics.SessionTrace;
+import org.zalando.testmailserver.metrics.SessionTracer;
+
+import com.google.common.io.CountingInputStream;
+
+/**
+ * MessageHandlerFactory for a {@link MultiRecipientMessageListener}.
+ * 
+ * Purpose: In contrast to {@link org.subethamail.smtp.helper.SimpleMessageListenerAdapter}
+ * the DATA is neither buffered nor delivered once per recipient.
+ * 
+ * Transactions, recipients, delivered messages and failures are counted in the {@link ServerMetrics}.
+ * If a {@link SessionTracer} is set, the phases of the sampled transactions are traced.
+ */
+public final class MultiRecipientMessageListenerAdapter implements MessageHandlerFactory {
+
+	private final MultiRecipientMessageListener listener;
+	private final ServerMetrics metrics;
+	private volatile @Nullable SessionTracer tracer;
+
+	public MultiRecipientMessageListenerAdapter(final MultiRecipientMessageListener listener) {
+		this(listener, ServerMetrics.getInstance());
+	}
+
+	MultiRecipientMessageListenerAdapter(final MultiRecipientMessageListener listener, 
+			final ServerMetrics metrics) {
+		this.listener = listener;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param tracer traces the transactions of handlers created afterwards, null to stop tracing.
+	 */
+	public void setTracer(@Nullable final SessionTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	@Override
+	public MessageHandler create(final MessageContext ctx) {
+		return new Handler(ctx, tracer);
+	}
+
+	/**
+	 * The NIO front end implements SessionTimes itself, subethasmtp's sessions get it from
+	 * the socket accepted by {@link ReusePortSMTPServer}.
+	 */
+	private static @Nullable SessionTimes getSessionTimes(final MessageContext ctx) {
+		if (ctx instanceof SessionTimes) return (SessionTimes) ctx;
+		if (ctx instanceof Session && ((Session) ctx).getSocket() instanceof SessionTimes)
+			return (SessionTimes) ((Session) ctx).getSocket();
+		return null;
+	}
+
+	private final class Handler implements MessageHandler {
+
+		private final MessageContext ctx;
+		private final @Nullable SessionTracer tracer;
+		private @Nullable String from;
+		private final List<String> recipients = new ArrayList<>();
+		private long startNanos;
+		private @Nullable SessionTrace trace;
+
+		private Handler(final MessageContext ctx, @Nullable final SessionTracer tracer) {
+			this.ctx = ctx;
+			this.tracer = tracer;
+		}
+
+		@Override
+		public void from(final String from) throws RejectException {
+			final long now = System.nanoTime();
+			final SessionTimes times = getSessionTimes(ctx);
+			//The first message of a connection is measured from the accept, later ones from their MAIL:
+			startNanos = times != null && times.startTransaction() == 0 ? times.getConnectedNanos() : now;
+			metrics.transactionStarted();
+			if (tracer != null) trace = tracer.begin(ctx.getRemoteAddress(), times);
+			this.from = from;
+		}
+
+		@Override
+		public void recipient(final String recipient) throws RejectException {
+			if (!listener.accept(from, recipient)) {
+				metrics.rejected();
+				throw new RejectException(553, "<" + recipient + "> address unknown.");
+			}
+			metrics.recipientAccepted();
+			if (trace != null) trace.recipient();
+			recipients.add(recipient);
+		}
+
+		@Override
+		public void data(final InputStream data) 
+				throws RejectException, TooMuchDataException, IOException {
+			final SessionTrace t = trace;
+			if (t != null) t.dataStarted();
+			final CountingInputStream counting = new CountingInputStream(
+					t == null ? data : new EndMarkingInputStream(data, t));
+			try {
+				listener.deliver(from, recipients, counting);
+			} catch (final RejectException e) {
+				metrics.rejected();
+				if (t != null) t.delivered(counting.getCount(), SessionTrace.Result.REJECTED);
+				throw e;
+			} catch (final IOException | RuntimeException e) {
+				metrics.failed();
+				if (t != null) t.delivered(counting.getCount(), SessionTrace.Result.FAILED);
+				throw e;
+			}
+			metrics.messageDelivered(counting.getCount(), startNanos);
+			if (t != null) t.delivered(counting.getCount(), SessionTrace.Result.DELIVERED);
+		}
+
+		@Override
+		public void done() {
+			final SessionTrace t = trace;
+			final SessionTracer tr = tracer;
+			if (t != null && tr != null) tr.publish(t);
+		}
+	}
+
+	/**
+	 * Notes in the trace when the end of the DATA has been read.
+	 */
+	private static final class EndMarkingInputStream extends FilterInputStream {
+
+		private final SessionTrace trace;
+
+		private EndMarkingInputStream(final InputStream in, final SessionTrace trace) {
+			super(in);
+			this.trace = trace;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b == -1) trace.dataReceived();
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n == -1) trace.dataReceived();
+			return n;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.server.SMTPServer;
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.metrics.SessionTimes;
+import org.zalando.testmailserver.util.ReusePort;
+
+/**
+ * SMTPServer whose server socket can share its port with other sockets (SO_REUSEPORT), 
+ * so that several acceptor threads listen on the same port. Accepted connections are 
+ * counted in the {@link ServerMetrics}.
+ */
+final class ReusePortSMTPServer extends SMTPServer {
+
+	private final boolean reusePort;
+
+	ReusePortSMTPServer(final MessageHandlerFactory handlerFactory, 
+			@Nullable final ExecutorService executorService, final boolean reusePort) {
+		super(handlerFactory, null, executorService);
+		this.reusePort = reusePort;
+	}
+
+	@Override
+	protected ServerSocket createServerSocket() throws IOException {
+		final InetSocketAddress address = getBindAddress() == null 
+				? new InetSocketAddress(getPort()) 
+				: new InetSocketAddress(getBindAddress(), getPort());
+		final ServerSocket serverSocket = new CountingServerSocket();
+		try {
+			if (reusePort) ReusePort.enable(serverSocket);
+			serverSocket.bind(address, getBacklog());
+		} catch (final IOException | RuntimeException e) {
+			serverSocket.close();
+			throw e;
+		}
+		if (getPort() == 0) setPort(serverSocket.getLocalPort());
+		return serverSocket;
+	}
+
+	/**
+	 * Counts the accepted connections in the {@link ServerMetrics}.
+	 */
+	private static final class CountingServerSocket extends ServerSocket {
+
+		private CountingServerSocket() throws IOException {
+			super();
+		}
+
+		@Override
+		public Socket accept() throws IOException {
+			final TimedSocket socket = new TimedSocket();
+			implAccept(socket);
+			socket.connectedNanos = System.nanoTime();
+			ServerMetrics.getInstance().connectionAccepted();
+			return socket;
+		}
+	}
+
+	/**
+	 * Knows when it has been accepted, for the {@link org.zalando.testmailserver.metrics.SessionTrace}s.
+	 * Subethasmtp does not tell when HELO has been received.
+	 */
+	private static final class TimedSocket extends Socket implements SessionTimes {
+
+		private volatile long connectedNanos;
+		private final AtomicInteger transactions = new AtomicInteger();
+
+		@Override
+		public long getConnectedNanos() {
+			return connectedNanos;
+		}
+
+		@Override
+		public long getHeloNanos() {
+			return 0;
+		}
+
+		@Override
+		public int startTransaction() {
+			return transactions.getAndIncrement();
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.zalando.testmailserver.logbackext.ContentReadException;
+import org.zalando.testmailserver.logbackext.RawContent;
+import org.zalando.testmailserver.util.Utils;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * A message whose DATA is copied from the SMTP input stream directly to the
+ * target when it is written, so it is never held in memory as a whole.
+ * 
+ * Can only be written once and only while the SMTP session is delivering it. If the
+ * SMTP input fails, e.g. because the client disconnects, {@link ContentReadException}
+ * is thrown, so that appenders can tell it from their own failures.
+ */
+final class StreamedMessage implements RawContent {
+
+	private final String id;
+	private final long timestamp;
+	private final String envelopeSender;
+	private final List<String> envelopeReceivers;
+	private final InputStream data;
+
+	StreamedMessage(final String id,
+					final long timestamp,
+					final String envelopeSender, 
+					final List<String> envelopeReceivers, 
+					final InputStream data){
+		this.id = id;
+		this.timestamp = timestamp;
+		this.envelopeSender = envelopeSender;
+		this.envelopeReceivers = envelopeReceivers;
+		this.data = new Source(data);
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	@Override
+	public void writeTo(final OutputStream out) throws IOException {
+		out.write(TestMessage.envelopeHeader(envelopeSender, envelopeReceivers).getBytes(UTF_8));
+		Utils.copy(data, out);
+	}
+
+	/**
+	 * Reads the remaining DATA into memory.
+	 */
+	@Override
+	public TestMessage detach() throws IOException {
+		return new TestMessage(id, timestamp, envelopeSender, envelopeReceivers, ByteStreams.toByteArray(data));
+	}
+
+	/**
+	 * Only the envelope, the DATA can only be consumed by {@link #writeTo(OutputStream)}.
+	 */
+	@Override
+	public String toString(){
+		return TestMessage.envelopeHeader(envelopeSender, envelopeReceivers);
+	}
+
+	/**
+	 * Reports failures of the SMTP input as {@link ContentReadException}.
+	 */
+	private static final class Source extends FilterInputStream {
+		private Source(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() {
+			try {
+				return in.read();
+			} catch (final IOException e) {
+				throw new ContentReadException(e);
+			}
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			try {
+				return in.read(b, off, len);
+			} catch (final IOException e) {
+				throw new ContentReadException(e);
+			}
+		}
+
+		@Override
+		public long skip(final long n) {
+			try {
+				return in.skip(n);
+			} catch (final IOException e) {
+				throw new ContentReadException(e);
+			}
+		}
+	}
+}
@@ -24,25 +24,79 @@ package org.zalando.testmailserver;
 
 import static org.zalando.testmailserver.util.FormattingUtils.format;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.management.ManagementFactory;
 import java.net.BindException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+import javax.management.JMException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.subethamail.smtp.MessageHandlerFactory;
-import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
+import org.zalando.testmailserver.logbackext.AbstractAppender;
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.metrics.ServerMetricsMXBean;
+import org.zalando.testmailserver.metrics.SessionTracer;
+import org.zalando.testmailserver.nio.NioSmtpServer;
+import org.zalando.testmailserver.util.ReusePort;
 import org.zalando.testmailserver.util.Utils;
+import org.zalando.testmailserver.util.VirtualThreads;
+
+import com.google.common.collect.ImmutableList;
 
 import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
 
 public class TestMailServer implements AutoCloseable {
 
 	private static final Logger LOG = LoggerFactory
 			.getLogger(TestMailServer.class);
 
+	public static final String HTTP_PORT_PROPERTY = "testmailserver.http.port";
+	public static final String MAX_COUNT_PROPERTY = "testmailserver.store.maxCount";
+	public static final String MAX_BYTES_PROPERTY = "testmailserver.store.maxBytes";
+	public static final String MAX_MESSAGE_SIZE_PROPERTY = "testmailserver.store.maxMessageSize";
+
+	public static final String INDEX_PROPERTY = "testmailserver.index";
+	public static final String CORRELATION_HEADER_PROPERTY = "testmailserver.index.correlationHeader";
+	public static final String SEARCH_PROPERTY = "testmailserver.search";
+
+	/**
+	 * The message folder of the default logback configuration.
+	 */
+	private static final String MESSAGE_FOLDER = "logs/msg";
+	public static final String THREADS_PROPERTY = "testmailserver.threads";
+	public static final String MAX_CONNECTIONS_PROPERTY = "testmailserver.maxConnections";
+	public static final String CONNECTION_TIMEOUT_PROPERTY = "testmailserver.connectionTimeout";
+	public static final String EVENT_LOOPS_PROPERTY = "testmailserver.nio.eventLoops";
+	public static final String ACCEPTORS_PER_PORT_PROPERTY = "testmailserver.acceptorsPerPort";
+	public static final String TRACE_SAMPLING_PROPERTY = "testmailserver.trace.sampling";
+
+	private static final int TRACE_CAPACITY = 4096;
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 1000;
+	private static final int DEFAULT_CONNECTION_TIMEOUT = 60000;
+	private static final int DEFAULT_MAX_COUNT = 10000;
+	private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
 	public static enum Message {
 		NAME, LISTENING, COULD_NOT_BIND, STOPPED
 	}
@@ -55,8 +109,10 @@ public class TestMailServer implements AutoCloseable {
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 				shutdown(mainThread, shouldRun);
 			}, "shutdown-hook"));
-			final TestMailServer testMailServer = new TestMailServer(
-					getPort(args));
+			final List<Integer> ports = getPorts(args);
+			final TestMailServer testMailServer = new TestMailServer(ports.get(0));
+			for (final int port : ports.subList(1, ports.size())) testMailServer.addPort(port);
+			configure(testMailServer);
 			try {
 				try {
 					testMailServer.start();
@@ -84,11 +140,52 @@ public class TestMailServer implements AutoCloseable {
 		}
 	}
 
-	private static int getPort(final String[] args) {
+	private static List<Integer> getPorts(final String[] args) {
 		if (args == null ? true : args.length < 1)
-			return 25;
-		else
-			return Integer.parseInt(args[0]);
+			return ImmutableList.of(25);
+		final List<Integer> ports = new ArrayList<>();
+		for (final String arg : args) ports.add(Integer.parseInt(arg));
+		return ports;
+	}
+
+	/**
+	 * Optional features are configured by system properties.
+	 */
+	private static void configure(final TestMailServer testMailServer) throws IOException {
+		final String maxConnections = System.getProperty(MAX_CONNECTIONS_PROPERTY);
+		if (maxConnections != null) testMailServer.setMaxConnections(Integer.parseInt(maxConnections));
+		final String connectionTimeout = System.getProperty(CONNECTION_TIMEOUT_PROPERTY);
+		if (connectionTimeout != null) testMailServer.setConnectionTimeout(Integer.parseInt(connectionTimeout));
+		final String acceptors = System.getProperty(ACCEPTORS_PER_PORT_PROPERTY);
+		if (acceptors != null) {
+			if (ReusePort.isSupported()) testMailServer.setAcceptorsPerPort(Integer.parseInt(acceptors));
+			else LOG.warn("SO_REUSEPORT is not supported by this JDK, using one acceptor per port.");
+		}
+		final String eventLoops = System.getProperty(EVENT_LOOPS_PROPERTY);
+		if (eventLoops != null) testMailServer.useNioFrontEnd(Integer.parseInt(eventLoops));
+		if ("virtual".equals(System.getProperty(THREADS_PROPERTY))) {
+			if (VirtualThreads.isSupported()) testMailServer.useVirtualThreads();
+			else LOG.warn("Virtual threads are not supported by this JDK, using platform threads.");
+		}
+		final String maxMessageSize = System.getProperty(MAX_MESSAGE_SIZE_PROPERTY);
+		if (maxMessageSize != null) testMailServer.setMaxMessageSize(Integer.parseInt(maxMessageSize));
+		final String maxCount = System.getProperty(MAX_COUNT_PROPERTY);
+		final String maxBytes = System.getProperty(MAX_BYTES_PROPERTY);
+		if (maxCount != null || maxBytes != null) {
+			testMailServer.enableInMemoryStore(
+					maxCount == null ? DEFAULT_MAX_COUNT : Integer.parseInt(maxCount), 
+					maxBytes == null ? DEFAULT_MAX_BYTES : Long.parseLong(maxBytes));
+		}
+		if (Boolean.getBoolean(INDEX_PROPERTY)) {
+			testMailServer.enableIndex(System.getProperty(CORRELATION_HEADER_PROPERTY), 
+					FileSystems.getDefault().getPath(MESSAGE_FOLDER));
+		}
+		if (Boolean.getBoolean(SEARCH_PROPERTY)) testMailServer.enableFullTextIndex();
+		final String traceSampling = System.getProperty(TRACE_SAMPLING_PROPERTY);
+		if (traceSampling != null) testMailServer.enableTracing(Integer.parseInt(traceSampling));
+		final String httpPort = System.getProperty(HTTP_PORT_PROPERTY);
+		if (httpPort != null) testMailServer.enableHttpInbox(Integer.parseInt(httpPort), 
+				FileSystems.getDefault().getPath(MESSAGE_FOLDER));
 	}
 
 	private static void shutdown(final Thread mainThread,
@@ -109,21 +206,324 @@ public class TestMailServer implements AutoCloseable {
 		loggerContext.stop();
 	}
 
-	private final SMTPServer server;
+	private final List<Integer> ports = new CopyOnWriteArrayList<>();
+	private final LoggingMessageListener listener;
+	private final MultiRecipientMessageListenerAdapter handlerFactory;
+	private volatile @Nullable Supplier<? extends ExecutorService> executorFactory;
+	private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	private volatile int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+	private volatile int eventLoops = 0;
+	private volatile int acceptorsPerPort = 1;
+	private volatile @Nullable List<SMTPServer> servers;
+	private volatile @Nullable NioSmtpServer nioServer;
+	private volatile @Nullable InMemoryMessageStore inMemoryStore;
+	private volatile @Nullable HttpInbox httpInbox;
+	private volatile @Nullable MessageIndex index;
+	private volatile @Nullable Path indexFolder;
+	private volatile @Nullable FullTextIndex fullTextIndex;
+	private volatile @Nullable SessionTracer tracer;
 
 	public TestMailServer(final int port) throws Exception {
 		LOG.info("Creating testmailserver.");
-		final SimpleMessageListener listener = new LoggingMessageListener();
-		final MessageHandlerFactory handlerFactory = new SimpleMessageListenerAdapter(
-				listener);
-		server = new SMTPServer(handlerFactory);
-		server.setHostName(Utils.getDefaultHostName());
-		server.setPort(port);
+		ports.add(port);
+		listener = new LoggingMessageListener(true);
+		handlerFactory = new MultiRecipientMessageListenerAdapter(listener);
+	}
+
+	/**
+	 * Sets the factory for the executor that runs the SMTP sessions, one task per connection.
+	 * The executor is shut down when the server is closed. By default, a cached thread pool
+	 * is used. Must be called before {@link #start()}.
+	 */
+	public void setExecutorFactory(final Supplier<? extends ExecutorService> executorFactory) {
+		checkNotStarted();
+		this.executorFactory = executorFactory;
+	}
+
+	/**
+	 * Runs each SMTP session in its own virtual thread, so that many idle or slow connections 
+	 * are cheap. The delivery path only blocks in java.util.concurrent locks and I/O, 
+	 * which do not pin the carrier thread. Must be called before {@link #start()}.
+	 * 
+	 * @throws UnsupportedOperationException if the JDK does not support virtual threads (before Java 21).
+	 */
+	public void useVirtualThreads() {
+		if (!VirtualThreads.isSupported())
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+		setExecutorFactory(() -> VirtualThreads.newThreadPerTaskExecutor().get());
+	}
+
+	/**
+	 * Sets the maximum number of concurrent SMTP connections. Further clients are not 
+	 * accepted until a connection is closed. Default is 1000. With several listening sockets 
+	 * (see {@link #addPort(int)} and {@link #setAcceptorsPerPort(int)}), the limit applies to 
+	 * each socket with subethasmtp, but to all sockets together with the NIO front end.
+	 * Must be called before {@link #start()}.
+	 */
+	public void setMaxConnections(final int maxConnections) {
+		checkNotStarted();
+		if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be positive.");
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Sets how long a connection may wait for the client before it is closed, in milliseconds.
+	 * 0 means no limit. Default is 60 seconds. Must be called before {@link #start()}.
+	 */
+	public void setConnectionTimeout(final int connectionTimeout) {
+		checkNotStarted();
+		if (connectionTimeout < 0) throw new IllegalArgumentException("connectionTimeout must not be negative.");
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	/**
+	 * Uses the {@link NioSmtpServer} instead of subethasmtp's thread per connection server.
+	 * The executor set by {@link #setExecutorFactory(Supplier)} then only runs the message 
+	 * delivery. Must be called before {@link #start()}.
+	 * 
+	 * @param eventLoops the number of threads handling the connections.
+	 */
+	public void useNioFrontEnd(final int eventLoops) {
+		checkNotStarted();
+		if (eventLoops < 1) throw new IllegalArgumentException("eventLoops must be positive.");
+		this.eventLoops = eventLoops;
+	}
+
+	/**
+	 * Additionally listens on the given port, for example 587 besides 25. All ports deliver
+	 * to the same listener and stores. Must be called before {@link #start()}.
+	 * 
+	 * @param port the port, 0 for any free port.
+	 */
+	public void addPort(final int port) {
+		checkNotStarted();
+		ports.add(port);
+	}
+
+	/**
+	 * Opens several server sockets for each port, each with its own acceptor thread, using 
+	 * SO_REUSEPORT. The kernel then spreads new connections over the sockets, which helps 
+	 * when many clients connect at the same moment. Must be called before {@link #start()}.
+	 * 
+	 * @throws UnsupportedOperationException if SO_REUSEPORT is not supported (before Java 9).
+	 */
+	public void setAcceptorsPerPort(final int acceptorsPerPort) {
+		checkNotStarted();
+		if (acceptorsPerPort < 1) throw new IllegalArgumentException("acceptorsPerPort must be positive.");
+		if (acceptorsPerPort > 1 && !ReusePort.isSupported())
+			throw new UnsupportedOperationException("Several acceptors per port require SO_REUSEPORT (Java 9 or later).");
+		this.acceptorsPerPort = acceptorsPerPort;
+	}
+
+	private void checkNotStarted() {
+		if (servers != null || nioServer != null)
+			throw new IllegalStateException("Server is already running.");
+	}
+
+	/**
+	 * Sets the maximum DATA size of messages passed to the in-memory store and the indexes.
+	 * Messages are streamed to the message log and copied to memory only up to this size,
+	 * larger messages are only logged. Default is 16MB.
+	 */
+	public void setMaxMessageSize(final int maxMessageSize) {
+		listener.setMaxConsumedSize(maxMessageSize);
+	}
+
+	/**
+	 * Additionally keeps received messages in memory, so that they can be queried by
+	 * {@link #getMessages()}. If there are more than maxCount messages, or their
+	 * DATA is larger than maxBytes in total, the oldest messages are removed.
+	 * Must be called before {@link #start()}. 
+	 */
+	public void enableInMemoryStore(final int maxCount, final long maxBytes) {
+		checkNotStarted();
+		if (inMemoryStore != null)
+			throw new IllegalStateException("In-memory store is already enabled.");
+		final InMemoryMessageStore store = new InMemoryMessageStore(maxCount, maxBytes);
+		listener.addConsumer(store);
+		inMemoryStore = store;
+	}
+
+	/**
+	 * Makes the in-memory store available over HTTP (see README.md), same as 
+	 * {@link #enableHttpInbox(int, Path)} without a message folder.
+	 */
+	public void enableHttpInbox(final int port) {
+		enableHttpInbox(port, null);
+	}
+
+	/**
+	 * Makes the in-memory store available over HTTP (see README.md). Enables the 
+	 * in-memory store with default limits if it has not been enabled before. Searching
+	 * over HTTP requires {@link #enableFullTextIndex()} to be called first.
+	 * Must be called before {@link #start()}. The HTTP server is started and stopped 
+	 * together with the SMTP server.
+	 * 
+	 * @param port the HTTP port, 0 for any free port.
+	 * @param folder the folder the messages are stored in, the DATA is streamed from there.
+	 * If null, or the message is not found there, the DATA is taken from the in-memory store.
+	 */
+	public void enableHttpInbox(final int port, @Nullable final Path folder) {
+		checkNotStarted();
+		if (httpInbox != null)
+			throw new IllegalStateException("HTTP inbox is already enabled.");
+		if (inMemoryStore == null) enableInMemoryStore(DEFAULT_MAX_COUNT, DEFAULT_MAX_BYTES);
+		httpInbox = new HttpInbox(getInMemoryStore(), fullTextIndex, folder, port);
+	}
+
+	/**
+	 * @return the port of the HTTP inbox.
+	 * @throws IllegalStateException if the HTTP inbox is not enabled.
+	 */
+	public int getHttpPort() {
+		final HttpInbox inbox = httpInbox;
+		if (inbox == null)
+			throw new IllegalStateException("HTTP inbox is not enabled.");
+		return inbox.getPort();
+	}
+
+	/**
+	 * Indexes received messages by sender, recipient, Message-ID, Subject and the given 
+	 * correlation header, see {@link #getIndex()}. If folder is not null, the messages 
+	 * already stored there are indexed in the background after {@link #start()}. Messages
+	 * deleted by the retention of the message log appenders are removed from the index.
+	 * Must be called before {@link #start()}.
+	 */
+	public void enableIndex(@Nullable final String correlationHeader, @Nullable final Path folder) {
+		checkNotStarted();
+		if (index != null)
+			throw new IllegalStateException("Index is already enabled.");
+		final MessageIndex messageIndex = new MessageIndex(correlationHeader);
+		listener.addConsumer(messageIndex);
+		addDeletionListener(messageIndex::remove);
+		indexFolder = folder;
+		index = messageIndex;
+	}
+
+	/**
+	 * Registers the listener with the appenders of the message log that can delete messages.
+	 */
+	private static void addDeletionListener(final Consumer<String> deletionListener) {
+		if (!(LoggerFactory.getILoggerFactory() instanceof LoggerContext)) return;
+		final LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+		final Iterator<Appender<ILoggingEvent>> appenders = 
+				loggerContext.getLogger(LoggingMessageListener.MSG_LOG_NAME).iteratorForAppenders();
+		while (appenders.hasNext()) {
+			final Appender<ILoggingEvent> appender = appenders.next();
+			if (appender instanceof AbstractAppender) {
+				((AbstractAppender<ILoggingEvent>) appender).addDeletionListener(deletionListener);
+			}
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if the index is not enabled.
+	 */
+	public MessageIndex getIndex() {
+		final MessageIndex messageIndex = index;
+		if (messageIndex == null)
+			throw new IllegalStateException("Index is not enabled.");
+		return messageIndex;
+	}
+
+	/**
+	 * Indexes the Subject and the text parts of received messages for {@link #search(String, int)}.
+	 * Messages are indexed in the background after {@link #start()}, so they are found shortly
+	 * after they have been delivered. Messages deleted by the retention of the message log 
+	 * appenders are removed from the index. Must be called before {@link #start()}.
+	 */
+	public void enableFullTextIndex() {
+		checkNotStarted();
+		if (fullTextIndex != null)
+			throw new IllegalStateException("Full text index is already enabled.");
+		final FullTextIndex textIndex = new FullTextIndex();
+		listener.addConsumer(textIndex);
+		addDeletionListener(textIndex::remove);
+		fullTextIndex = textIndex;
+	}
+
+	/**
+	 * @return the IDs of at most limit messages that contain all words of the query, newest first.
+	 * @throws IllegalStateException if the full text index is not enabled.
+	 */
+	public List<String> search(final String query, final int limit) {
+		final FullTextIndex textIndex = fullTextIndex;
+		if (textIndex == null)
+			throw new IllegalStateException("Full text index is not enabled.");
+		return textIndex.search(query, limit);
+	}
+
+	/**
+	 * Traces the phases of every sampling-th SMTP transaction (connect, HELO, MAIL, first RCPT,
+	 * DATA, end of DATA, delivered) and writes them once per second to the log 
+	 * {@value SessionTracer#TRACE_LOG_NAME}, one line per transaction. 
+	 * Must be called before {@link #start()}.
+	 * 
+	 * @param sampling 1 to trace all transactions, 100 to trace about one in a hundred.
+	 */
+	public void enableTracing(final int sampling) {
+		checkNotStarted();
+		if (tracer != null)
+			throw new IllegalStateException("Tracing is already enabled.");
+		final SessionTracer sessionTracer = new SessionTracer(sampling, TRACE_CAPACITY);
+		handlerFactory.setTracer(sessionTracer);
+		tracer = sessionTracer;
+	}
+
+	/**
+	 * @return the messages in the in-memory store, oldest first.
+	 * @throws IllegalStateException if the in-memory store is not enabled.
+	 */
+	public List<TestMessage> getMessages() {
+		return getInMemoryStore().getMessages();
+	}
+
+	/**
+	 * @return the messages in the in-memory store that match the filter, oldest first.
+	 * @throws IllegalStateException if the in-memory store is not enabled.
+	 * @see MessageFilters
+	 */
+	public List<TestMessage> getMessages(final Predicate<? super TestMessage> filter) {
+		return getInMemoryStore().getMessages(filter);
+	}
+
+	/**
+	 * Waits until the in-memory store contains at least count messages matching the
+	 * filter. The waiting thread is woken up whenever a message is delivered.
+	 * 
+	 * @return all matching messages, oldest first.
+	 * @throws TimeoutException if there are not enough matching messages within the timeout.
+	 * @throws IllegalStateException if the in-memory store is not enabled.
+	 * @see MessageFilters
+	 */
+	public List<TestMessage> awaitMessages(final Predicate<? super TestMessage> filter, 
+			final int count, final Duration timeout) throws InterruptedException, TimeoutException {
+		return getInMemoryStore().awaitMessages(filter, count, timeout);
+	}
+
+	/**
+	 * @throws IllegalStateException if the in-memory store is not enabled.
+	 */
+	public InMemoryMessageStore getInMemoryStore() {
+		final InMemoryMessageStore store = inMemoryStore;
+		if (store == null)
+			throw new IllegalStateException("In-memory store is not enabled.");
+		return store;
 	}
 
 	public void start() throws BindException {
+		checkNotStarted();
 		try {
-			server.start();
+			if (eventLoops > 0) startNio();
+			else startSubetha();
+			final HttpInbox inbox = httpInbox;
+			if (inbox != null) startHttpInbox(inbox);
+			startIndexRebuild();
+			final FullTextIndex textIndex = fullTextIndex;
+			if (textIndex != null) textIndex.start();
+			registerMetrics();
+			final SessionTracer sessionTracer = tracer;
+			if (sessionTracer != null) sessionTracer.start();
 		} catch (final RuntimeException e) {
 			final Throwable cause = e.getCause();
 			if (cause instanceof BindException)
@@ -133,9 +533,131 @@ public class TestMailServer implements AutoCloseable {
 		}
 	}
 
+	private static void startHttpInbox(final HttpInbox inbox) {
+		try {
+			inbox.start();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Starts one SMTPServer per listening socket. Each has its own acceptor thread and executor, 
+	 * because SMTPServer shuts its executor down when stopped.
+	 */
+	private void startSubetha() {
+		final Supplier<? extends ExecutorService> executors = executorFactory;
+		final int acceptors = acceptorsPerPort;
+		final List<SMTPServer> started = new ArrayList<>();
+		servers = started;
+		try {
+			for (final int port : ports) {
+				int boundPort = port;
+				for (int i = 0; i < acceptors; i++) {
+					final SMTPServer smtpServer = new ReusePortSMTPServer(handlerFactory, 
+							executors == null ? null : executors.get(), acceptors > 1);
+					smtpServer.setHostName(Utils.getDefaultHostName());
+					smtpServer.setPort(boundPort);
+					smtpServer.setMaxConnections(maxConnections);
+					smtpServer.setConnectionTimeout(connectionTimeout);
+					smtpServer.start();
+					started.add(smtpServer);
+					// The other acceptors of an ephemeral port must join the port chosen by the first one.
+					boundPort = smtpServer.getPort();
+				}
+			}
+		} catch (final RuntimeException e) {
+			for (final SMTPServer smtpServer : started) smtpServer.stop();
+			servers = null;
+			throw e;
+		}
+		servers = ImmutableList.copyOf(started);
+	}
+
+	private void startNio() throws BindException {
+		final Supplier<? extends ExecutorService> executors = executorFactory;
+		final NioSmtpServer smtpServer = new NioSmtpServer(handlerFactory, Utils.getDefaultHostName(), 
+				ports, acceptorsPerPort, eventLoops, 
+				executors == null ? Executors.newCachedThreadPool() : executors.get(), maxConnections);
+		smtpServer.setConnectionTimeout(connectionTimeout);
+		nioServer = smtpServer;
+		try {
+			smtpServer.start();
+		} catch (final BindException e) {
+			throw e;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return the port of the SMTP server, useful if it has been created with port 0. 
+	 */
+	public int getPort() {
+		return getPorts().get(0);
+	}
+
+	/**
+	 * @return all SMTP ports, the constructor's port first.
+	 */
+	public List<Integer> getPorts() {
+		final NioSmtpServer nio = nioServer;
+		if (nio != null) return nio.getPorts();
+		final List<SMTPServer> smtpServers = servers;
+		if (smtpServers == null) return ImmutableList.copyOf(ports);
+		final ImmutableList.Builder<Integer> bound = ImmutableList.builder();
+		for (int i = 0; i < smtpServers.size(); i += acceptorsPerPort) 
+			bound.add(smtpServers.get(i).getPort());
+		return bound.build();
+	}
+
+	/**
+	 * @return the metrics of all servers in this JVM, which are also available over JMX
+	 * as {@value ServerMetrics#OBJECT_NAME} after {@link #start()}.
+	 */
+	public ServerMetricsMXBean getMetrics() {
+		return ServerMetrics.getInstance();
+	}
+
+	private static void registerMetrics() {
+		try {
+			ServerMetrics.register();
+		} catch (final JMException e) {
+			LOG.warn("Could not register the metrics MBean.", e);
+		}
+	}
+
+	private void startIndexRebuild() {
+		final MessageIndex messageIndex = index;
+		final Path folder = indexFolder;
+		if (messageIndex == null || folder == null || !Files.isDirectory(folder)) return;
+		final Thread rebuild = new Thread(() -> {
+			try {
+				messageIndex.rebuild(folder);
+			} catch (final IOException | RuntimeException e) {
+				LOG.error(format("Could not index the messages in {}.", folder), e);
+			}
+		}, "index-rebuild");
+		rebuild.setDaemon(true);
+		rebuild.setPriority(Thread.MIN_PRIORITY);
+		rebuild.start();
+	}
+
 	@Override
 	public void close() throws Exception {
-		server.stop();
+		try {
+			final HttpInbox inbox = httpInbox;
+			if (inbox != null) inbox.close();
+		} finally {
+			final List<SMTPServer> smtpServers = servers;
+			if (smtpServers != null) for (final SMTPServer smtpServer : smtpServers) smtpServer.stop();
+			final NioSmtpServer nio = nioServer;
+			if (nio != null) nio.close();
+			final SessionTracer sessionTracer = tracer;
+			if (sessionTracer != null) sessionTracer.close();
+			final FullTextIndex textIndex = fullTextIndex;
+			if (textIndex != null) textIndex.close();
+		}
 	}
 
 }
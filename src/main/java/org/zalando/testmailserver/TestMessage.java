@@ -24,21 +24,68 @@ package org.zalando.testmailserver;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-public class TestMessage{
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.zalando.testmailserver.logbackext.RawContent;
+import org.zalando.testmailserver.util.ContentSection;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestMessage implements RawContent{
+	String id;
+	long timestamp;
 	byte[] messageData;
 	String envelopeSender;
-	String envelopeReceiver;
+	ImmutableList<String> envelopeReceivers;
+	private volatile @Nullable MimePart mime;
 
-	TestMessage(final String envelopeSender, 
-				final String envelopeReceiver, 
+	TestMessage(final String id,
+				final long timestamp,
+				final String envelopeSender, 
+				final List<String> envelopeReceivers, 
 				final byte[] messageData){
+		this.id = id;
+		this.timestamp = timestamp;
 		this.envelopeSender = envelopeSender;
-		this.envelopeReceiver = envelopeReceiver;
+		this.envelopeReceivers = ImmutableList.copyOf(envelopeReceivers);
 		this.messageData = messageData;
 	}
 
 	/**
-	 * Get's the raw message DATA.
+	 * Get's the ID under which the message is stored.
+	 */
+	@Override
+	public String getId()
+	{
+		return id;
+	}
+
+	/**
+	 * Get's the time in milliseconds when the message has been received.
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * Get's the length of the message DATA.
+	 */
+	public int getSize()
+	{
+		return messageData.length;
+	}
+
+	/**
+	 * Get's a copy of the raw message DATA.
+	 * 
+	 * @see #getDataBuffer()
 	 */
 	public byte[] getData()
 	{
@@ -46,11 +93,32 @@ public class TestMessage{
 	}
 
 	/**
-	 * Get's the RCPT TO:
+	 * Get's a read-only view of the raw message DATA, without copying.
+	 */
+	public ByteBuffer getDataBuffer()
+	{
+		return ByteBuffer.wrap(messageData).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get's the message as MIME entity, parsed lazily on access.
 	 */
-	public String getEnvelopeReceiver()
+	public MimePart getMime()
 	{
-		return envelopeReceiver;
+		MimePart result = mime;
+		if (result == null) {
+			result = new MimePart(messageData, 0, messageData.length);
+			mime = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Get's all accepted RCPT TO: of the mail transaction.
+	 */
+	public List<String> getEnvelopeReceivers()
+	{
+		return envelopeReceivers;
 	}
 
 	/**
@@ -61,13 +129,69 @@ public class TestMessage{
 		return envelopeSender;
 	}
 
+	/**
+	 * Writes the same as {@link #toString()}, but without decoding the DATA.
+	 */
+	@Override
+	public void writeTo(final OutputStream out) throws IOException {
+		out.write(envelopeHeader(envelopeSender, envelopeReceivers).getBytes(UTF_8));
+		out.write(messageData);
+	}
+
+	/**
+	 * Splits the message so that the bodies of the MIME parts are shared sections
+	 * and everything else (envelope, headers, boundaries) is inline. Parses the MIME
+	 * structure.
+	 */
+	@Override
+	public List<ContentSection> getSections() {
+		final List<ContentSection> result = new ArrayList<>();
+		result.add(ContentSection.inline(ByteBuffer.wrap(
+				envelopeHeader(envelopeSender, envelopeReceivers).getBytes(UTF_8))));
+		final int end = addSections(getMime(), 0, result);
+		if (end < messageData.length)
+			result.add(ContentSection.inline(ByteBuffer.wrap(messageData, end, messageData.length - end)));
+		return result;
+	}
+
+	/**
+	 * Adds the sections of the leaf parts of an entity.
+	 * 
+	 * @param start where the first inline section starts.
+	 * @return where the next inline section starts.
+	 */
+	private int addSections(final MimePart part, final int start, final List<ContentSection> result) {
+		final List<MimePart> parts = part.getParts();
+		if (!parts.isEmpty()) {
+			int position = start;
+			for (final MimePart child : parts) position = addSections(child, position, result);
+			return position;
+		}
+		final int bodyStart = part.getBodyStart();
+		if (bodyStart == part.getEnd()) return start;
+		result.add(ContentSection.inline(ByteBuffer.wrap(messageData, start, bodyStart - start)));
+		result.add(ContentSection.shared(ByteBuffer.wrap(messageData, bodyStart, part.getEnd() - bodyStart)));
+		return part.getEnd();
+	}
+
 	@Override
 	public String toString(){
 		final StringBuilder result = new StringBuilder();
-		result.append("Envelope sender: " + getEnvelopeSender()).append('\n');
-		result.append("Envelope recipient: " + getEnvelopeReceiver()).append('\n');
+		result.append(envelopeHeader(getEnvelopeSender(), getEnvelopeReceivers()));
+		result.append(new String(messageData, UTF_8));
+		return result.toString();
+	}
+
+	/**
+	 * The envelope information that precedes the message DATA in the logged output.
+	 */
+	static String envelopeHeader(final String envelopeSender, final List<String> envelopeReceivers){
+		final StringBuilder result = new StringBuilder();
+		result.append("Envelope sender: ").append(envelopeSender).append('\n');
+		for(final String envelopeReceiver: envelopeReceivers){
+			result.append("Envelope recipient: ").append(envelopeReceiver).append('\n');
+		}
 		result.append('\n');
-		result.append(new String(getData(), UTF_8));
 		return result.toString();
 	}
 }
@@ -25,12 +25,12 @@ package org.zalando.testmailserver.logbackext;
 import static org.zalando.testmailserver.util.FormattingUtils.format;
 
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
-import javax.annotation.concurrent.GuardedBy;
 
 import org.zalando.testmailserver.util.LazyVar;
 
@@ -52,22 +52,23 @@ public abstract class AbstractAppender<E> implements Appender<E> {
 	private final LazyVar<Context> context = new LazyVar<Context>("context");
 	private final LazyVar<String> name = new LazyVar<String>("name");
 
-	private final ReadLock appendLock;
-	private final WriteLock closeLock;
-
 	private static enum State {
 		INITIAL, ACTIVE, STOPPING, STOPPED, ERROR
 	}
 
-	private final Object stateGuard = new Object();
-	@GuardedBy("readLock,writeLock")
-	private State state = State.INITIAL;
+	private final AtomicReference<State> state = new AtomicReference<>(State.INITIAL);
 
-	protected AbstractAppender() {
-		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-		appendLock = lock.readLock();
-		closeLock = lock.writeLock();
-	}
+	/**
+	 * Threads inside {@link #doAppend(Object)}. Each appending thread enters before it checks
+	 * the state, and {@link #stop()} waits for all to leave after it has left the ACTIVE state.
+	 * So either stop() sees the appending thread, or the thread sees the new state - no append 
+	 * can happen after stop() has returned.
+	 */
+	private final InFlightCounter inFlight = new InFlightCounter();
+
+	private final AtomicBoolean inactiveReported = new AtomicBoolean();
+
+	private final List<Consumer<String>> deletionListeners = new CopyOnWriteArrayList<>();
 
 	@Override
 	public String getName() {
@@ -140,11 +141,7 @@ public abstract class AbstractAppender<E> implements Appender<E> {
 
 	@Override
 	public void addError(final String msg, final @Nullable Throwable ex) {
-		boolean doAdd;
-		synchronized (stateGuard) {
-			doAdd = state != State.ERROR;
-			state = State.ERROR;
-		}
+		final boolean doAdd = state.getAndSet(State.ERROR) != State.ERROR;
 		if (doAdd) {
 			final ErrorStatus status;
 			if (ex == null)
@@ -177,53 +174,79 @@ public abstract class AbstractAppender<E> implements Appender<E> {
 
 	@Override
 	public void start() {
-		synchronized (stateGuard) {
-			if (state != State.INITIAL) {
-				throw new IllegalStateException(state.toString());
-			} else
-				state = State.ACTIVE;
-		}
+		transition(State.INITIAL, State.ACTIVE);
 	}
 
 	@Override
 	public void stop() {
-		synchronized (stateGuard) {
-			if (state != State.ACTIVE) {
-				throw new IllegalStateException(state.toString());
-			} else
-				state = State.STOPPING;
-		}
-		closeLock.lock();
-		try {
-			if (state != State.STOPPING)
-				throw new IllegalStateException(state.toString());
-			state = State.STOPPED;
-		} finally {
-			closeLock.unlock();
-		}
+		transition(State.ACTIVE, State.STOPPING);
+		inFlight.awaitZero();
+		transition(State.STOPPING, State.STOPPED);
+	}
+
+	private void transition(final State expected, final State next) {
+		if (!state.compareAndSet(expected, next))
+			throw new IllegalStateException(state.get().toString());
 	}
 
 	@Override
 	public boolean isStarted() {
-		synchronized (stateGuard) {
-			return state == State.ACTIVE;
-		}
+		return state.get() == State.ACTIVE;
 	}
 
 	@Override
 	public void doAppend(final E eventObject) {
-		appendLock.lock();
+		//Checked before entering, so that stop() is not delayed by threads that are turned away:
+		if (!isStarted()) {
+			inactive();
+			return;
+		}
+		final int stripe = inFlight.enter();
 		try {
-			synchronized (stateGuard) {
-				if (state != State.ACTIVE)
-					throw new IllegalStateException(state.toString());
+			if (!isStarted()) {
+				inactive();
+				return;
 			}
 			final FilterReply decision = getFilterChainDecision(eventObject);
 			if (decision != FilterReply.DENY) append(eventObject);
+		} catch (final AppendRejectedException | ContentReadException e) {
+			//Failures of the event, not of the appender:
+			throw e;
 		} catch (final Exception e) {
 			addError("Appender [" + name + "] failed to append.", e);
 		} finally {
-			appendLock.unlock();
+			inFlight.leave(stripe);
+		}
+	}
+
+	/**
+	 * Events are dropped if the appender is not active. This is reported once, 
+	 * unless the appender is inactive because of an error, which has been reported already.
+	 */
+	private void inactive() {
+		final State current = state.get();
+		if (current != State.ERROR && !inactiveReported.getAndSet(true))
+			addWarn(format("Appender {} is {}, dropping events.", this, current));
+	}
+
+	/**
+	 * Registers a listener that is passed the ID of each message the appender deletes, 
+	 * e.g. because of its retention limits. Called by the deleting thread.
+	 */
+	public void addDeletionListener(final Consumer<String> listener) {
+		deletionListeners.add(listener);
+	}
+
+	/**
+	 * Notifies the deletion listeners.
+	 */
+	protected final void deleted(final String id) {
+		for (final Consumer<String> listener : deletionListeners) {
+			try {
+				listener.accept(id);
+			} catch (final RuntimeException e) {
+				addWarn(format("Deletion listener {} failed for {}.", listener, id), e);
+			}
 		}
 	}
 
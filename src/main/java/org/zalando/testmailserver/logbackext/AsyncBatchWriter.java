@@ -0,0 +1,148 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A bounded queue with a dedicated thread that passes the queued items in batches 
+ * to a {@link BatchHandler}.
+ * 
+ * Purpose: Decouple the threads producing log events from the latency of the 
+ * storage.
+ * 
+ * A failed batch is reported to the error handler and the writer continues with the next one.
+ */
+@ThreadSafe
+final class AsyncBatchWriter<T> {
+
+	@FunctionalInterface
+	static interface BatchHandler<T> {
+		void write(List<T> batch) throws Exception;
+	}
+
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<T> queue;
+	private final int batchSize;
+	private final OverflowPolicy overflowPolicy;
+	private final BatchHandler<T> handler;
+	private final BiConsumer<String, Exception> errorHandler;
+	private final Thread thread;
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean stopping;
+
+	AsyncBatchWriter(final String name, final int queueSize, final int batchSize,
+			final OverflowPolicy overflowPolicy, final BatchHandler<T> handler,
+			final BiConsumer<String, Exception> errorHandler) {
+		if (queueSize < 1 || batchSize < 1)
+			throw new IllegalArgumentException(format(
+					"Queue size ({}) and batch size ({}) must be positive.", queueSize, batchSize));
+		queue = new ArrayBlockingQueue<>(queueSize);
+		this.batchSize = batchSize;
+		this.overflowPolicy = overflowPolicy;
+		this.handler = handler;
+		this.errorHandler = errorHandler;
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Queues the item according to the overflow policy.
+	 * 
+	 * @return false if the item has been dropped.
+	 * @throws AppendRejectedException if the policy is REJECT and the queue is full.
+	 */
+	boolean submit(final T item) throws InterruptedException {
+		if (stopping)
+			throw new IllegalStateException(format("{} has been stopped.", thread.getName()));
+		switch (overflowPolicy) {
+		case BLOCK:
+			queue.put(item);
+			return true;
+		case DROP:
+			if (queue.offer(item))
+				return true;
+			dropped.incrementAndGet();
+			return false;
+		case REJECT:
+			if (queue.offer(item))
+				return true;
+			throw new AppendRejectedException(format("Queue of {} is full.", thread.getName()));
+		default:
+			throw new IllegalStateException(overflowPolicy.toString());
+		}
+	}
+
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Writes all items queued so far and terminates the writer thread.
+	 */
+	void stop() throws InterruptedException {
+		stopping = true;
+		thread.join();
+	}
+
+	private void run() {
+		final List<T> batch = new ArrayList<>(batchSize);
+		boolean done = false;
+		while (!done) {
+			try {
+				final boolean stopRequested = stopping;
+				final T first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+					handler.write(batch);
+				}
+				else done = stopRequested;
+			} catch (final InterruptedException e) {
+				errorHandler.accept(format("{} has been interrupted.", thread.getName()), e);
+				done = true;
+			} catch (final Exception e) {
+				errorHandler.accept(format("{} failed to write {} items.", thread.getName(), batch.size()), e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.zalando.testmailserver.store.DeduplicatingStore.MANIFEST_EXTENSION;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.store.DeduplicatingStore;
+import org.zalando.testmailserver.util.ContentSection;
+import org.zalando.testmailserver.util.LazyVar;
+import org.zalando.testmailserver.util.UniqueNames;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.util.Duration;
+
+/**
+ * Stores each log message in a {@link DeduplicatingStore}: The 
+ * {@link RawContent#getSections() shared sections} of the message, e.g. the MIME bodies 
+ * of a {@link org.zalando.testmailserver.TestMessage}, are stored once, each message only 
+ * stores the rest and references to them.
+ * 
+ * Purpose: Load tests typically send the same bodies many times, then almost nothing
+ * is written per message. Raw content that cannot be split, e.g. streamed message DATA,
+ * is {@link RawContent#detach() detached} first, so messages are held in memory while 
+ * they are stored. Events without raw content are formatted by the layout and stored inline.
+ * 
+ * Records are stored under the ID of their {@link RawContent} or, if there is none, 
+ * under a name generated by {@link UniqueNames}.
+ * 
+ * If maxAge or maxCount is set, the oldest messages and the blobs only they reference 
+ * are deleted by a {@link MessageRetention} in the background. There is no limit for the
+ * total size, because blobs are shared.
+ */
+public class DeduplicatingAppender<E> extends AbstractAppender<E> {
+
+	private final LazyVar<Path> folder = new LazyVar<>("folder");
+	private final LazyVar<Layout<E>> layout = new LazyVar<>("layout");
+
+	private volatile int minBlobSize = 1024;
+	private volatile @Nullable Duration maxAge;
+	private volatile int maxCount = 0;
+	private volatile Duration retentionInterval = Duration.buildBySeconds(10);
+	private volatile @Nullable DeduplicatingStore store;
+	private volatile @Nullable MessageRetention retention;
+
+	public Layout<E> getLayout() {
+		return layout.get();
+	}
+
+	public void setLayout(final Layout<E> layout) {
+		this.layout.set(layout);
+	}
+
+	public String getFolder() {
+		return folder.get().toString();
+	}
+
+	public void setFolder(final String folder) {
+		this.folder.set(FileSystems.getDefault().getPath(folder).toAbsolutePath());
+	}
+
+	public int getMinBlobSize() {
+		return minBlobSize;
+	}
+
+	/**
+	 * @param minBlobSize shared sections smaller than this are stored with the message.
+	 */
+	public void setMinBlobSize(final int minBlobSize) {
+		this.minBlobSize = minBlobSize;
+	}
+
+	public @Nullable Duration getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param maxAge older messages are deleted, e.g. "7 days".
+	 */
+	public void setMaxAge(final Duration maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	/**
+	 * @param maxCount the oldest messages are deleted while there are more.
+	 */
+	public void setMaxCount(final int maxCount) {
+		this.maxCount = maxCount;
+	}
+
+	public Duration getRetentionInterval() {
+		return retentionInterval;
+	}
+
+	/**
+	 * @param retentionInterval the time between two checks of the limits.
+	 */
+	public void setRetentionInterval(final Duration retentionInterval) {
+		this.retentionInterval = retentionInterval;
+	}
+
+	@Override
+	public void start() {
+		final DeduplicatingStore s;
+		try {
+			s = DeduplicatingStore.open(folder.get(), minBlobSize);
+		} catch (final IOException e) {
+			addError("Could not open deduplicating store.", e);
+			return;
+		}
+		store = s;
+		final Duration age = maxAge;
+		final long maxAgeMillis = age == null ? 0 : age.getMilliseconds();
+		if (MessageRetention.isLimited(maxAgeMillis, 0, maxCount)) {
+			final MessageRetention r = new MessageRetention(toString() + "-retention", folder.get(),
+					name -> name.endsWith(MANIFEST_EXTENSION), 
+					file -> delete(s, id(file)), maxAgeMillis, 0, maxCount, 
+					retentionInterval.getMilliseconds(), this::addWarn);
+			retention = r;
+			r.start();
+		}
+		super.start();
+	}
+
+	@Override
+	public void stop() {
+		try {
+			super.stop();
+		} finally {
+			final MessageRetention r = retention;
+			if (r != null) r.stop();
+		}
+	}
+
+	@Override
+	protected void append(final E event) throws IOException {
+		final long start = System.nanoTime();
+		final RawContent rawContent = EventContents.getRawContent(event);
+		final String id = rawContent == null ? null : rawContent.getId();
+		final long timestamp = event instanceof ILoggingEvent 
+				? ((ILoggingEvent) event).getTimeStamp() 
+				: System.currentTimeMillis();
+		final String name = id == null ? UniqueNames.next(timestamp) : id;
+		store.append(name, sections(event, rawContent));
+		ServerMetrics.getInstance().persisted(System.nanoTime() - start);
+		final MessageRetention r = retention;
+		if (r != null) r.added(folder.get().resolve(name + MANIFEST_EXTENSION));
+	}
+
+	private void delete(final DeduplicatingStore s, final String id) throws IOException {
+		if (s.delete(id)) deleted(id);
+	}
+
+	private static String id(final Path manifest) {
+		final String name = manifest.getFileName().toString();
+		return name.substring(0, name.length() - MANIFEST_EXTENSION.length());
+	}
+
+	private List<ContentSection> sections(final E event, final @Nullable RawContent rawContent) 
+			throws IOException {
+		RawContent content = rawContent;
+		if (content != null) {
+			List<ContentSection> sections = content.getSections();
+			if (sections == null) {
+				content = content.detach();
+				sections = content.getSections();
+			}
+			if (sections != null) return sections;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		EventContents.write(event, content, layout, getContext(), out);
+		return Collections.singletonList(ContentSection.inline(ByteBuffer.wrap(out.toByteArray())));
+	}
+
+}
@@ -0,0 +1,99 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+
+/**
+ * Static helpers shared by the appenders that write one event at a time 
+ * to a stream.
+ */
+final class EventContents {
+
+	/**
+	 * Static utility class.
+	 */
+	private EventContents() { }
+
+	/**
+	 * @return the single argument of a logging event, if it is {@link RawContent}.
+	 */
+	static @Nullable RawContent getRawContent(final Object event) {
+		if (event instanceof ILoggingEvent) {
+			final Object[] args = ((ILoggingEvent) event).getArgumentArray();
+			if (args != null && args.length == 1 && args[0] instanceof RawContent)
+				return (RawContent) args[0];
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the raw content if there is one, otherwise the event formatted by the
+	 * layout. The layout is only needed in the latter case. Does not close the stream.
+	 */
+	static <E> void write(final E event, final @Nullable RawContent rawContent,
+			final Supplier<Layout<E>> layout, final Context context, final OutputStream outputStream)
+			throws IOException {
+		if (rawContent != null) {
+			rawContent.writeTo(outputStream);
+		} else {
+			final Encoder<E> encoder = createEncoder(layout.get(), context, new FilterOutputStream(outputStream) {
+				@Override
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			});
+			try {
+				encoder.doEncode(event);
+			} finally {
+				encoder.close();
+			}
+		}
+	}
+
+	private static <E> Encoder<E> createEncoder(final Layout<E> layout, final Context context, 
+			final OutputStream outputStream) throws IOException {
+		final LayoutWrappingEncoder<E> lwe = new LayoutWrappingEncoder<E>();
+		lwe.setLayout(layout);
+		lwe.setContext(context);
+		lwe.init(outputStream);
+		return lwe;
+	}
+
+}
@@ -0,0 +1,79 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the threads inside a section of code, without a shared counter that all
+ * threads have to update.
+ * 
+ * Each thread uses one of several stripes, which are placed on separate cache lines.
+ * A thread leaves through the same stripe it entered, so each stripe only returns to zero
+ * when its threads have left. All updates are volatile, so a thread that enters after 
+ * {@link #awaitZero()} has checked its stripe sees every write made before awaitZero() was called.
+ */
+final class InFlightCounter {
+
+	/**
+	 * 128 bytes between two stripes, to avoid false sharing also with adjacent line prefetching.
+	 */
+	private static final int STRIDE = 16;
+
+	private final AtomicLongArray counts;
+	private final int mask;
+
+	InFlightCounter() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) stripes *= 2;
+		counts = new AtomicLongArray(stripes * STRIDE);
+		mask = stripes - 1;
+	}
+
+	/**
+	 * @return the stripe, to be passed to {@link #leave(int)}.
+	 */
+	int enter() {
+		final int stripe = ((int) Thread.currentThread().getId() & mask) * STRIDE;
+		counts.incrementAndGet(stripe);
+		return stripe;
+	}
+
+	void leave(final int stripe) {
+		counts.decrementAndGet(stripe);
+	}
+
+	/**
+	 * Waits until all threads that have entered before this call have left.
+	 */
+	void awaitZero() {
+		for (int stripe = 0; stripe < counts.length(); stripe += STRIDE) {
+			while (counts.get(stripe) != 0) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,257 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Deletes the oldest messages of a folder when they exceed a maximum age, total size
+ * or count.
+ * 
+ * Purpose: Long running instances would otherwise fill the disk, and directory operations
+ * get slower the more files there are.
+ * 
+ * The folder is scanned once when the retention starts. Afterwards the appender reports
+ * each message it has written, so the messages are kept in a queue ordered by age and a
+ * check only looks at its head. Scanning, checking and deleting is done by a daemon thread
+ * with minimum priority. Messages are ordered by file name, which is the order in which 
+ * they have been written for names generated by {@link org.zalando.testmailserver.util.UniqueNames}.
+ * The age and size of scanned and reported messages are both taken from the file system, so
+ * that the age limit applies to all of them alike. Failures are passed to the error handler 
+ * and do not stop the thread.
+ */
+@ThreadSafe
+final class MessageRetention {
+
+	/**
+	 * Deletes a message file and whatever belongs to it.
+	 */
+	@FunctionalInterface
+	static interface Deleter {
+		void delete(Path file) throws IOException;
+	}
+
+	private final Path folder;
+	private final Predicate<String> isMessage;
+	private final Deleter deleter;
+	private final long maxAgeMillis;
+	private final long maxTotalSize;
+	private final long maxCount;
+	private final long intervalMillis;
+	private final BiConsumer<String, Exception> errorHandler;
+	private final Thread thread;
+	private final Queue<Path> added = new ConcurrentLinkedQueue<>();
+	//Only used by the thread (or by tests that do not start it):
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	private long totalSize = 0;
+
+	private volatile long deletedCount = 0;
+	private volatile boolean stopped = false;
+
+	/**
+	 * @param isMessage tells by the file name which files of the folder are messages.
+	 * @param maxAgeMillis 0 for no limit, the same for maxTotalSize and maxCount.
+	 */
+	MessageRetention(final String name, final Path folder, final Predicate<String> isMessage, 
+			final Deleter deleter, final long maxAgeMillis, final long maxTotalSize, final long maxCount, 
+			final long intervalMillis, final BiConsumer<String, Exception> errorHandler) {
+		if (maxAgeMillis < 0 || maxTotalSize < 0 || maxCount < 0)
+			throw new IllegalArgumentException(format("Invalid limits: age {} ms, size {}, count {}.", 
+					maxAgeMillis, maxTotalSize, maxCount));
+		if (intervalMillis < 1)
+			throw new IllegalArgumentException(format("Invalid interval {} ms.", intervalMillis));
+		this.folder = folder;
+		this.isMessage = isMessage;
+		this.deleter = deleter;
+		this.maxAgeMillis = maxAgeMillis;
+		this.maxTotalSize = maxTotalSize;
+		this.maxCount = maxCount;
+		this.intervalMillis = intervalMillis;
+		this.errorHandler = errorHandler;
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+	}
+
+	/**
+	 * @return whether any limit is set.
+	 */
+	static boolean isLimited(final long maxAgeMillis, final long maxTotalSize, final long maxCount) {
+		return maxAgeMillis > 0 || maxTotalSize > 0 || maxCount > 0;
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Reports a message that has been written. Its attributes are read by the thread.
+	 */
+	void added(final Path file) {
+		added.add(file);
+	}
+
+	/**
+	 * Stops the thread, does not wait for a running check.
+	 */
+	void stop() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	/**
+	 * @return the number of messages deleted so far.
+	 */
+	long getDeletedCount() {
+		return deletedCount;
+	}
+
+	private void run() {
+		try {
+			scan();
+		} catch (final IOException e) {
+			errorHandler.accept(format("Could not scan {}, only new messages are deleted.", folder), e);
+		}
+		while (!stopped) {
+			try {
+				check(System.currentTimeMillis());
+			} catch (final RuntimeException e) {
+				errorHandler.accept(format("Could not check the messages in {}.", folder), e);
+			}
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (final InterruptedException e) {
+				//Stopped.
+			}
+		}
+	}
+
+	/**
+	 * Adds the messages that are already in the folder to the queue.
+	 */
+	void scan() throws IOException {
+		final List<Entry> existing = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (final Path file : files) {
+				if (stopped) return;
+				if (!isMessage.test(file.getFileName().toString())) continue;
+				final Entry entry = entry(file);
+				if (entry != null) existing.add(entry);
+			}
+		}
+		existing.sort(Comparator.comparing(entry -> entry.file.getFileName().toString()));
+		//Messages written during the scan may have been found and reported:
+		final Set<Path> reported = new HashSet<>(added);
+		for (final Entry entry : existing) {
+			if (!reported.contains(entry.file)) add(entry);
+		}
+	}
+
+	/**
+	 * Deletes messages from the head of the queue until all limits are met.
+	 */
+	void check(final long now) {
+		Path file;
+		while ((file = added.poll()) != null) {
+			try {
+				final Entry entry = entry(file);
+				if (entry != null) add(entry);
+			} catch (final IOException e) {
+				errorHandler.accept(format("Could not read the attributes of {}.", file), e);
+			}
+		}
+		while (!entries.isEmpty() && exceedsLimits(entries.peekFirst(), now)) {
+			final Entry oldest = entries.removeFirst();
+			totalSize -= oldest.size;
+			try {
+				deleter.delete(oldest.file);
+				deletedCount++;
+			} catch (final NoSuchFileException e) {
+				//Deleted by someone else.
+			} catch (final IOException | RuntimeException e) {
+				errorHandler.accept(format("Could not delete {}.", oldest.file), e);
+			}
+		}
+	}
+
+	/**
+	 * @return null if the file does not exist (any longer).
+	 */
+	private static @Nullable Entry entry(final Path file) throws IOException {
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			return new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis());
+		} catch (final NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	private void add(final Entry entry) {
+		entries.addLast(entry);
+		totalSize += entry.size;
+	}
+
+	private boolean exceedsLimits(final Entry oldest, final long now) {
+		return (maxCount > 0 && entries.size() > maxCount) 
+				|| (maxTotalSize > 0 && totalSize > maxTotalSize)
+				|| (maxAgeMillis > 0 && now - oldest.time > maxAgeMillis);
+	}
+
+	@Override
+	public String toString() {
+		return thread.getName();
+	}
+
+	private static final class Entry {
+		private final Path file;
+		private final long size;
+		private final long time;
+
+		private Entry(final Path file, final long size, final long time) {
+			this.file = file;
+			this.size = size;
+			this.time = time;
+		}
+	}
+
+}
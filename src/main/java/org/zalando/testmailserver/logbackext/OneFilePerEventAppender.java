@@ -29,30 +29,70 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
+import javax.annotation.Nullable;
+
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.util.DeferredCompressionOutputStream;
 import org.zalando.testmailserver.util.LazyVar;
+import org.zalando.testmailserver.util.UniqueNames;
 
 import ch.qos.logback.core.Layout;
-import ch.qos.logback.core.encoder.Encoder;
-import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.core.spi.DeferredProcessingAware;
+import ch.qos.logback.core.util.Duration;
+import ch.qos.logback.core.util.FileSize;
 
 /**
  * Creates a new file with a timestamp file name for each log message.
+ * File names are generated by {@link UniqueNames}, they are unique and sort
+ * in the order in which the events have been received.
  * 
  * Purpose: Useful for low-frequency, important log messages. Allows to
  * get get some information by just looking at the log folder.
+ * 
+ * If the single argument of a logging event is {@link RawContent}, it is
+ * written directly to the file and the layout is not used.
+ * 
+ * In async mode, events are put into a bounded queue and written in batches
+ * by a dedicated thread, so the logging thread does not wait for the file system.
+ * Raw content is {@link RawContent#detach() detached} before it is queued. What
+ * happens if the queue is full is determined by the {@link OverflowPolicy}. All
+ * queued events are written when the appender is stopped.
+ * 
+ * If compress is set, events larger than the compression threshold are written gzipped
+ * to *.log.gz files instead.
+ * 
+ * If maxAge, maxTotalSize or maxCount is set, the oldest messages are deleted by a 
+ * {@link MessageRetention} in the background.
+ * 
+ * The time needed to write each file is recorded as persistence latency in the {@link ServerMetrics}.
  */
 public class OneFilePerEventAppender<E> extends AbstractAppender<E> {
 	
-	private static final DateFormat DATE_FORMAT = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH.mm.ss.SSSZ'.log'");
+	private static final String FILE_EXTENSION = ".log";
+	private static final String COMPRESSED_FILE_EXTENSION = ".log.gz";
+	private static final int GZIP_BUFFER_SIZE = 8192;
 
 	private final LazyVar<Path> folder = new LazyVar<>("folder");
 	private final LazyVar<Layout<E>> layout = new LazyVar<>("layout");
 
+	private volatile boolean async = false;
+	private volatile int queueSize = 256;
+	private volatile int batchSize = 32;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private volatile boolean compress = false;
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private volatile int compressionThreshold = 1024;
+	private volatile @Nullable Duration maxAge;
+	private volatile @Nullable FileSize maxTotalSize;
+	private volatile int maxCount = 0;
+	private volatile Duration retentionInterval = Duration.buildBySeconds(10);
+	private volatile @Nullable AsyncBatchWriter<PendingEvent> writer;
+	private volatile @Nullable MessageRetention retention;
 
 	public Layout<E> getLayout() {
 		return layout.get();
@@ -76,39 +116,319 @@ public class OneFilePerEventAppender<E> extends AbstractAppender<E> {
 		this.folder.set(f);
 	}
 
+	public boolean isAsync() {
+		return async;
+	}
+
+	public void setAsync(final boolean async) {
+		this.async = async;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(final int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(final int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public void setCompress(final boolean compress) {
+		this.compress = compress;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel 0-9 or -1 for the default level.
+	 */
+	public void setCompressionLevel(final int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionThreshold events up to this size in bytes are not compressed.
+	 */
+	public void setCompressionThreshold(final int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public @Nullable Duration getMaxAge() {
+		return maxAge;
+	}
+
+	/**
+	 * @param maxAge older messages are deleted, e.g. "7 days".
+	 */
+	public void setMaxAge(final Duration maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	public @Nullable FileSize getMaxTotalSize() {
+		return maxTotalSize;
+	}
+
+	/**
+	 * @param maxTotalSize the oldest messages are deleted while all messages together are larger.
+	 */
+	public void setMaxTotalSize(final FileSize maxTotalSize) {
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	public int getMaxCount() {
+		return maxCount;
+	}
+
+	/**
+	 * @param maxCount the oldest messages are deleted while there are more.
+	 */
+	public void setMaxCount(final int maxCount) {
+		this.maxCount = maxCount;
+	}
+
+	public Duration getRetentionInterval() {
+		return retentionInterval;
+	}
+
+	/**
+	 * @param retentionInterval the time between two checks of the limits.
+	 */
+	public void setRetentionInterval(final Duration retentionInterval) {
+		this.retentionInterval = retentionInterval;
+	}
+
+	/**
+	 * @return the number of events discarded because the queue was full.
+	 */
+	public long getDroppedCount() {
+		final AsyncBatchWriter<PendingEvent> w = writer;
+		return w == null ? 0 : w.getDroppedCount();
+	}
+
+	@Override
+	public void start() {
+		final Duration age = maxAge;
+		final FileSize size = maxTotalSize;
+		final long maxAgeMillis = age == null ? 0 : age.getMilliseconds();
+		final long maxSize = size == null ? 0 : size.getSize();
+		if (MessageRetention.isLimited(maxAgeMillis, maxSize, maxCount)) {
+			final MessageRetention r = new MessageRetention(toString() + "-retention", folder.get(),
+					name -> name.endsWith(FILE_EXTENSION) || name.endsWith(COMPRESSED_FILE_EXTENSION),
+					this::delete, maxAgeMillis, maxSize, maxCount, 
+					retentionInterval.getMilliseconds(), this::addWarn);
+			retention = r;
+			r.start();
+		}
+		if (async) {
+			final AsyncBatchWriter<PendingEvent> w = new AsyncBatchWriter<>(
+					toString() + "-writer", queueSize, batchSize, overflowPolicy, 
+					this::writeBatch, this::addWarn);
+			writer = w;
+			super.start();
+			w.start();
+		} else
+			super.start();
+	}
+
+	private void delete(final Path file) throws IOException {
+		Files.delete(file);
+		final String name = file.getFileName().toString();
+		deleted(name.substring(0, name.length() 
+				- (name.endsWith(FILE_EXTENSION) ? FILE_EXTENSION : COMPRESSED_FILE_EXTENSION).length()));
+	}
+
+	@Override
+	public void stop() {
+		try {
+			super.stop();
+		} finally {
+			final MessageRetention r = retention;
+			if (r != null) r.stop();
+			final AsyncBatchWriter<PendingEvent> w = writer;
+			if (w != null) {
+				try {
+					w.stop();
+				} catch (final InterruptedException e) {
+					addWarn("Interrupted while writing queued events.", e);
+					Thread.currentThread().interrupt();
+				}
+				final long dropped = w.getDroppedCount();
+				if (dropped > 0)
+					addWarn(dropped + " events have been dropped because the queue was full.");
+			}
+		}
+	}
+
 	@Override
 	protected void append(final E event) throws IOException, InterruptedException {
-		OutputStream outputStream = null;
-		while (outputStream == null) {
-			final Date now = new Date();
-			final Path file = folder.get().resolve(DATE_FORMAT.format(now));
-			try {outputStream = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW);}
-			catch (final FileAlreadyExistsException ex) {
-				//File names contain system time in milliseconds, so if
-				//the file name already exists, we can try again a millisecond
-				//later.
-				Thread.sleep(1);
+		final AsyncBatchWriter<PendingEvent> w = writer;
+		if (w == null)
+			write(event, EventContents.getRawContent(event), new Date());
+		else {
+			final RawContent rawContent = EventContents.getRawContent(event);
+			//Raw content is written without the layout, so the message need not be formatted:
+			if (rawContent == null && event instanceof DeferredProcessingAware)
+				((DeferredProcessingAware) event).prepareForDeferredProcessing();
+			final boolean queued = w.submit(new PendingEvent(event, 
+					rawContent == null ? null : rawContent.detach(), new Date()));
+			if (!queued && w.getDroppedCount() == 1)
+				addWarn("Queue is full, dropping events.");
+		}
+	}
+
+	/**
+	 * A failed event is reported as a warning and does not stop the writer.
+	 */
+	private void writeBatch(final List<PendingEvent> batch) {
+		for (final PendingEvent pending : batch) {
+			try {
+				write(pending.event, pending.rawContent, pending.time);
+			} catch (final IOException | RuntimeException e) {
+				addWarn("Could not write event logged at " + pending.time + ".", e);
 			}
 		}
+	}
+
+	private void write(final E event, final @Nullable RawContent rawContent, final Date time) 
+			throws IOException {
+		final long start = System.nanoTime();
+		final MessageFile file = new MessageFile(rawContent, time);
+		final OutputStream outputStream = compress
+				? new DeferredCompressionOutputStream(compressionThreshold, file::open)
+				: file.open(false);
 		try {
-			final Encoder<E> encoder = createEncoder(outputStream);
+			EventContents.write(event, rawContent, layout, getContext(), outputStream);
+			//With compression, small contents are only written when the stream is closed:
+			outputStream.close();
+		} catch (final IOException | RuntimeException e) {
+			file.discard();
+			throw e;
+		}
+		ServerMetrics.getInstance().persisted(System.nanoTime() - start);
+		final MessageRetention r = retention;
+		if (r != null) r.added(file.path);
+	}
+
+	/**
+	 * The file of an event, created when it is opened.
+	 */
+	private final class MessageFile {
+		private final @Nullable String id;
+		private final Date time;
+		private @Nullable Path path;
+		/**
+		 * The file, closed on discard even if the compressing stream cannot be.
+		 */
+		private @Nullable OutputStream stream;
+		/**
+		 * The stream returned by {@link #open(boolean)}, compressing or the file itself.
+		 */
+		private @Nullable OutputStream out;
+
+		private MessageFile(final @Nullable RawContent rawContent, final Date time) {
+			this.id = rawContent == null ? null : rawContent.getId();
+			this.time = time;
+		}
+
+		/**
+		 * Closes and deletes the file, if it has been created already.
+		 */
+		private void discard() {
+			//Closing the compressing stream also releases its deflater:
+			closeQuietly(out);
+			closeQuietly(stream);
 			try {
-				encoder.doEncode(event);
-			} finally {
-				encoder.close();
+				if (path != null) Files.deleteIfExists(path);
+			} catch (final IOException e) {
+				addWarn("Could not delete incomplete " + path + ".", e);
 			}
-		} finally {
-			outputStream.close();
+		}
+
+		private void closeQuietly(final @Nullable OutputStream outputStream) {
+			if (outputStream == null) return;
+			try {
+				outputStream.close();
+			} catch (final IOException e) {
+				//The file is deleted anyway.
+			}
+		}
+
+		private OutputStream open(final boolean compressed) throws IOException {
+			String name = id == null ? UniqueNames.next(time.getTime()) : id;
+			OutputStream outputStream = null;
+			while (outputStream == null) {
+				final Path file = folder.get().resolve(name 
+						+ (compressed ? COMPRESSED_FILE_EXTENSION : FILE_EXTENSION));
+				try {
+					outputStream = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW);
+					path = file;
+				} catch (final FileAlreadyExistsException ex) {
+					//Names are unique within this JVM, so the file has been created by another
+					//process or before the system clock has been set back. The next name
+					//will be different.
+					name = UniqueNames.next(time.getTime());
+					if (id != null) addWarn(file + " already exists, using " + name + " instead.");
+				}
+			}
+			stream = outputStream;
+			out = outputStream;
+			if (!compressed) return outputStream;
+			final int level = compressionLevel;
+			final OutputStream gzip = new GZIPOutputStream(outputStream, GZIP_BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						//Not done by Java 8 if the rest of the content cannot be written.
+						def.end();
+					}
+				}
+			};
+			out = gzip;
+			return gzip;
 		}
 	}
-	
-	private Encoder<E> createEncoder(final OutputStream outputStream)
-			throws IOException {
-		final LayoutWrappingEncoder<E> lwe = new LayoutWrappingEncoder<E>();
-		lwe.setLayout(layout.get());
-		lwe.setContext(getContext());
-		lwe.init(outputStream);
-		return lwe;
+
+	private final class PendingEvent {
+		private final E event;
+		private final @Nullable RawContent rawContent;
+		private final Date time;
+
+		private PendingEvent(final E event, final @Nullable RawContent rawContent, final Date time) {
+			this.event = event;
+			this.rawContent = rawContent;
+			this.time = time;
+		}
 	}
 
 
@@ -0,0 +1,77 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.zalando.testmailserver.util.ContentSection;
+
+/**
+ * Log event argument that can write itself as raw bytes.
+ * 
+ * Purpose: Allows appenders to copy large payloads directly to their target
+ * instead of formatting them into a String first.
+ */
+public interface RawContent {
+
+	/**
+	 * The name under which the content should be stored. If null, the appender
+	 * chooses one. The default implementation returns null.
+	 */
+	default @Nullable String getId() {
+		return null;
+	}
+
+	/**
+	 * Writes the content to the given stream. Does not close the stream.
+	 * 
+	 * @throws ContentReadException if the source of the content fails. IOExceptions
+	 * are thrown by the given stream only.
+	 */
+	void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * Returns the content split into sections, whose concatenation is what {@link #writeTo}
+	 * writes, or null if the content can only be written as a whole. Shared sections are
+	 * stored only once by the {@link DeduplicatingAppender}. The default implementation 
+	 * returns null.
+	 */
+	default @Nullable List<ContentSection> getSections() {
+		return null;
+	}
+
+	/**
+	 * Returns content that can still be written after the logging call has returned.
+	 * Needed by asynchronous appenders. The default implementation returns this.
+	 * 
+	 * @throws ContentReadException if the source of the content fails.
+	 */
+	default RawContent detach() throws IOException {
+		return this;
+	}
+
+}
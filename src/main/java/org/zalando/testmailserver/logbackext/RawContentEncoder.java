@@ -0,0 +1,73 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.encoder.EncoderBase;
+
+/**
+ * Encoder for logback's stream based appenders (e.g. FileAppender) that writes
+ * {@link RawContent} unchanged, without converting it to a String. 
+ * 
+ * Other events are formatted by the layout, or, if there is no layout, the formatted 
+ * message is written in UTF-8.
+ */
+public class RawContentEncoder extends EncoderBase<ILoggingEvent> {
+
+	private @Nullable Layout<ILoggingEvent> layout;
+	private boolean immediateFlush = true;
+
+	public void setLayout(final Layout<ILoggingEvent> layout) {
+		this.layout = layout;
+	}
+
+	public void setImmediateFlush(final boolean immediateFlush) {
+		this.immediateFlush = immediateFlush;
+	}
+
+	@Override
+	public void doEncode(final ILoggingEvent event) throws IOException {
+		final RawContent rawContent = EventContents.getRawContent(event);
+		if (rawContent != null) {
+			rawContent.writeTo(outputStream);
+		} else {
+			final Layout<ILoggingEvent> l = layout;
+			final String text = l == null ? event.getFormattedMessage() : l.doLayout(event);
+			outputStream.write(text.getBytes(UTF_8));
+		}
+		if (immediateFlush) outputStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		outputStream.flush();
+	}
+
+}
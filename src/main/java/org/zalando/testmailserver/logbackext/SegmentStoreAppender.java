@@ -0,0 +1,166 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+import javax.annotation.Nullable;
+
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.store.SegmentStore;
+import org.zalando.testmailserver.util.LazyVar;
+import org.zalando.testmailserver.util.UniqueNames;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Layout;
+import ch.qos.logback.core.util.FileSize;
+
+/**
+ * Appends each log message as a record to a {@link SegmentStore}.
+ * 
+ * Purpose: Alternative to {@link OneFilePerEventAppender} for high message rates
+ * and long running instances. Records are stored under the ID of their 
+ * {@link RawContent} or, if there is none, under a name generated by {@link UniqueNames}.
+ * 
+ * If compress is set, contents larger than the compression threshold are stored compressed.
+ */
+public class SegmentStoreAppender<E> extends AbstractAppender<E> {
+
+	private static final FileSize DEFAULT_MAX_SEGMENT_SIZE = FileSize.valueOf("64MB");
+
+	private final LazyVar<Path> folder = new LazyVar<>("folder");
+	private final LazyVar<Layout<E>> layout = new LazyVar<>("layout");
+
+	private volatile FileSize maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+	private volatile boolean compress = false;
+	private volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private volatile int compressionThreshold = 1024;
+	private volatile @Nullable SegmentStore store;
+
+	public Layout<E> getLayout() {
+		return layout.get();
+	}
+
+	public void setLayout(final Layout<E> layout) {
+		this.layout.set(layout);
+	}
+
+	public String getFolder() {
+		return folder.get().toString();
+	}
+
+	public void setFolder(final String folder) {
+		this.folder.set(FileSystems.getDefault().getPath(folder).toAbsolutePath());
+	}
+
+	public FileSize getMaxSegmentSize() {
+		return maxSegmentSize;
+	}
+
+	/**
+	 * @param maxSegmentSize at most {@link SegmentStore#MAX_SEGMENT_SIZE}, 2 GB.
+	 */
+	public void setMaxSegmentSize(final FileSize maxSegmentSize) {
+		if (maxSegmentSize.getSize() < 1 || maxSegmentSize.getSize() > SegmentStore.MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException(format("Invalid maximum segment size {}.", maxSegmentSize));
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	public boolean isCompress() {
+		return compress;
+	}
+
+	public void setCompress(final boolean compress) {
+		this.compress = compress;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @param compressionLevel 0-9 or -1 for the default level.
+	 */
+	public void setCompressionLevel(final int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @param compressionThreshold contents up to this size in bytes are not compressed.
+	 */
+	public void setCompressionThreshold(final int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	@Override
+	public void start() {
+		try {
+			store = compress
+					? new SegmentStore(folder.get(), maxSegmentSize.getSize(), 
+							compressionLevel, compressionThreshold)
+					: new SegmentStore(folder.get(), maxSegmentSize.getSize());
+			super.start();
+		} catch (final IOException e) {
+			addError("Could not open segment store.", e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		try {
+			super.stop();
+		} finally {
+			final SegmentStore s = store;
+			if (s != null) {
+				try {
+					s.close();
+				} catch (final IOException e) {
+					addError("Could not close segment store.", e);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void append(final E event) throws IOException {
+		final long start = System.nanoTime();
+		final RawContent rawContent = EventContents.getRawContent(event);
+		final long timestamp = event instanceof ILoggingEvent 
+				? ((ILoggingEvent) event).getTimeStamp() 
+				: System.currentTimeMillis();
+		final String id = rawContent == null ? null : rawContent.getId();
+		store.append(id == null ? UniqueNames.next(timestamp) : id, timestamp, 
+				out -> EventContents.write(event, rawContent, layout, getContext(), out));
+		ServerMetrics.getInstance().persisted(System.nanoTime() - start);
+	}
+
+}
@@ -0,0 +1,111 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations. Each power of two is divided into 8 buckets, so a 
+ * percentile is at most 12.5% larger than the exact value. Recording a value increments
+ * one bucket and two {@link LongAdder}s. Percentiles are computed when a snapshot is taken.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		buckets.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) { }
+	}
+
+	/**
+	 * @return the percentiles of all values recorded so far. The snapshot is not atomic,
+	 * values recorded concurrently may be missing in some of its numbers.
+	 */
+	public LatencySnapshot getSnapshot() {
+		final long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		final long n = count.sum();
+		final long maximum = max.get();
+		//A bucket's upper bound may be above the largest value recorded in it:
+		return new LatencySnapshot(n, 
+				n == 0 ? 0 : toMicros(sum.sum() / n), 
+				toMicros(Math.min(maximum, percentile(counts, total, 0.5))), 
+				toMicros(Math.min(maximum, percentile(counts, total, 0.9))), 
+				toMicros(Math.min(maximum, percentile(counts, total, 0.99))), 
+				toMicros(Math.min(maximum, percentile(counts, total, 0.999))), 
+				toMicros(maximum));
+	}
+
+	static int index(final long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * @return the largest value that falls into the bucket.
+	 */
+	static long upperBound(final int index) {
+		if (index < SUB_BUCKETS) return index;
+		final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		final long width = 1L << (exponent - SUB_BUCKET_BITS);
+		final long lower = (SUB_BUCKETS + index % SUB_BUCKETS) * width;
+		return lower + (width - 1);
+	}
+
+	private static long percentile(final long[] counts, final long total, final double quantile) {
+		if (total == 0) return 0;
+		final long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return upperBound(i);
+		}
+		return upperBound(counts.length - 1);
+	}
+
+	private static long toMicros(final long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+}
@@ -0,0 +1,248 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of all SMTP servers and appenders of this JVM.
+ * 
+ * Recording only updates {@link LongAdder}s and {@link LatencyHistogram}s, so it does not 
+ * add contention between the sessions. Rates are computed from samples of the counters, 
+ * which are taken when the rates are read (at most one per second). If they are read less 
+ * often than once a minute, they cover the time since the last read.
+ */
+@ThreadSafe
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+	public static final String OBJECT_NAME = "org.zalando.testmailserver:type=ServerMetrics";
+
+	private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+	private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	private static final long RATE_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+	private final LongAdder connections = new LongAdder();
+	private final LongAdder transactions = new LongAdder();
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder recipients = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+	private final LatencyHistogram persistenceLatency = new LatencyHistogram();
+
+	@GuardedBy("samples")
+	private final ArrayDeque<Sample> samples = new ArrayDeque<>();
+
+	public static ServerMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server as {@value #OBJECT_NAME}, 
+	 * unless they are registered already.
+	 */
+	public static void register() throws JMException {
+		final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(OBJECT_NAME);
+		if (mBeanServer.isRegistered(name)) return;
+		try {
+			mBeanServer.registerMBean(INSTANCE, name);
+		} catch (final InstanceAlreadyExistsException e) {
+			//Registered concurrently.
+		}
+	}
+
+	ServerMetrics() {
+		samples.add(sample(System.nanoTime()));
+	}
+
+	public void connectionAccepted() {
+		connections.increment();
+	}
+
+	public void transactionStarted() {
+		transactions.increment();
+	}
+
+	public void recipientAccepted() {
+		recipients.increment();
+	}
+
+	/**
+	 * @param startNanos the {@link System#nanoTime()} when the connection has been accepted,
+	 * or of the MAIL command for later transactions of the connection.
+	 */
+	public void messageDelivered(final long size, final long startNanos) {
+		messages.increment();
+		bytes.add(size);
+		deliveryLatency.record(System.nanoTime() - startNanos);
+	}
+
+	public void rejected() {
+		rejections.increment();
+	}
+
+	public void failed() {
+		errors.increment();
+	}
+
+	public void persisted(final long nanos) {
+		persistenceLatency.record(nanos);
+	}
+
+	@Override
+	public long getConnections() {
+		return connections.sum();
+	}
+
+	@Override
+	public long getTransactions() {
+		return transactions.sum();
+	}
+
+	@Override
+	public long getMessages() {
+		return messages.sum();
+	}
+
+	@Override
+	public long getRecipients() {
+		return recipients.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytes.sum();
+	}
+
+	@Override
+	public long getRejections() {
+		return rejections.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public double getConnectionsPerSecond() {
+		final Sample[] window = window();
+		return rate(window[0].connections, window[1].connections, window);
+	}
+
+	@Override
+	public double getTransactionsPerSecond() {
+		final Sample[] window = window();
+		return rate(window[0].transactions, window[1].transactions, window);
+	}
+
+	@Override
+	public double getMessagesPerSecond() {
+		final Sample[] window = window();
+		return rate(window[0].messages, window[1].messages, window);
+	}
+
+	@Override
+	public double getRecipientsPerSecond() {
+		final Sample[] window = window();
+		return rate(window[0].recipients, window[1].recipients, window);
+	}
+
+	@Override
+	public double getBytesPerSecond() {
+		final Sample[] window = window();
+		return rate(window[0].bytes, window[1].bytes, window);
+	}
+
+	@Override
+	public LatencySnapshot getDeliveryLatency() {
+		return deliveryLatency.getSnapshot();
+	}
+
+	@Override
+	public LatencySnapshot getPersistenceLatency() {
+		return persistenceLatency.getSnapshot();
+	}
+
+	/**
+	 * @return the oldest sample within the rate window, and a current one.
+	 */
+	private Sample[] window() {
+		final long now = System.nanoTime();
+		synchronized (samples) {
+			if (now - samples.getLast().nanos >= SAMPLE_INTERVAL) samples.addLast(sample(now));
+			//Keep one sample that is at least RATE_WINDOW old, as the start of the window.
+			while (samples.size() > 2) {
+				final Iterator<Sample> oldest = samples.iterator();
+				oldest.next();
+				if (now - oldest.next().nanos < RATE_WINDOW) break;
+				samples.removeFirst();
+			}
+			return new Sample[]{samples.getFirst(), sample(now)};
+		}
+	}
+
+	private static double rate(final long first, final long last, final Sample[] window) {
+		final long nanos = window[1].nanos - window[0].nanos;
+		if (nanos <= 0) return 0;
+		return (last - first) * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private Sample sample(final long nanos) {
+		return new Sample(nanos, connections.sum(), transactions.sum(), messages.sum(), recipients.sum(), bytes.sum());
+	}
+
+	private static final class Sample {
+		private final long nanos;
+		private final long connections;
+		private final long transactions;
+		private final long messages;
+		private final long recipients;
+		private final long bytes;
+
+		private Sample(final long nanos, final long connections, final long transactions, final long messages, 
+				final long recipients, final long bytes) {
+			this.nanos = nanos;
+			this.connections = connections;
+			this.transactions = transactions;
+			this.messages = messages;
+			this.recipients = recipients;
+			this.bytes = bytes;
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+/**
+ * Management interface of {@link ServerMetrics}. Counters are totals since the JVM started,
+ * rates are averaged over about the last minute.
+ */
+public interface ServerMetricsMXBean {
+
+	long getConnections();
+
+	long getTransactions();
+
+	long getMessages();
+
+	long getRecipients();
+
+	long getBytesReceived();
+
+	/**
+	 * @return the number of SMTP commands and connections that have been refused, for example
+	 * because a queue or the connection limit was full.
+	 */
+	long getRejections();
+
+	/**
+	 * @return the number of deliveries that failed with an unexpected exception.
+	 */
+	long getErrors();
+
+	double getConnectionsPerSecond();
+
+	double getTransactionsPerSecond();
+
+	double getMessagesPerSecond();
+
+	double getRecipientsPerSecond();
+
+	double getBytesPerSecond();
+
+	/**
+	 * @return the time from accepting the connection until the message has been delivered to the log
+	 * and the stores. Later messages of the same connection are measured from their MAIL command.
+	 */
+	LatencySnapshot getDeliveryLatency();
+
+	/**
+	 * @return the time the message log appenders need to write a message.
+	 */
+	LatencySnapshot getPersistenceLatency();
+
+}
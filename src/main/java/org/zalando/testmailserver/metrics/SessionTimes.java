@@ -0,0 +1,52 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+/**
+ * Implemented by the {@link org.subethamail.smtp.MessageContext} or the socket of a session 
+ * if the front end knows when the session has reached these phases, for {@link SessionTrace}s
+ * and the delivery latency of the {@link ServerMetrics}.
+ */
+public interface SessionTimes {
+
+	/**
+	 * @return the {@link System#nanoTime()} when the connection has been accepted.
+	 */
+	long getConnectedNanos();
+
+	/**
+	 * @return the {@link System#nanoTime()} of the last HELO or EHLO command, 0 if unknown.
+	 */
+	long getHeloNanos();
+
+	/**
+	 * Counts a transaction (MAIL command) of the session, called once per transaction.
+	 * 
+	 * @return the number of transactions started before in this session, -1 if unknown. 
+	 * The default implementation returns -1.
+	 */
+	default int startTransaction() {
+		return -1;
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Timestamps of the phases of one SMTP transaction. It is filled in by the session that 
+ * handles the transaction and handed over to the {@link SessionTracer} when it is complete.
+ */
+@NotThreadSafe
+public final class SessionTrace {
+
+	public static enum Result {
+		DELIVERED, REJECTED, FAILED, ABORTED
+	}
+
+	private final @Nullable String remoteAddress;
+	private final long connected;
+	private final long helo;
+	private final long mail;
+	private long rcpt;
+	private long data;
+	private long received;
+	private long delivered;
+	private long size;
+	private int recipients;
+	private Result result = Result.ABORTED;
+
+	SessionTrace(@Nullable final String remoteAddress, final long connected, final long helo, final long mail) {
+		this.remoteAddress = remoteAddress;
+		this.connected = connected;
+		this.helo = helo;
+		this.mail = mail;
+	}
+
+	public void recipient() {
+		if (recipients++ == 0) rcpt = System.nanoTime();
+	}
+
+	public void dataStarted() {
+		data = System.nanoTime();
+	}
+
+	/**
+	 * The end of the DATA has been read. When messages are streamed to the log, this is
+	 * about the time the file has been written.
+	 */
+	public void dataReceived() {
+		if (received == 0) received = System.nanoTime();
+	}
+
+	public void delivered(final long size, final Result result) {
+		delivered = System.nanoTime();
+		this.size = size;
+		this.result = result;
+	}
+
+	/**
+	 * @return one line of key=value pairs. Times are in microseconds since the connection has
+	 * been accepted, or since the MAIL command if that is unknown. Phases that have not been 
+	 * reached are left out.
+	 */
+	@Override
+	public String toString() {
+		final long start = connected == 0 ? mail : connected;
+		final StringBuilder sb = new StringBuilder(160);
+		sb.append("remote=").append(remoteAddress);
+		append(sb, "helo", helo, start);
+		append(sb, "mail", mail, start);
+		append(sb, "rcpt", rcpt, start);
+		append(sb, "data", data, start);
+		append(sb, "received", received, start);
+		append(sb, "delivered", delivered, start);
+		sb.append(" rcpts=").append(recipients);
+		sb.append(" size=").append(size);
+		sb.append(" result=").append(result);
+		return sb.toString();
+	}
+
+	private static void append(final StringBuilder sb, final String phase, final long nanos, final long start) {
+		if (nanos == 0) return;
+		sb.append(' ').append(phase).append('=').append(TimeUnit.NANOSECONDS.toMicros(nanos - start));
+	}
+
+}
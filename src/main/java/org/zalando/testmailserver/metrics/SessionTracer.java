@@ -0,0 +1,174 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records {@link SessionTrace}s of a sample of the SMTP transactions and writes them to the 
+ * log {@value #TRACE_LOG_NAME} once per second, one line per transaction.
+ * 
+ * Sessions put completed traces into a ring buffer: claiming a slot is one atomic increment,
+ * so tracing does not make the sessions wait for each other or for the log. If the writer
+ * falls behind by more than the capacity of the ring, the oldest traces are overwritten 
+ * and counted as dropped.
+ */
+@ThreadSafe
+public final class SessionTracer implements AutoCloseable {
+
+	public static final String TRACE_LOG_NAME = "org.zalando.testmailserver.trace";
+
+	private static final Logger LOG = LoggerFactory.getLogger(SessionTracer.class);
+	private static final Logger TRACE_LOG = LoggerFactory.getLogger(TRACE_LOG_NAME);
+
+	private static final long DUMP_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+
+	private final int sampling;
+	private final Consumer<? super SessionTrace> output;
+	private final AtomicReferenceArray<Slot> ring;
+	private final int mask;
+	private final AtomicLong published = new AtomicLong();
+	//Only used by the writer thread:
+	private long written = 0;
+	private long dropped = 0;
+	private final Thread writer;
+	private volatile boolean running = false;
+
+	/**
+	 * @param sampling 1 to trace every transaction, n to trace about every n-th.
+	 * @param capacity the size of the ring buffer, rounded up to a power of two.
+	 */
+	public SessionTracer(final int sampling, final int capacity) {
+		this(sampling, capacity, trace -> TRACE_LOG.info("{}", trace));
+	}
+
+	SessionTracer(final int sampling, final int capacity, final Consumer<? super SessionTrace> output) {
+		if (sampling < 1) throw new IllegalArgumentException("sampling must be positive.");
+		if (capacity < 1) throw new IllegalArgumentException("capacity must be positive.");
+		this.sampling = sampling;
+		this.output = output;
+		int size = 1;
+		while (size < capacity) size *= 2;
+		ring = new AtomicReferenceArray<>(size);
+		mask = size - 1;
+		writer = new Thread(this::run, "session-trace");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Starts a trace at the MAIL command, if the transaction is sampled.
+	 * 
+	 * @param times the connection times, if the front end knows them.
+	 * @return null if the transaction is not traced.
+	 */
+	public @Nullable SessionTrace begin(@Nullable final SocketAddress remoteAddress, @Nullable final SessionTimes times) {
+		if (sampling > 1 && ThreadLocalRandom.current().nextInt(sampling) != 0) return null;
+		return new SessionTrace(remoteAddress == null ? null : remoteAddress.toString(), 
+				times == null ? 0 : times.getConnectedNanos(), times == null ? 0 : times.getHeloNanos(), 
+				System.nanoTime());
+	}
+
+	/**
+	 * Hands over a completed trace. The caller must not change it afterwards.
+	 */
+	public void publish(final SessionTrace trace) {
+		final long sequence = published.getAndIncrement();
+		ring.set((int) sequence & mask, new Slot(sequence, trace));
+	}
+
+	public void start() {
+		running = true;
+		writer.start();
+	}
+
+	/**
+	 * Writes the remaining traces and stops the writer.
+	 */
+	@Override
+	public void close() throws InterruptedException {
+		running = false;
+		writer.interrupt();
+		writer.join();
+	}
+
+	/**
+	 * @return the number of traces that have been overwritten before they could be written.
+	 */
+	long getDroppedCount() {
+		return dropped;
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				Thread.sleep(DUMP_INTERVAL);
+			} catch (final InterruptedException e) {
+				//Stopped, write the rest.
+			}
+			dump();
+		}
+		final long dropped = getDroppedCount();
+		if (dropped > 0) LOG.warn("{} session traces have been dropped because the log could not keep up.", dropped);
+	}
+
+	/**
+	 * Writes the traces published since the last call. A slot that has not been filled yet
+	 * is left for the next call.
+	 */
+	void dump() {
+		final long end = published.get();
+		if (end - written > ring.length()) {
+			dropped += end - ring.length() - written;
+			written = end - ring.length();
+		}
+		while (written < end) {
+			final Slot slot = ring.get((int) written & mask);
+			if (slot == null || slot.sequence < written) break;
+			if (slot.sequence == written) output.accept(slot.trace);
+			else dropped++;
+			written++;
+		}
+	}
+
+	private static final class Slot {
+		private final long sequence;
+		private final SessionTrace trace;
+
+		private Slot(final long sequence, final SessionTrace trace) {
+			this.sequence = sequence;
+			this.trace = trace;
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.nio;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Finds the end of the DATA (a line containing only a dot) and removes the dot that 
+ * the client has added in front of lines starting with a dot (RFC 5321, 4.5.2).
+ * The decoder keeps its state between calls, so the input may be split anywhere.
+ */
+@NotThreadSafe
+final class DataDecoder {
+
+	private static enum State {
+		LINE_START, DOT, DOT_CR, MIDDLE, CR, END
+	}
+
+	private State state = State.LINE_START;
+
+	/**
+	 * Decodes bytes from in until in is empty or the end of the DATA is reached. Bytes after
+	 * the end are left in the buffer.
+	 * 
+	 * @param out must have room for in.remaining() + 2 bytes.
+	 * @return the number of bytes written to out.
+	 */
+	int decode(final ByteBuffer in, final byte[] out) {
+		int length = 0;
+		while (state != State.END && in.hasRemaining()) {
+			final byte b = in.get();
+			switch (state) {
+			case LINE_START:
+				if (b == '.') state = State.DOT;
+				else length = middle(b, out, length);
+				break;
+			case DOT:
+				if (b == '\r') state = State.DOT_CR;
+				//The leading dot is removed:
+				else length = middle(b, out, length);
+				break;
+			case DOT_CR:
+				if (b == '\n') state = State.END;
+				else {
+					out[length++] = '\r';
+					state = State.CR;
+					length = afterCr(b, out, length);
+				}
+				break;
+			case CR:
+				length = afterCr(b, out, length);
+				break;
+			default:
+				length = middle(b, out, length);
+			}
+		}
+		return length;
+	}
+
+	boolean isEnd() {
+		return state == State.END;
+	}
+
+	private int middle(final byte b, final byte[] out, final int length) {
+		out[length] = b;
+		state = b == '\r' ? State.CR : State.MIDDLE;
+		return length + 1;
+	}
+
+	private int afterCr(final byte b, final byte[] out, final int length) {
+		out[length] = b;
+		state = b == '\n' ? State.LINE_START : b == '\r' ? State.CR : State.MIDDLE;
+		return length + 1;
+	}
+
+}
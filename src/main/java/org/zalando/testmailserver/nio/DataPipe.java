@@ -0,0 +1,173 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Passes the DATA of a message from an event loop to a worker thread.
+ * 
+ * The event loop never blocks: {@link #offer(byte[], int, int)} always accepts the bytes and
+ * tells the caller when the buffered amount exceeds the capacity, so that it stops reading
+ * from the connection. When the worker has read enough to drop below half of the capacity, the 
+ * drained callback is run (on the worker thread) to resume reading.
+ */
+@ThreadSafe
+final class DataPipe extends InputStream {
+
+	private final int capacity;
+	private final Runnable drained;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	@GuardedBy("lock")
+	private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+	@GuardedBy("lock")
+	private int position = 0;
+	@GuardedBy("lock")
+	private long buffered = 0;
+	@GuardedBy("lock")
+	private boolean finished = false;
+	@GuardedBy("lock")
+	private boolean closed = false;
+	@GuardedBy("lock")
+	private boolean full = false;
+
+	DataPipe(final int capacity, final Runnable drained) {
+		this.capacity = capacity;
+		this.drained = drained;
+	}
+
+	/**
+	 * Called by the event loop. Bytes offered after the reader has closed the stream are discarded.
+	 * 
+	 * @return false if the caller should stop offering until the drained callback has been run.
+	 */
+	boolean offer(final byte[] bytes, final int offset, final int length) {
+		if (length == 0) return true;
+		final byte[] chunk = new byte[length];
+		System.arraycopy(bytes, offset, chunk, 0, length);
+		lock.lock();
+		try {
+			if (closed) return true;
+			chunks.add(chunk);
+			buffered += length;
+			available.signal();
+			full = buffered >= capacity;
+			return !full;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the event loop at the end of the DATA.
+	 */
+	void finish() {
+		lock.lock();
+		try {
+			finished = true;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) return 0;
+		boolean resume = false;
+		final int result;
+		lock.lock();
+		try {
+			while (chunks.isEmpty() && !finished && !closed) {
+				available.awaitUninterruptibly();
+			}
+			if (closed) throw new IOException("Stream closed.");
+			final @Nullable byte[] chunk = chunks.peek();
+			if (chunk == null) return -1;
+			result = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, result);
+			position += result;
+			if (position == chunk.length) {
+				chunks.remove();
+				position = 0;
+			}
+			buffered -= result;
+			if (full && buffered < capacity / 2) {
+				full = false;
+				resume = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (resume) drained.run();
+		return result;
+	}
+
+	@Override
+	public int available() {
+		lock.lock();
+		try {
+			return (int) Math.min(buffered, Integer.MAX_VALUE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the worker, or by the event loop to abort the message. The rest of the DATA 
+	 * is discarded, and a waiting reader fails.
+	 */
+	@Override
+	public void close() {
+		boolean resume;
+		lock.lock();
+		try {
+			closed = true;
+			available.signalAll();
+			chunks.clear();
+			buffered = 0;
+			resume = full;
+			full = false;
+		} finally {
+			lock.unlock();
+		}
+		if (resume) drained.run();
+	}
+
+}
@@ -0,0 +1,175 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread that waits for I/O on its channels with a {@link Selector} and runs the handlers
+ * attached to the selection keys. Other threads pass work to the loop with {@link #execute(Runnable)}.
+ * The handlers are regularly asked to check their timeouts.
+ */
+final class EventLoop implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EventLoop.class);
+
+	/**
+	 * Attachment of a selection key.
+	 */
+	static interface Handler {
+		void handle(SelectionKey key) throws IOException;
+
+		/**
+		 * Closes the handler if it has waited too long.
+		 */
+		default void checkTimeout(final long nowNanos) {
+		}
+
+		void close();
+	}
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	/**
+	 * 0 if the timeouts are not checked.
+	 */
+	private long checkMillis = 0;
+
+	EventLoop(final String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * @param checkMillis the interval of the timeout checks, 0 for none.
+	 */
+	void start(final long checkMillis) {
+		this.checkMillis = checkMillis;
+		thread.start();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Runs the task in the loop thread.
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		final long checkNanos = TimeUnit.MILLISECONDS.toNanos(checkMillis);
+		long nextCheck = System.nanoTime() + checkNanos;
+		while (running) {
+			try {
+				selector.select(checkMillis);
+				runTasks();
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					final Handler handler = (Handler) key.attachment();
+					try {
+						handler.handle(key);
+					} catch (final IOException | CancelledKeyException e) {
+						LOG.debug("Closing connection: {}", e.toString());
+						handler.close();
+					} catch (final RuntimeException e) {
+						LOG.error("Unexpected error, closing connection.", e);
+						handler.close();
+					}
+				}
+				if (checkNanos > 0) {
+					final long now = System.nanoTime();
+					if (now - nextCheck >= 0) {
+						nextCheck = now + checkNanos;
+						checkTimeouts(now);
+					}
+				}
+			} catch (final IOException e) {
+				LOG.error("Selector failed.", e);
+			} catch (final RuntimeException e) {
+				LOG.error("Unexpected error in event loop.", e);
+			}
+		}
+		for (final SelectionKey key : selector.keys()) {
+			((Handler) key.attachment()).close();
+		}
+		try {
+			selector.close();
+		} catch (final IOException e) {
+			LOG.warn("Could not close selector.", e);
+		}
+	}
+
+	private void checkTimeouts(final long now) {
+		for (final SelectionKey key : selector.keys()) {
+			if (!key.isValid()) continue;
+			final Handler handler = (Handler) key.attachment();
+			try {
+				handler.checkTimeout(now);
+			} catch (final RuntimeException e) {
+				LOG.error("Unexpected error, closing connection.", e);
+				handler.close();
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				LOG.error("Task failed.", e);
+			}
+		}
+	}
+
+	void stop() throws InterruptedException {
+		running = false;
+		selector.wakeup();
+		thread.join();
+	}
+
+}
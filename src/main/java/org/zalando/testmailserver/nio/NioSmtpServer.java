@@ -0,0 +1,268 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.util.ReusePort;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * SMTP server that handles all connections with a few event loop threads, so that
+ * idle connections only cost a little memory. Only the calls of the {@link MessageHandlerFactory}'s
+ * handlers, which may block, are run by the worker executor.
+ * 
+ * Supports the commands of RFC 5321 needed for delivery, without AUTH and STARTTLS.
+ * 
+ * The server can listen on several ports, and can open several server sockets per port 
+ * with SO_REUSEPORT, so that the kernel spreads a burst of new connections over several 
+ * acceptors. The acceptors are distributed over the event loops.
+ * 
+ * Like subethasmtp, a connection is closed if the client does not send anything for the 
+ * connection timeout, 60 seconds by default. Time spent in the message handlers does not count.
+ */
+public final class NioSmtpServer implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(NioSmtpServer.class);
+
+	private static final int DEFAULT_CONNECTION_TIMEOUT = 60000;
+
+	private final MessageHandlerFactory handlerFactory;
+	private final String hostName;
+	private final List<Integer> ports;
+	private final int acceptorsPerPort;
+	private final ExecutorService workers;
+	private final int maxConnections;
+	private volatile int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+	private final List<EventLoop> loops = new ArrayList<>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private volatile List<ServerSocketChannel> serverChannels = Collections.emptyList();
+
+	/**
+	 * @param workers run the message handlers, shut down by {@link #close()}.
+	 */
+	public NioSmtpServer(final MessageHandlerFactory handlerFactory, final String hostName, final int port, 
+			final int eventLoops, final ExecutorService workers, final int maxConnections) {
+		this(handlerFactory, hostName, ImmutableList.of(port), 1, eventLoops, workers, maxConnections);
+	}
+
+	/**
+	 * @param ports the ports to listen on, 0 for any free port.
+	 * @param acceptorsPerPort the number of server sockets per port, more than 1 requires SO_REUSEPORT.
+	 * @param workers run the message handlers, shut down by {@link #close()}.
+	 * @param maxConnections the limit for all ports together.
+	 */
+	public NioSmtpServer(final MessageHandlerFactory handlerFactory, final String hostName, 
+			final List<Integer> ports, final int acceptorsPerPort, 
+			final int eventLoops, final ExecutorService workers, final int maxConnections) {
+		if (ports.isEmpty()) throw new IllegalArgumentException("No port.");
+		if (acceptorsPerPort < 1) throw new IllegalArgumentException("acceptorsPerPort must be positive.");
+		if (eventLoops < 1) throw new IllegalArgumentException("eventLoops must be positive.");
+		if (acceptorsPerPort > 1 && !ReusePort.isSupported())
+			throw new UnsupportedOperationException("Several acceptors per port require SO_REUSEPORT.");
+		this.handlerFactory = handlerFactory;
+		this.hostName = hostName;
+		this.ports = ImmutableList.copyOf(ports);
+		this.acceptorsPerPort = acceptorsPerPort;
+		this.workers = workers;
+		this.maxConnections = maxConnections;
+		for (int i = 0; i < eventLoops; i++) {
+			try {
+				loops.add(new EventLoop("smtp-loop-" + i));
+			} catch (final IOException e) {
+				throw new IllegalStateException("Could not open selector.", e);
+			}
+		}
+	}
+
+	/**
+	 * Sets how long a connection may wait for the client, in milliseconds, 0 for no limit. 
+	 * Must be called before {@link #start()}.
+	 */
+	public void setConnectionTimeout(final int connectionTimeout) {
+		if (connectionTimeout < 0) throw new IllegalArgumentException("connectionTimeout must not be negative.");
+		this.connectionTimeout = connectionTimeout;
+	}
+
+	public int getConnectionTimeout() {
+		return connectionTimeout;
+	}
+
+	public void start() throws IOException {
+		final List<ServerSocketChannel> channels = new ArrayList<>();
+		try {
+			for (final int port : ports) {
+				int boundPort = port;
+				for (int i = 0; i < acceptorsPerPort; i++) {
+					final ServerSocketChannel channel = ServerSocketChannel.open();
+					channels.add(channel);
+					if (acceptorsPerPort > 1) ReusePort.enable(channel);
+					channel.bind(new InetSocketAddress(boundPort), 1024);
+					channel.configureBlocking(false);
+					// The other acceptors of an ephemeral port must join the port chosen by the first one.
+					boundPort = channel.socket().getLocalPort();
+				}
+			}
+		} catch (final IOException | RuntimeException e) {
+			for (final ServerSocketChannel channel : channels) closeQuietly(channel);
+			throw e;
+		}
+		serverChannels = ImmutableList.copyOf(channels);
+		//A connection is closed at most a tenth of the timeout late:
+		final long checkMillis = connectionTimeout == 0 ? 0 : Math.max(1, Math.min(1000, connectionTimeout / 10));
+		for (final EventLoop loop : loops) loop.start(checkMillis);
+		for (int i = 0; i < channels.size(); i++) {
+			final ServerSocketChannel channel = channels.get(i);
+			final EventLoop acceptLoop = loops.get(i % loops.size());
+			acceptLoop.execute(() -> {
+				try {
+					channel.register(acceptLoop.getSelector(), SelectionKey.OP_ACCEPT, new Acceptor(channel));
+				} catch (final IOException e) {
+					LOG.error("Could not register server socket.", e);
+				}
+			});
+		}
+		LOG.info("SMTP server listening on ports {} with {} acceptors per port and {} event loops.", 
+				getPorts(), acceptorsPerPort, loops.size());
+	}
+
+	/**
+	 * @return the first bound port, useful if the server has been created with port 0.
+	 */
+	public int getPort() {
+		return getPorts().get(0);
+	}
+
+	/**
+	 * @return the bound ports, in the order of the constructor argument.
+	 */
+	public List<Integer> getPorts() {
+		final List<ServerSocketChannel> channels = serverChannels;
+		if (channels.isEmpty()) return ports;
+		final ImmutableList.Builder<Integer> bound = ImmutableList.builder();
+		for (int i = 0; i < channels.size(); i += acceptorsPerPort) 
+			bound.add(channels.get(i).socket().getLocalPort());
+		return bound.build();
+	}
+
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	String getHostName() {
+		return hostName;
+	}
+
+	String getSoftwareName() {
+		return "testmailserver";
+	}
+
+	MessageHandlerFactory getHandlerFactory() {
+		return handlerFactory;
+	}
+
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	void connectionClosed() {
+		connections.decrementAndGet();
+	}
+
+	@Override
+	public void close() throws IOException, InterruptedException {
+		for (final ServerSocketChannel channel : serverChannels) closeQuietly(channel);
+		for (final EventLoop loop : loops) loop.stop();
+		workers.shutdown();
+		if (!workers.awaitTermination(10, TimeUnit.SECONDS))
+			LOG.warn("Message handlers did not finish within 10 seconds.");
+	}
+
+	private final class Acceptor implements EventLoop.Handler {
+
+		private final ServerSocketChannel channel;
+
+		private Acceptor(final ServerSocketChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void handle(final SelectionKey key) throws IOException {
+			SocketChannel client;
+			while ((client = channel.accept()) != null) {
+				client.configureBlocking(false);
+				client.socket().setTcpNoDelay(true);
+				final boolean tooMany = connections.incrementAndGet() > maxConnections;
+				if (tooMany) ServerMetrics.getInstance().rejected();
+				else ServerMetrics.getInstance().connectionAccepted();
+				final EventLoop loop = loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
+				final SocketChannel accepted = client;
+				loop.execute(() -> {
+					try {
+						final SmtpConnection connection = new SmtpConnection(NioSmtpServer.this, loop, accepted);
+						if (tooMany) connection.reject("421 Too many connections, try again later");
+						else connection.greet();
+					} catch (final IOException e) {
+						LOG.warn("Could not register connection.", e);
+						connectionClosed();
+						try {
+							accepted.close();
+						} catch (final IOException ce) {
+							LOG.debug("Could not close connection.", ce);
+						}
+					}
+				});
+			}
+		}
+
+		@Override
+		public void close() {
+			closeQuietly(channel);
+		}
+	}
+
+	private static void closeQuietly(final ServerSocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			LOG.debug("Could not close server socket.", e);
+		}
+	}
+
+}
@@ -0,0 +1,662 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.nio;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.cert.Certificate;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.AuthenticationHandler;
+import org.subethamail.smtp.DropConnectionException;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.server.SMTPServer;
+import org.zalando.testmailserver.metrics.SessionTimes;
+
+/**
+ * One SMTP session. All methods are called by the event loop thread. The {@link MessageHandler}
+ * may block, so it is only called from worker threads, while reading from the connection is 
+ * suspended. Only the DATA is read while a worker is busy with the message, and passed to it 
+ * through a {@link DataPipe}.
+ * 
+ * Supports PIPELINING (RFC 2920): replies are only sent when all buffered commands have been
+ * processed, and CHUNKING (RFC 3030): BDAT chunks are passed to the worker unchanged.
+ * 
+ * The connection is closed when the client has been idle for the server's connection timeout,
+ * whether between commands or in the middle of the DATA.
+ */
+@NotThreadSafe
+final class SmtpConnection implements EventLoop.Handler, MessageContext, SessionTimes {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SmtpConnection.class);
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int PIPE_CAPACITY = 256 * 1024;
+
+	private static enum State {
+		COMMAND, DATA, CHUNK
+	}
+
+	private final NioSmtpServer server;
+	private final EventLoop loop;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+
+	private final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+	private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+	private final byte[] decoded = new byte[BUFFER_SIZE + 2];
+
+	private State state = State.COMMAND;
+	/**
+	 * A worker is busy with the message handler, commands are not processed.
+	 */
+	private boolean suspended = false;
+	/**
+	 * The worker does not read the DATA fast enough.
+	 */
+	private boolean dataBlocked = false;
+	private boolean closing = false;
+	private boolean closed = false;
+
+	/**
+	 * 0 for no timeout.
+	 */
+	private final long timeoutNanos;
+	/**
+	 * The last I/O, or the end of a wait for a worker.
+	 */
+	private long activityNanos;
+
+	private final long connectedNanos = System.nanoTime();
+	private volatile long heloNanos = 0;
+	/**
+	 * Counted by the workers, one transaction at a time.
+	 */
+	private volatile int transactions = 0;
+	private @Nullable String helo;
+	private @Nullable MessageHandler handler;
+	private int recipients = 0;
+
+	private @Nullable DataPipe pipe;
+	private @Nullable DataDecoder decoder;
+	private boolean dataEnded;
+	private @Nullable String dataResponse;
+	/**
+	 * Incremented for every message, to ignore the result of an aborted BDAT transfer.
+	 */
+	private int transfer = 0;
+
+	/**
+	 * Remaining bytes of the current BDAT chunk.
+	 */
+	private long chunkRemaining;
+	private boolean lastChunk;
+	/**
+	 * Reply to send after a chunk that has been discarded because of an error.
+	 */
+	private @Nullable String chunkError;
+
+	SmtpConnection(final NioSmtpServer server, final EventLoop loop, final SocketChannel channel) 
+			throws IOException {
+		this.server = server;
+		this.loop = loop;
+		this.channel = channel;
+		timeoutNanos = TimeUnit.MILLISECONDS.toNanos(server.getConnectionTimeout());
+		activityNanos = connectedNanos;
+		key = channel.register(loop.getSelector(), 0, this);
+	}
+
+	void greet() {
+		reply("220 " + server.getHostName() + " ESMTP " + server.getSoftwareName());
+		flush();
+	}
+
+	void reject(final String response) {
+		reply(response);
+		closing = true;
+		flush();
+	}
+
+	@Override
+	public void handle(final SelectionKey selectedKey) throws IOException {
+		activityNanos = System.nanoTime();
+		if (selectedKey.isReadable()) {
+			if (channel.read(in) == -1) {
+				close();
+				return;
+			}
+			process();
+		}
+		if (!closed && selectedKey.isWritable()) flush();
+	}
+
+	@Override
+	public void checkTimeout(final long nowNanos) {
+		//The client is not expected to send anything while a worker is busy:
+		if (timeoutNanos == 0 || suspended || dataBlocked || nowNanos - activityNanos < timeoutNanos) return;
+		if (closing) {
+			//The client does not even read the goodbye:
+			close();
+			return;
+		}
+		LOG.debug("Connection timed out.");
+		activityNanos = nowNanos;
+		abortTransfer();
+		endTransaction();
+		reject("421 Timeout waiting for data from client.");
+	}
+
+	private void process() {
+		in.flip();
+		try {
+			//An empty chunk (BDAT 0) is complete without any further input:
+			while (!suspended && !dataBlocked && !closing 
+					&& (in.hasRemaining() || (state == State.CHUNK && chunkRemaining == 0))) {
+				if (state == State.DATA) processData();
+				else if (state == State.CHUNK) processChunk();
+				else if (!processCommand()) break;
+			}
+		} finally {
+			in.compact();
+		}
+		//Pipelined commands are waiting, their replies are sent together:
+		if (suspended && in.position() > 0) updateInterest(false);
+		else flush();
+	}
+
+	private void processData() {
+		final DataDecoder d = decoder;
+		final DataPipe p = pipe;
+		if (d == null || p == null) throw new IllegalStateException();
+		final int length = d.decode(in, decoded);
+		if (!p.offer(decoded, 0, length)) dataBlocked = true;
+		if (d.isEnd()) {
+			p.finish();
+			dataEnded = true;
+			state = State.COMMAND;
+			if (dataResponse != null) finishData();
+			else suspended = true;
+		}
+	}
+
+	private void processChunk() {
+		final int length = (int) Math.min(chunkRemaining, in.remaining());
+		final DataPipe p = pipe;
+		if (p != null && chunkError == null && !p.offer(in.array(), in.position(), length)) dataBlocked = true;
+		in.position(in.position() + length);
+		chunkRemaining -= length;
+		if (chunkRemaining > 0) return;
+		state = State.COMMAND;
+		final String error = chunkError;
+		if (error != null) {
+			chunkError = null;
+			reply(error);
+		} else if (p == null) {
+			throw new IllegalStateException();
+		} else if (lastChunk) {
+			p.finish();
+			dataEnded = true;
+			if (dataResponse != null) finishData();
+			else suspended = true;
+		} else {
+			reply("250 Ok");
+		}
+	}
+
+	/**
+	 * @return false if there is no complete line in the buffer.
+	 */
+	private boolean processCommand() {
+		int end = -1;
+		for (int i = in.position(); i < in.limit(); i++) {
+			if (in.get(i) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			if (in.position() == 0 && in.limit() == in.capacity()) {
+				in.position(in.limit());
+				reply("500 Line too long");
+			}
+			return false;
+		}
+		int lineEnd = end;
+		if (lineEnd > in.position() && in.get(lineEnd - 1) == '\r') lineEnd--;
+		final String line = new String(in.array(), in.position(), lineEnd - in.position(), ISO_8859_1);
+		in.position(end + 1);
+		command(line);
+		return true;
+	}
+
+	private void command(final String line) {
+		final int space = line.indexOf(' ');
+		final String verb = (space < 0 ? line : line.substring(0, space)).toUpperCase(Locale.ROOT);
+		final String argument = space < 0 ? "" : line.substring(space + 1).trim();
+		if (pipe != null && !verb.equals("BDAT") && !verb.equals("RSET") && !verb.equals("QUIT") 
+				&& !verb.equals("NOOP")) {
+			reply("503 5.5.1 Error: BDAT expected");
+			return;
+		}
+		switch (verb) {
+		case "HELO":
+			endTransaction();
+			heloNanos = System.nanoTime();
+			helo = argument;
+			reply("250 " + server.getHostName());
+			break;
+		case "EHLO":
+			endTransaction();
+			heloNanos = System.nanoTime();
+			helo = argument;
+			reply("250-" + server.getHostName() + "\r\n250-8BITMIME\r\n250-PIPELINING\r\n250-CHUNKING\r\n250 Ok");
+			break;
+		case "MAIL":
+			mail(argument);
+			break;
+		case "RCPT":
+			rcpt(argument);
+			break;
+		case "DATA":
+			data();
+			break;
+		case "BDAT":
+			bdat(argument);
+			break;
+		case "RSET":
+			abortTransfer();
+			endTransaction();
+			reply("250 Ok");
+			break;
+		case "NOOP":
+			reply("250 Ok");
+			break;
+		case "VRFY":
+			reply("252 Cannot VRFY user, but will accept message and attempt delivery");
+			break;
+		case "QUIT":
+			abortTransfer();
+			endTransaction();
+			reply("221 Bye");
+			closing = true;
+			break;
+		default:
+			reply("500 Command not recognized");
+		}
+	}
+
+	private void mail(final String argument) {
+		if (handler != null) {
+			reply("503 5.5.1 Sender already specified.");
+			return;
+		}
+		final String from = address(argument, "FROM:");
+		if (from == null) {
+			reply("501 Syntax: MAIL FROM: <address>");
+			return;
+		}
+		final MessageHandler h = server.getHandlerFactory().create(this);
+		handler = h;
+		offload(() -> h.from(from), () -> { }, this::endTransaction);
+	}
+
+	private void rcpt(final String argument) {
+		final MessageHandler h = handler;
+		if (h == null) {
+			reply("503 5.5.1 Error: need MAIL command");
+			return;
+		}
+		final String recipient = address(argument, "TO:");
+		if (recipient == null) {
+			reply("501 Syntax: RCPT TO: <address>");
+			return;
+		}
+		offload(() -> h.recipient(recipient), () -> recipients++, () -> { });
+	}
+
+	private void data() {
+		final String error = checkTransaction();
+		if (error != null) {
+			reply(error);
+			return;
+		}
+		decoder = new DataDecoder();
+		state = State.DATA;
+		reply("354 End data with <CR><LF>.<CR><LF>");
+		startTransfer();
+	}
+
+	private void bdat(final String argument) {
+		final String[] arguments = argument.split(" +");
+		try {
+			chunkRemaining = Long.parseLong(arguments[0]);
+		} catch (final NumberFormatException e) {
+			reply("501 Syntax: BDAT <size> [LAST]");
+			return;
+		}
+		if (chunkRemaining < 0) {
+			reply("501 Syntax: BDAT <size> [LAST]");
+			return;
+		}
+		lastChunk = arguments.length > 1 && arguments[1].equalsIgnoreCase("LAST");
+		state = State.CHUNK;
+		if (pipe == null) {
+			//The chunk is read in any case, to stay in sync with the client:
+			chunkError = checkTransaction();
+			if (chunkError == null) startTransfer();
+		}
+	}
+
+	private @Nullable String checkTransaction() {
+		if (handler == null) return "503 5.5.1 Error: need MAIL command";
+		if (recipients == 0) return "503 Error: need RCPT command";
+		return null;
+	}
+
+	/**
+	 * Starts the worker that passes the DATA or BDAT chunks to the handler.
+	 */
+	private void startTransfer() {
+		final MessageHandler h = handler;
+		if (h == null) throw new IllegalStateException();
+		final int t = ++transfer;
+		final DataPipe p = new DataPipe(PIPE_CAPACITY, () -> loop.execute(this::resumeData));
+		//From now on, only the worker uses the handler:
+		handler = null;
+		pipe = p;
+		dataEnded = false;
+		dataResponse = null;
+		submit(() -> {
+			String response;
+			try {
+				h.data(p);
+				response = "250 Ok";
+			} catch (final DropConnectionException e) {
+				p.close();
+				h.done();
+				throw e;
+			} catch (final RejectException e) {
+				response = e.getErrorResponse();
+			} catch (final TooMuchDataException e) {
+				response = "552 5.3.4 Too much mail data.";
+			} catch (final IOException | RuntimeException e) {
+				LOG.warn("Could not deliver message.", e);
+				response = "451 Requested action aborted: local error in processing";
+			}
+			p.close();
+			h.done();
+			return response;
+		}, response -> {
+			if (t != transfer || pipe != p) return;
+			dataResponse = response;
+			if (dataEnded) finishData();
+		});
+	}
+
+	/**
+	 * Aborts an unfinished BDAT transfer.
+	 */
+	private void abortTransfer() {
+		final DataPipe p = pipe;
+		if (p != null) {
+			p.close();
+			pipe = null;
+			recipients = 0;
+		}
+	}
+
+	private void finishData() {
+		final String response = dataResponse;
+		if (response == null) throw new IllegalStateException();
+		reply(response);
+		suspended = false;
+		recipients = 0;
+		pipe = null;
+		decoder = null;
+		dataResponse = null;
+	}
+
+	private void resumeData() {
+		if (closed) return;
+		activityNanos = System.nanoTime();
+		dataBlocked = false;
+		process();
+	}
+
+	private static interface HandlerCall {
+		void run() throws RejectException;
+	}
+
+	/**
+	 * Runs a call of the message handler on a worker and replies with its result. 
+	 * Then runs accepted or rejected in the event loop.
+	 */
+	private void offload(final HandlerCall call, final Runnable accepted, final Runnable rejected) {
+		submit(() -> {
+			try {
+				call.run();
+				return null;
+			} catch (final DropConnectionException e) {
+				throw e;
+			} catch (final RejectException e) {
+				return e.getErrorResponse();
+			}
+		}, rejection -> {
+			suspended = false;
+			if (rejection == null) {
+				reply("250 Ok");
+				accepted.run();
+			} else {
+				reply(rejection);
+				rejected.run();
+			}
+		});
+	}
+
+	/**
+	 * Runs the call on a worker, then passes its result to then in the event loop.
+	 * Commands are not processed in the meantime.
+	 */
+	private void submit(final Callable<String> call, final Consumer<String> then) {
+		suspended = state == State.COMMAND;
+		try {
+			server.getWorkers().execute(() -> {
+				@Nullable String response;
+				boolean drop = false;
+				try {
+					response = call.call();
+				} catch (final DropConnectionException e) {
+					response = e.getErrorResponse();
+					drop = true;
+				} catch (final Exception e) {
+					LOG.error("Message handler failed.", e);
+					response = "451 Requested action aborted: local error in processing";
+				}
+				final String r = response;
+				final boolean d = drop;
+				loop.execute(() -> {
+					if (closed) {
+						endTransaction();
+						return;
+					}
+					activityNanos = System.nanoTime();
+					if (d) {
+						endTransaction();
+						reject(r == null ? "421 Closing connection" : r);
+					} else {
+						then.accept(r);
+						process();
+					}
+				});
+			});
+		} catch (final RejectedExecutionException e) {
+			reject("421 Service not available, closing transmission channel");
+		}
+	}
+
+	private void endTransaction() {
+		final MessageHandler h = handler;
+		handler = null;
+		recipients = 0;
+		if (h == null) return;
+		//done() may block, too:
+		try {
+			server.getWorkers().execute(() -> done(h));
+		} catch (final RejectedExecutionException e) {
+			//Shutting down, there is nothing left to block.
+			done(h);
+		}
+	}
+
+	private static void done(final MessageHandler h) {
+		try {
+			h.done();
+		} catch (final RuntimeException e) {
+			LOG.error("Message handler failed.", e);
+		}
+	}
+
+	private static @Nullable String address(final String argument, final String prefix) {
+		if (!argument.regionMatches(true, 0, prefix, 0, prefix.length())) return null;
+		final String rest = argument.substring(prefix.length()).trim();
+		if (rest.startsWith("<")) {
+			final int end = rest.indexOf('>');
+			return end < 0 ? null : rest.substring(1, end);
+		}
+		final int space = rest.indexOf(' ');
+		return space < 0 ? rest : rest.substring(0, space);
+	}
+
+	private void reply(final String response) {
+		out.add(ByteBuffer.wrap((response + "\r\n").getBytes(ISO_8859_1)));
+	}
+
+	/**
+	 * Writes as much of the pending output as possible and updates the interest set.
+	 */
+	private void flush() {
+		if (closed) return;
+		try {
+			if (!out.isEmpty()) {
+				//One gathering write for all pending replies:
+				channel.write(out.toArray(new ByteBuffer[out.size()]));
+				while (!out.isEmpty() && !out.peek().hasRemaining()) out.remove();
+			}
+		} catch (final IOException e) {
+			LOG.debug("Could not write: {}", e.toString());
+			close();
+			return;
+		}
+		if (closing && out.isEmpty()) {
+			close();
+			return;
+		}
+		updateInterest(!out.isEmpty());
+	}
+
+	private void updateInterest(final boolean write) {
+		int ops = 0;
+		if (!suspended && !dataBlocked && !closing) ops |= SelectionKey.OP_READ;
+		if (write) ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			LOG.debug("Could not close channel.", e);
+		}
+		final DataPipe p = pipe;
+		if (p != null) {
+			//The worker calls done():
+			p.close();
+		} else if (!suspended) {
+			endTransaction();
+		}
+		server.connectionClosed();
+	}
+
+	@Override
+	public @Nullable SMTPServer getSMTPServer() {
+		return null;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public @Nullable AuthenticationHandler getAuthenticationHandler() {
+		return null;
+	}
+
+	@Override
+	public @Nullable String getHelo() {
+		return helo;
+	}
+
+	@Override
+	public @Nullable Certificate[] getTlsPeerCertificates() {
+		return null;
+	}
+
+	@Override
+	public long getConnectedNanos() {
+		return connectedNanos;
+	}
+
+	@Override
+	public long getHeloNanos() {
+		return heloNanos;
+	}
+
+	@Override
+	public int startTransaction() {
+		return transactions++;
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Content-addressed files with reference counts. Each blob is stored once under 
+ * the SHA-256 of its content, in a sub folder named after the first two hex digits.
+ * 
+ * The reference counts are only kept in memory, the owner has to {@link #retain} the 
+ * blobs it references after opening the store and then {@link #deleteUnreferenced()}.
+ */
+@ThreadSafe
+final class BlobStore {
+
+	static final int KEY_LENGTH = 32;
+
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	private final Path folder;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	@GuardedBy("lock")
+	private final Map<String, Integer> refCounts = new HashMap<>();
+
+	BlobStore(final Path folder) throws IOException {
+		Files.createDirectories(folder);
+		this.folder = folder;
+	}
+
+	/**
+	 * Stores the blob if it is not stored yet and increments its reference count.
+	 * 
+	 * @return the SHA-256 of the data, {@link #KEY_LENGTH} bytes.
+	 */
+	byte[] add(final ByteBuffer data) throws IOException {
+		final byte[] key = sha256(data.duplicate());
+		final String name = name(key);
+		lock.lock();
+		try {
+			final Integer count = refCounts.get(name);
+			if (count != null) {
+				refCounts.put(name, count + 1);
+				return key;
+			}
+		} finally {
+			lock.unlock();
+		}
+		//New blobs are written without holding the lock, a concurrent writer of
+		//the same blob just loses the race below.
+		final Path file = path(name);
+		Files.createDirectories(file.getParent());
+		final Path temp = Files.createTempFile(file.getParent(), name, TEMP_EXTENSION);
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			final ByteBuffer buffer = data.duplicate();
+			while (buffer.hasRemaining()) channel.write(buffer);
+		} catch (final IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		lock.lock();
+		try {
+			final Integer count = refCounts.get(name);
+			if (count == null) {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+				refCounts.put(name, 1);
+			} else {
+				Files.delete(temp);
+				refCounts.put(name, count + 1);
+			}
+		} finally {
+			lock.unlock();
+		}
+		return key;
+	}
+
+	/**
+	 * Increments the reference count of a stored blob.
+	 */
+	void retain(final byte[] key) {
+		lock.lock();
+		try {
+			refCounts.merge(name(key), 1, Integer::sum);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Decrements the reference count and deletes the blob when it is no longer referenced.
+	 */
+	void release(final byte[] key) throws IOException {
+		final String name = name(key);
+		lock.lock();
+		try {
+			final Integer count = refCounts.get(name);
+			if (count == null)
+				throw new IllegalStateException(format("Blob {} is not referenced.", name));
+			if (count > 1) {
+				refCounts.put(name, count - 1);
+			} else {
+				refCounts.remove(name);
+				Files.deleteIfExists(path(name));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes all blobs that have not been retained and left over temporary files.
+	 */
+	void deleteUnreferenced() throws IOException {
+		lock.lock();
+		try (Stream<Path> files = Files.walk(folder)) {
+			files.filter(Files::isRegularFile)
+				.filter(f -> !refCounts.containsKey(f.getFileName().toString()))
+				.forEach(f -> {
+					try {
+						Files.delete(f);
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the file of a blob in the folder of a store, which need not be open.
+	 */
+	static Path path(final Path folder, final byte[] key) {
+		return path(folder, name(key));
+	}
+
+	/**
+	 * @return the number of stored blobs.
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return refCounts.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Path path(final String name) {
+		return path(folder, name);
+	}
+
+	private static Path path(final Path folder, final String name) {
+		return folder.resolve(name.substring(0, 2)).resolve(name);
+	}
+
+	private static String name(final byte[] key) {
+		return BaseEncoding.base16().lowerCase().encode(key);
+	}
+
+	private static byte[] sha256(final ByteBuffer data) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(data);
+			return digest.digest();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not supported.", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return format("{}[{}]", getClass().getSimpleName(), folder);
+	}
+
+}
@@ -0,0 +1,254 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.zalando.testmailserver.util.ContentSection;
+
+import com.google.common.io.ByteSource;
+
+/**
+ * Stores each content as a small manifest file, shared sections of the content
+ * (e.g. message bodies) are stored only once in a content-addressed {@link BlobStore}
+ * in the sub folder blobs.
+ * 
+ * Purpose: Load tests send the same body over and over again. Only the parts that
+ * vary, like the envelope and the headers, are written for each message.
+ * 
+ * A manifest &lt;id&gt;.manifest is a sequence of entries:
+ * <pre>
+ * byte 0 (inline) | int length | bytes
+ * byte 1 (blob)   | 32 bytes SHA-256 of the blob | long length
+ * </pre>
+ * Manifests are written to a temporary file and renamed, so they are either complete or 
+ * missing. Reference counts of the blobs are not stored, but counted when the store is 
+ * opened by reading all manifests. Blobs that are not referenced by any manifest, e.g. 
+ * after a crash before the manifest has been renamed, are deleted then.
+ */
+@ThreadSafe
+public final class DeduplicatingStore {
+
+	public static final String MANIFEST_EXTENSION = ".manifest";
+
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final String BLOB_FOLDER = "blobs";
+	private static final int INLINE = 0;
+	private static final int BLOB = 1;
+
+	private final Path folder;
+	private final int minBlobSize;
+	private final BlobStore blobs;
+
+	private DeduplicatingStore(final Path folder, final int minBlobSize, final BlobStore blobs) {
+		this.folder = folder;
+		this.minBlobSize = minBlobSize;
+		this.blobs = blobs;
+	}
+
+	/**
+	 * Opens the store and counts the blob references. 
+	 * 
+	 * @param minBlobSize shared sections that are smaller are stored inline, because
+	 * a file costs more than it saves.
+	 */
+	public static DeduplicatingStore open(final Path folder, final int minBlobSize) throws IOException {
+		if (minBlobSize < 0)
+			throw new IllegalArgumentException(format("Invalid minimum blob size {}.", minBlobSize));
+		Files.createDirectories(folder);
+		final BlobStore blobs = new BlobStore(folder.resolve(BLOB_FOLDER));
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+			for (final Path file : files) {
+				final String name = file.getFileName().toString();
+				if (name.endsWith(MANIFEST_EXTENSION + TEMP_EXTENSION)) {
+					Files.delete(file);
+				} else if (name.endsWith(MANIFEST_EXTENSION)) {
+					for (final Entry entry : readManifest(file)) {
+						if (entry.key != null) blobs.retain(entry.key);
+					}
+				}
+			}
+		}
+		blobs.deleteUnreferenced();
+		return new DeduplicatingStore(folder, minBlobSize, blobs);
+	}
+
+	public Path getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Stores a content, the concatenation of the sections.
+	 * 
+	 * @throws FileAlreadyExistsException if there is already a content with this ID.
+	 */
+	public void append(final String id, final List<ContentSection> sections) throws IOException {
+		final Path manifest = folder.resolve(id + MANIFEST_EXTENSION);
+		if (Files.exists(manifest))
+			throw new FileAlreadyExistsException(manifest.toString());
+		final Path temp = folder.resolve(id + MANIFEST_EXTENSION + TEMP_EXTENSION);
+		final List<byte[]> added = new ArrayList<>();
+		boolean success = false;
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW)))) {
+				for (final ContentSection section : sections) {
+					if (section.isShared() && section.getLength() >= minBlobSize) {
+						final byte[] key = blobs.add(section.getData());
+						added.add(key);
+						out.write(BLOB);
+						out.write(key);
+						out.writeLong(section.getLength());
+					} else if (section.getLength() > 0) {
+						final byte[] bytes = new byte[section.getLength()];
+						section.getData().get(bytes);
+						out.write(INLINE);
+						out.writeInt(bytes.length);
+						out.write(bytes);
+					}
+				}
+			}
+			Files.move(temp, manifest, StandardCopyOption.ATOMIC_MOVE);
+			success = true;
+		} finally {
+			if (!success) {
+				Files.deleteIfExists(temp);
+				for (final byte[] key : added) blobs.release(key);
+			}
+		}
+	}
+
+	/**
+	 * Deletes a content and the blobs that are no longer referenced.
+	 * 
+	 * @return false if there is no content with this ID.
+	 */
+	public boolean delete(final String id) throws IOException {
+		final Path manifest = folder.resolve(id + MANIFEST_EXTENSION);
+		final List<Entry> entries;
+		try {
+			entries = readManifest(manifest);
+			Files.delete(manifest);
+		} catch (final NoSuchFileException e) {
+			return false;
+		}
+		for (final Entry entry : entries) {
+			if (entry.key != null) blobs.release(entry.key);
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of distinct blobs.
+	 */
+	int getBlobCount() {
+		return blobs.size();
+	}
+
+	/**
+	 * Reads a content without opening the store, e.g. while indexing the folder.
+	 * Blobs are opened when the stream reaches them.
+	 * 
+	 * @param manifest a *.manifest file in the folder of a store.
+	 */
+	public static InputStream openStream(final Path manifest) throws IOException {
+		final Path blobFolder = manifest.resolveSibling(BLOB_FOLDER);
+		final List<ByteSource> sources = new ArrayList<>();
+		for (final Entry entry : readManifest(manifest)) {
+			if (entry.key == null) {
+				sources.add(ByteSource.wrap(entry.inline));
+			} else {
+				final Path blob = BlobStore.path(blobFolder, entry.key);
+				sources.add(new ByteSource() {
+					@Override
+					public InputStream openStream() throws IOException {
+						return Files.newInputStream(blob);
+					}
+				});
+			}
+		}
+		return ByteSource.concat(sources).openStream();
+	}
+
+	private static List<Entry> readManifest(final Path manifest) throws IOException {
+		final List<Entry> entries = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+			int type;
+			while ((type = in.read()) >= 0) {
+				if (type == INLINE) {
+					final byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					entries.add(new Entry(bytes, null));
+				} else if (type == BLOB) {
+					final byte[] key = new byte[BlobStore.KEY_LENGTH];
+					in.readFully(key);
+					in.readLong();
+					entries.add(new Entry(null, key));
+				} else 
+					throw new IOException(format("Invalid entry type {} in {}.", type, manifest));
+			}
+		} catch (final EOFException e) {
+			throw new IOException(format("{} is truncated.", manifest), e);
+		}
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		return format("{}[{}]", getClass().getSimpleName(), folder);
+	}
+
+	@Immutable
+	private static final class Entry {
+		private final @Nullable byte[] inline;
+		private final @Nullable byte[] key;
+
+		private Entry(final @Nullable byte[] inline, final @Nullable byte[] key) {
+			this.inline = inline;
+			this.key = key;
+		}
+	}
+
+}
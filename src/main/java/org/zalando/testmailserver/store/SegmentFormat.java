@@ -0,0 +1,81 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+/**
+ * File format of the segment store.
+ * 
+ * A segment file (*.seg) is a sequence of records:
+ * <pre>
+ * short idLength | id (UTF-8) | long timestamp | byte flags | long contentLength | content
+ * </pre>
+ * The content length of a record that could not be written completely is -1.
+ * If the flag {@link #FLAG_DEFLATED} is set, the content is compressed with raw 
+ * deflate (no zlib header) and the content length is the compressed length.
+ * 
+ * The index file (*.idx) of a segment has one entry for each complete record, 
+ * in the same order:
+ * <pre>
+ * long recordOffset | long timestamp | short idLength | id (UTF-8)
+ * </pre>
+ * So listing the records of a segment only needs to read its (small) index.
+ * 
+ * Both files are named after the ID of the first record of the segment, so 
+ * their lexicographic order is the order in which they have been written.
+ * All numbers are big-endian.
+ */
+public final class SegmentFormat {
+
+	public static final String SEGMENT_EXTENSION = ".seg";
+	public static final String INDEX_EXTENSION = ".idx";
+
+	/**
+	 * Size of an index entry without the ID.
+	 */
+	static final int FIXED_INDEX_ENTRY_SIZE = 8 + 8 + 2;
+
+	static final long INCOMPLETE = -1;
+
+	/**
+	 * The reader maps each file as a whole, so it must not be larger.
+	 */
+	static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+	static final int FLAG_DEFLATED = 1;
+
+	/**
+	 * Size of the record header without the ID.
+	 */
+	static final int FIXED_HEADER_SIZE = 2 + 8 + 1 + 8;
+
+	/**
+	 * Maximum length of a record ID in bytes.
+	 */
+	static final int MAX_ID_LENGTH = Short.MAX_VALUE;
+
+	/**
+	 * Static utility class.
+	 */
+	private SegmentFormat() { }
+
+}
@@ -0,0 +1,411 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.zalando.testmailserver.store.SegmentFormat.FLAG_DEFLATED;
+import static org.zalando.testmailserver.store.SegmentFormat.INCOMPLETE;
+import static org.zalando.testmailserver.store.SegmentFormat.FIXED_INDEX_ENTRY_SIZE;
+import static org.zalando.testmailserver.store.SegmentFormat.INDEX_EXTENSION;
+import static org.zalando.testmailserver.store.SegmentFormat.MAX_FILE_SIZE;
+import static org.zalando.testmailserver.store.SegmentFormat.MAX_ID_LENGTH;
+import static org.zalando.testmailserver.store.SegmentFormat.SEGMENT_EXTENSION;
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.zalando.testmailserver.util.DeferredCompressionOutputStream;
+
+import com.google.common.io.ByteSource;
+import com.google.common.io.FileBackedOutputStream;
+
+/**
+ * Appends records to rolling segment files, see {@link SegmentFormat}.
+ * 
+ * Purpose: Storing each message in its own file costs several system calls and
+ * file system metadata updates per message and leads to huge directories. Here a
+ * small message costs two writes to already open files.
+ * 
+ * A new segment is started when the current one has reached the maximum size and
+ * every time the store is opened.
+ * 
+ * Appends are serialized. The content is first copied into a spool (in memory, or a 
+ * temporary file if it is large), so that an append only waits for the disk, not for 
+ * the source of another append.
+ * 
+ * Optionally, contents larger than a threshold are compressed. They are flagged 
+ * as such and {@link SegmentStoreReader} decompresses them transparently.
+ */
+@ThreadSafe
+public final class SegmentStore implements Closeable {
+
+	/**
+	 * Writes the content of a record.
+	 */
+	@FunctionalInterface
+	public static interface Content {
+		/**
+		 * Does not close the stream.
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Segments are mapped as a whole by {@link SegmentStoreReader}, so they are never larger. 
+	 * A new segment is started early if a record would not fit.
+	 */
+	public static final long MAX_SEGMENT_SIZE = MAX_FILE_SIZE;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Larger contents are spooled to a temporary file.
+	 */
+	private static final int SPOOL_THRESHOLD = 1024 * 1024;
+
+	private final Path folder;
+	private final long maxSegmentSize;
+	private final int compressionThreshold;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	@GuardedBy("lock")
+	private final ChannelOutput output = new ChannelOutput(BUFFER_SIZE);
+	@GuardedBy("lock")
+	private final ByteBuffer indexEntry = ByteBuffer.allocate(FIXED_INDEX_ENTRY_SIZE + MAX_ID_LENGTH);
+	@GuardedBy("lock")
+	private final @Nullable Deflater deflater;
+	@GuardedBy("lock")
+	private @Nullable Segment current;
+	@GuardedBy("lock")
+	private boolean closed;
+
+	/**
+	 * Creates a store that does not compress.
+	 */
+	public SegmentStore(final Path folder, final long maxSegmentSize) throws IOException {
+		this(folder, maxSegmentSize, null, 0);
+	}
+
+	/**
+	 * Creates a store that compresses contents larger than the threshold.
+	 * 
+	 * @param compressionLevel 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+	 * @param compressionThreshold content length in bytes.
+	 */
+	public SegmentStore(final Path folder, final long maxSegmentSize, final int compressionLevel,
+			final int compressionThreshold) throws IOException {
+		this(folder, maxSegmentSize, new Deflater(compressionLevel, true), compressionThreshold);
+	}
+
+	private SegmentStore(final Path folder, final long maxSegmentSize, 
+			final @Nullable Deflater deflater, final int compressionThreshold) throws IOException {
+		if (maxSegmentSize < 1 || maxSegmentSize > MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException(format("Invalid maximum segment size {}.", maxSegmentSize));
+		if (compressionThreshold < 0)
+			throw new IllegalArgumentException(format("Invalid compression threshold {}.", 
+					compressionThreshold));
+		Files.createDirectories(folder);
+		this.folder = folder;
+		this.maxSegmentSize = maxSegmentSize;
+		this.deflater = deflater;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public Path getFolder() {
+		return folder;
+	}
+
+	/**
+	 * Appends a record. 
+	 * 
+	 * @param id should be unique within the store.
+	 */
+	public void append(final String id, final long timestamp, final Content content) 
+			throws IOException {
+		final byte[] idBytes = id.getBytes(UTF_8);
+		if (idBytes.length > MAX_ID_LENGTH)
+			throw new IllegalArgumentException(format("ID {} is too long.", id));
+		//Writing the content may wait for its source, e.g. a slow SMTP client, so it is 
+		//spooled before the lock is taken. Then the lock only covers the local copy.
+		final FileBackedOutputStream spool = new FileBackedOutputStream(SPOOL_THRESHOLD);
+		try {
+			content.writeTo(spool);
+			spool.close();
+			append(idBytes, timestamp, spool.asByteSource());
+		} finally {
+			spool.reset();
+		}
+	}
+
+	private void append(final byte[] idBytes, final long timestamp, final ByteSource content) 
+			throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				throw new IllegalStateException(format("{} has been closed.", this));
+			final long maxRecordSize = maxRecordSize(idBytes.length, content.size());
+			if (maxRecordSize > MAX_SEGMENT_SIZE)
+				throw new IOException(format("Record {} is too large for a segment.", new String(idBytes, UTF_8)));
+			Segment segment = current;
+			if (segment == null || segment.size >= maxSegmentSize 
+					|| segment.size + maxRecordSize > MAX_SEGMENT_SIZE) {
+				if (segment != null) segment.close();
+				current = null;
+				segment = new Segment(new String(idBytes, UTF_8));
+				current = segment;
+			}
+			boolean success = false;
+			try {
+				appendRecord(segment, idBytes, timestamp, content::copyTo);
+				success = true;
+			} finally {
+				if (!success) {
+					//Continue with a fresh segment, the index stays consistent anyway.
+					current = null;
+					output.discard();
+					segment.close();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the size of the record, including the few bytes that deflate may add to
+	 * incompressible content.
+	 */
+	private long maxRecordSize(final int idLength, final long contentLength) {
+		final long storedLength = deflater == null ? contentLength : contentLength + (contentLength >>> 10) + 64;
+		return 2 + idLength + 8 + 1 + 8 + storedLength;
+	}
+
+	@GuardedBy("lock")
+	private void appendRecord(final Segment segment, final byte[] idBytes, final long timestamp,
+			final Content content) throws IOException {
+		final long recordOffset = segment.size;
+		output.start(segment.data, recordOffset);
+		output.writeShort(idBytes.length);
+		output.write(idBytes);
+		output.writeLong(timestamp);
+		final long flagsPosition = output.position();
+		output.write(0);
+		final long lengthPosition = output.position();
+		output.writeLong(INCOMPLETE);
+		final long contentStart = output.position();
+		if (deflater == null)
+			content.writeTo(output);
+		else
+			writeCompressible(content, flagsPosition);
+		final long contentLength = output.position() - contentStart;
+		output.patchLong(lengthPosition, contentLength);
+		output.flush();
+		segment.size = output.position();
+
+		indexEntry.clear();
+		indexEntry.putLong(recordOffset).putLong(timestamp)
+				.putShort((short) idBytes.length).put(idBytes).flip();
+		while (indexEntry.hasRemaining()) segment.index.write(indexEntry);
+	}
+
+	@GuardedBy("lock")
+	private void writeCompressible(final Content content, final long flagsPosition) throws IOException {
+		final Deflater d = deflater;
+		final DeferredCompressionOutputStream out = new DeferredCompressionOutputStream(
+				compressionThreshold, compressed -> {
+					if (!compressed) return output;
+					d.reset();
+					return new DeflaterOutputStream(output, d, BUFFER_SIZE / 8);
+				});
+		content.writeTo(out);
+		//Finishes the deflater, closing the output does nothing.
+		out.close();
+		if (out.isCompressed()) output.patchByte(flagsPosition, FLAG_DEFLATED);
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed) return;
+			closed = true;
+			if (deflater != null) deflater.end();
+			final Segment segment = current;
+			current = null;
+			if (segment != null) segment.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return format("{}[{}]", getClass().getSimpleName(), folder);
+	}
+
+	private final class Segment {
+		private final FileChannel data;
+		private final FileChannel index;
+		private long size = 0;
+
+		private Segment(final String name) throws IOException {
+			data = FileChannel.open(folder.resolve(name + SEGMENT_EXTENSION), 
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			try {
+				index = FileChannel.open(folder.resolve(name + INDEX_EXTENSION), 
+						StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			} catch (final IOException e) {
+				data.close();
+				throw e;
+			}
+		}
+
+		private void close() throws IOException {
+			try {
+				data.close();
+			} finally {
+				index.close();
+			}
+		}
+	}
+
+	/**
+	 * Buffered output to a channel that allows to patch bytes that have 
+	 * already been written.
+	 */
+	private static final class ChannelOutput extends OutputStream {
+		private final ByteBuffer buffer;
+		private @Nullable FileChannel channel;
+		/** Channel position of the first byte in the buffer. */
+		private long bufferStart;
+
+		private ChannelOutput(final int size) {
+			buffer = ByteBuffer.allocate(size);
+		}
+
+		private void start(final FileChannel channel, final long position) {
+			this.channel = channel;
+			bufferStart = position;
+			buffer.clear();
+		}
+
+		private long position() {
+			return bufferStart + buffer.position();
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (!buffer.hasRemaining()) flush();
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			int offset = off;
+			int remaining = len;
+			while (remaining > 0) {
+				if (!buffer.hasRemaining()) flush();
+				final int chunk = Math.min(remaining, buffer.remaining());
+				buffer.put(b, offset, chunk);
+				offset += chunk;
+				remaining -= chunk;
+			}
+		}
+
+		private void writeShort(final int value) throws IOException {
+			write(value >>> 8);
+			write(value);
+		}
+
+		private void writeLong(final long value) throws IOException {
+			for (int shift = 56; shift >= 0; shift -= 8) write((int) (value >>> shift));
+		}
+
+		/**
+		 * Overwrites a long that has been written before, either in the buffer
+		 * or directly in the channel.
+		 */
+		private void patchLong(final long position, final long value) throws IOException {
+			if (position >= bufferStart) {
+				buffer.putLong((int) (position - bufferStart), value);
+			} else {
+				final ByteBuffer bytes = ByteBuffer.allocate(8);
+				bytes.putLong(value).flip();
+				patchChannel(position, bytes);
+			}
+		}
+
+		/**
+		 * Overwrites a byte that has been written before, see {@link #patchLong}.
+		 */
+		private void patchByte(final long position, final int value) throws IOException {
+			if (position >= bufferStart) {
+				buffer.put((int) (position - bufferStart), (byte) value);
+			} else {
+				final ByteBuffer bytes = ByteBuffer.allocate(1);
+				bytes.put((byte) value).flip();
+				patchChannel(position, bytes);
+			}
+		}
+
+		private void patchChannel(final long position, final ByteBuffer bytes) throws IOException {
+			flush();
+			long p = position;
+			while (bytes.hasRemaining()) p += channel.write(bytes, p);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) bufferStart += channel.write(buffer);
+			buffer.clear();
+		}
+
+		private void discard() {
+			buffer.clear();
+		}
+
+		/**
+		 * Does nothing: The store flushes when the record is complete, so that the
+		 * header can still be patched in the buffer, and closes the channel.
+		 */
+		@Override
+		public void close() {
+		}
+	}
+
+}
@@ -0,0 +1,344 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.zalando.testmailserver.store.SegmentFormat.FIXED_INDEX_ENTRY_SIZE;
+import static org.zalando.testmailserver.store.SegmentFormat.FLAG_DEFLATED;
+import static org.zalando.testmailserver.store.SegmentFormat.INCOMPLETE;
+import static org.zalando.testmailserver.store.SegmentFormat.INDEX_EXTENSION;
+import static org.zalando.testmailserver.store.SegmentFormat.MAX_FILE_SIZE;
+import static org.zalando.testmailserver.store.SegmentFormat.SEGMENT_EXTENSION;
+import static org.zalando.testmailserver.util.FormattingUtils.format;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.zalando.testmailserver.util.ByteBufferInputStream;
+import org.zalando.testmailserver.util.Unmapper;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Read-only view of a {@link SegmentStore} folder, see {@link SegmentFormat}.
+ * 
+ * Segment and index files are memory mapped. Listing and counting only touch the index 
+ * files, message contents are returned as views of the mapped segments and are not
+ * copied onto the heap. Compressed contents are decompressed by {@link Record#openStream()}.
+ * 
+ * The view is a snapshot: Records appended after it has been opened are not visible.
+ * Open a new reader to see them.
+ * 
+ * Closing the reader releases the mappings at once, instead of when the garbage collector 
+ * gets to them. Its records and their contents must not be used any more then, nor while 
+ * the reader is being closed.
+ */
+@ThreadSafe
+public final class SegmentStoreReader implements Closeable {
+
+	private final ImmutableList<Segment> segments;
+	private volatile boolean closed = false;
+
+	private SegmentStoreReader(final List<Segment> segments) {
+		this.segments = ImmutableList.copyOf(segments);
+	}
+
+	public static SegmentStoreReader open(final Path folder) throws IOException {
+		final List<Path> indexFiles = new ArrayList<>();
+		try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(folder, "*" + INDEX_EXTENSION)) {
+			dirStream.forEach(indexFiles::add);
+		}
+		Collections.sort(indexFiles);
+		final List<Segment> segments = new ArrayList<>(indexFiles.size());
+		try {
+			for (final Path indexFile : indexFiles) {
+				final String fileName = indexFile.getFileName().toString();
+				final String name = fileName.substring(0, fileName.length() - INDEX_EXTENSION.length());
+				try {
+					segments.add(Segment.open(name, indexFile, folder.resolve(name + SEGMENT_EXTENSION)));
+				} catch (final NoSuchFileException e) {
+					//Deleted in the meantime.
+				}
+			}
+		} catch (final IOException | RuntimeException e) {
+			for (final Segment segment : segments) segment.release();
+			throw e;
+		}
+		return new SegmentStoreReader(segments);
+	}
+
+	/**
+	 * @return the number of records.
+	 */
+	public int count() {
+		checkOpen();
+		int count = 0;
+		for (final Segment segment : segments) count += segment.count;
+		return count;
+	}
+
+	/**
+	 * Passes all records to the consumer, in the order in which they have been appended.
+	 */
+	public void forEach(final Consumer<Record> consumer) {
+		checkOpen();
+		for (final Segment segment : segments) segment.forEach(consumer);
+	}
+
+	/**
+	 * @return all records with timestamps from (inclusive) to (exclusive).
+	 */
+	public List<Record> findByTime(final long from, final long to) {
+		final List<Record> result = new ArrayList<>();
+		forEach(r -> {
+			if (r.getTimestamp() >= from && r.getTimestamp() < to) result.add(r);
+		});
+		return result;
+	}
+
+	public Optional<Record> find(final String id) {
+		checkOpen();
+		//Segments are named after their first ID, so the record is most likely in
+		//the last segment whose name is not greater than the ID.
+		int candidate = 0;
+		for (int i = 0; i < segments.size(); i++) {
+			if (segments.get(i).name.compareTo(id) <= 0) candidate = i;
+		}
+		for (int distance = 0; distance < segments.size(); distance++) {
+			for (final int i : new int[]{candidate - distance, candidate + distance}) {
+				if (i >= 0 && i < segments.size()) {
+					final Optional<Record> result = segments.get(i).find(id);
+					if (result.isPresent()) return result;
+				}
+				if (distance == 0) break;
+			}
+		}
+		return Optional.empty();
+	}
+
+	/**
+	 * Releases the mapped files.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		for (final Segment segment : segments) segment.release();
+	}
+
+	private void checkOpen() {
+		if (closed) throw new IllegalStateException("Reader has been closed.");
+	}
+
+	/**
+	 * A record in a segment.
+	 */
+	@Immutable
+	public static final class Record {
+		private final Segment segment;
+		private final String id;
+		private final long timestamp;
+		private final int offset;
+
+		private Record(final Segment segment, final String id, final long timestamp, final int offset) {
+			this.segment = segment;
+			this.id = id;
+			this.timestamp = timestamp;
+			this.offset = offset;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public int getFlags() {
+			return segment.getData().get(contentLengthPosition() - 1);
+		}
+
+		public boolean isCompressed() {
+			return (getFlags() & FLAG_DEFLATED) != 0;
+		}
+
+		/**
+		 * @return the length of the stored content, which is compressed if {@link #isCompressed()}.
+		 */
+		public long getContentLength() {
+			return segment.getData().getLong(contentLengthPosition());
+		}
+
+		/**
+		 * @return a read-only view of the stored content in the mapped segment file, 
+		 * raw deflate compressed if {@link #isCompressed()}.
+		 */
+		public ByteBuffer getContent() {
+			final long length = getContentLength();
+			if (length == INCOMPLETE)
+				throw new IllegalStateException(format("Record {} is incomplete.", id));
+			final ByteBuffer result = segment.getData().duplicate();
+			final int start = contentLengthPosition() + 8;
+			result.position(start);
+			result.limit(start + (int) length);
+			return result.slice().asReadOnlyBuffer();
+		}
+
+		/**
+		 * @return the content, decompressed if necessary.
+		 */
+		public InputStream openStream() {
+			final InputStream stored = new ByteBufferInputStream(getContent());
+			if (!isCompressed()) return stored;
+			return new InflaterInputStream(stored, new Inflater(true)) {
+				@Override
+				public void close() throws IOException {
+					//A passed inflater is not released by the super class.
+					inf.end();
+					super.close();
+				}
+			};
+		}
+
+		private int contentLengthPosition() {
+			final int idLength = segment.getData().getShort(offset);
+			return offset + 2 + idLength + 8 + 1;
+		}
+
+		@Override
+		public String toString() {
+			return id;
+		}
+	}
+
+	@ThreadSafe
+	private static final class Segment {
+		private final String name;
+		private final MappedByteBuffer index;
+		private final MappedByteBuffer data;
+		private final int count;
+		private volatile boolean released = false;
+
+		private Segment(final String name, final MappedByteBuffer index, final MappedByteBuffer data) {
+			this.name = name;
+			this.index = index;
+			this.data = data;
+			int c = 0;
+			int position = 0;
+			while (entryComplete(position)) {
+				position += FIXED_INDEX_ENTRY_SIZE + index.getShort(position + 16);
+				c++;
+			}
+			count = c;
+		}
+
+		private static Segment open(final String name, final Path indexFile, final Path dataFile) 
+				throws IOException {
+			//The index is mapped first, so that all records it references are in the mapped data.
+			final MappedByteBuffer index = map(indexFile);
+			return new Segment(name, index, map(dataFile));
+		}
+
+		private static MappedByteBuffer map(final Path file) throws IOException {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				final long size = channel.size();
+				if (size > MAX_FILE_SIZE)
+					throw new IOException(format("{} is too large to be mapped.", file));
+				return channel.map(MapMode.READ_ONLY, 0, size);
+			}
+		}
+
+		private MappedByteBuffer getData() {
+			if (released) throw new IllegalStateException("Reader has been closed.");
+			return data;
+		}
+
+		private void release() {
+			released = true;
+			Unmapper.unmap(index);
+			Unmapper.unmap(data);
+		}
+
+		private boolean entryComplete(final int position) {
+			return position + FIXED_INDEX_ENTRY_SIZE <= index.limit()
+					&& position + FIXED_INDEX_ENTRY_SIZE + index.getShort(position + 16) <= index.limit();
+		}
+
+		private void forEach(final Consumer<Record> consumer) {
+			int position = 0;
+			for (int i = 0; i < count; i++) {
+				final int idLength = index.getShort(position + 16);
+				final byte[] idBytes = new byte[idLength];
+				final ByteBuffer idBuffer = index.duplicate();
+				idBuffer.position(position + FIXED_INDEX_ENTRY_SIZE);
+				idBuffer.get(idBytes);
+				consumer.accept(new Record(this, new String(idBytes, UTF_8), 
+						index.getLong(position + 8), (int) index.getLong(position)));
+				position += FIXED_INDEX_ENTRY_SIZE + idLength;
+			}
+		}
+
+		private Optional<Record> find(final String id) {
+			final byte[] wanted = id.getBytes(UTF_8);
+			int position = 0;
+			for (int i = 0; i < count; i++) {
+				final int idLength = index.getShort(position + 16);
+				if (idLength == wanted.length && idEquals(position + FIXED_INDEX_ENTRY_SIZE, wanted)) {
+					return Optional.of(new Record(this, id, 
+							index.getLong(position + 8), (int) index.getLong(position)));
+				}
+				position += FIXED_INDEX_ENTRY_SIZE + idLength;
+			}
+			return Optional.empty();
+		}
+
+		private boolean idEquals(final int position, final byte[] wanted) {
+			for (int i = wanted.length - 1; i >= 0; i--) {
+				if (index.get(position + i) != wanted[i]) return false;
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import java.nio.ByteBuffer;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A section of a content that is split for storage. Shared sections, e.g. message
+ * bodies, are likely to occur in other contents too.
+ */
+@Immutable
+public final class ContentSection {
+
+	private final ByteBuffer data;
+	private final boolean shared;
+
+	private ContentSection(final ByteBuffer data, final boolean shared) {
+		this.data = data.asReadOnlyBuffer();
+		this.shared = shared;
+	}
+
+	public static ContentSection inline(final ByteBuffer data) {
+		return new ContentSection(data, false);
+	}
+
+	public static ContentSection shared(final ByteBuffer data) {
+		return new ContentSection(data, true);
+	}
+
+	/**
+	 * @return a new read-only view of the data, the buffer can be consumed by the caller.
+	 */
+	public ByteBuffer getData() {
+		return data.duplicate();
+	}
+
+	public int getLength() {
+		return data.remaining();
+	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	@Override
+	public String toString() {
+		return FormattingUtils.format("{}[{} bytes]", shared ? "shared" : "inline", data.remaining());
+	}
+
+}
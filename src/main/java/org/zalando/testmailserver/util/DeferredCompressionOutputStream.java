@@ -0,0 +1,114 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Compresses only content that is larger than a threshold. The content is buffered
+ * until it exceeds the threshold or the stream is closed, only then the target
+ * is opened. Small messages are not worth the CPU time and the compression headers.
+ */
+@NotThreadSafe
+public final class DeferredCompressionOutputStream extends OutputStream {
+
+	/**
+	 * Opens the stream the content is written to.
+	 */
+	@FunctionalInterface
+	public static interface Target {
+		/**
+		 * @param compressed whether the content has exceeded the threshold.
+		 * @return a stream that compresses if compressed is true. It is closed 
+		 * when this stream is closed.
+		 */
+		OutputStream open(boolean compressed) throws IOException;
+	}
+
+	private final Target target;
+	private final byte[] buffer;
+	private int count = 0;
+	private @Nullable OutputStream out;
+	private boolean compressed;
+
+	public DeferredCompressionOutputStream(final int threshold, final Target target) {
+		if (threshold < 0)
+			throw new IllegalArgumentException(FormattingUtils.format("Invalid threshold {}.", threshold));
+		this.target = target;
+		buffer = new byte[threshold];
+	}
+
+	/**
+	 * @return whether the content is compressed, only final after the stream has been closed.
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (out == null && count < buffer.length) 
+			buffer[count++] = (byte) b;
+		else 
+			open(true).write(b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		if (out == null && len <= buffer.length - count) {
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		} else 
+			open(true).write(b, off, len);
+	}
+
+	private OutputStream open(final boolean compress) throws IOException {
+		OutputStream o = out;
+		if (o == null) {
+			o = target.open(compress);
+			out = o;
+			compressed = compress;
+			o.write(buffer, 0, count);
+			count = 0;
+		}
+		return o;
+	}
+
+	/**
+	 * Does not flush buffered content that has not yet exceeded the threshold.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (out != null) out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		open(false).close();
+	}
+
+}
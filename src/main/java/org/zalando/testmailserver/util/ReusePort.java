@@ -0,0 +1,98 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+import javax.annotation.Nullable;
+
+/**
+ * Access to SO_REUSEPORT (Java 9 and later, Linux and BSD) while still compiling for Java 8.
+ * With SO_REUSEPORT, several sockets can listen on the same port, and the kernel distributes
+ * incoming connections among them.
+ */
+public final class ReusePort {
+
+	private static final @Nullable SocketOption<Boolean> SO_REUSEPORT = findOption();
+
+	/**
+	 * Static utility class.
+	 */
+	private ReusePort() { }
+
+	public static boolean isSupported() {
+		return SO_REUSEPORT != null;
+	}
+
+	/**
+	 * Enables SO_REUSEPORT on an unbound server socket.
+	 * @throws UnsupportedOperationException if the JDK or the operating system does not support it.
+	 */
+	public static void enable(final ServerSocket socket) throws IOException {
+		final SocketOption<Boolean> option = getOption();
+		try {
+			final Method setOption = ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class);
+			setOption.invoke(socket, option, Boolean.TRUE);
+		} catch (final NoSuchMethodException | IllegalAccessException e) {
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported.", e);
+		} catch (final InvocationTargetException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Enables SO_REUSEPORT on an unbound server socket channel.
+	 * @throws UnsupportedOperationException if the JDK or the operating system does not support it.
+	 */
+	public static void enable(final NetworkChannel channel) throws IOException {
+		if (!channel.supportedOptions().contains(getOption()))
+			throw new UnsupportedOperationException("SO_REUSEPORT is not supported.");
+		channel.setOption(getOption(), Boolean.TRUE);
+	}
+
+	private static SocketOption<Boolean> getOption() {
+		final SocketOption<Boolean> option = SO_REUSEPORT;
+		if (option == null)
+			throw new UnsupportedOperationException("SO_REUSEPORT requires Java 9 or later.");
+		return option;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static @Nullable SocketOption<Boolean> findOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (final NoSuchFieldException | IllegalAccessException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Generates names that consist of a timestamp and a sequence number, like
+ * 2015-06-01T12.30.00.123+0200-007.
+ * 
+ * The names are unique within the JVM and their lexicographic order is the order in
+ * which they have been generated (as long as the UTC offset of the default time
+ * zone does not change). Up to 1000 names per millisecond get the same timestamp,
+ * if there are more, the timestamp is advanced into the next millisecond.
+ * 
+ * Purpose: Collision free, sortable file names without locking or waiting.
+ */
+@ThreadSafe
+public final class UniqueNames {
+
+	private static final DateTimeFormatter FORMAT = DateTimeFormatter
+			.ofPattern("yyyy-MM-dd'T'HH.mm.ss.SSSZ").withZone(ZoneId.systemDefault());
+
+	private static final int SEQUENCE_RANGE = 1000;
+
+	/**
+	 * Last stamp handed out: millis * SEQUENCE_RANGE + sequence.
+	 */
+	private static final AtomicLong LAST_STAMP = new AtomicLong();
+
+	private static volatile FormattedMillis lastFormatted = new FormattedMillis(Long.MIN_VALUE, "");
+
+	/**
+	 * Static utility class.
+	 */
+	private UniqueNames() { }
+
+	public static String next() {
+		return next(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param millis the preferred timestamp. The timestamp of the result is later
+	 * if a name with a later timestamp has already been generated.
+	 */
+	public static String next(final long millis) {
+		final long minStamp = millis * SEQUENCE_RANGE;
+		final long stamp = LAST_STAMP.updateAndGet(last -> Math.max(minStamp, last + 1));
+		return format(stamp / SEQUENCE_RANGE, (int) (stamp % SEQUENCE_RANGE));
+	}
+
+	/**
+	 * @return the timestamp part of a name generated by this class.
+	 * @throws java.time.format.DateTimeParseException if the name has not been generated by
+	 * this class.
+	 */
+	public static long getMillis(final String name) {
+		final int end = name.lastIndexOf('-');
+		return Instant.from(FORMAT.parse(name.substring(0, end < 0 ? name.length() : end))).toEpochMilli();
+	}
+
+	private static String format(final long millis, final int sequence) {
+		FormattedMillis formatted = lastFormatted;
+		if (formatted.millis != millis) {
+			formatted = new FormattedMillis(millis, FORMAT.format(Instant.ofEpochMilli(millis)));
+			lastFormatted = formatted;
+		}
+		final String prefix = formatted.text;
+		final char[] chars = new char[prefix.length() + 4];
+		prefix.getChars(0, prefix.length(), chars, 0);
+		final int i = prefix.length();
+		chars[i] = '-';
+		chars[i + 1] = (char) ('0' + sequence / 100);
+		chars[i + 2] = (char) ('0' + sequence / 10 % 10);
+		chars[i + 3] = (char) ('0' + sequence % 10);
+		return new String(chars);
+	}
+
+	@Immutable
+	private static final class FormattedMillis {
+		private final long millis;
+		private final String text;
+
+		private FormattedMillis(final long millis, final String text) {
+			this.millis = millis;
+			this.text = text;
+		}
+	}
+
+}
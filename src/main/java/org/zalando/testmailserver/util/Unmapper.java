@@ -0,0 +1,107 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import javax.annotation.Nullable;
+
+/**
+ * Releases memory mapped files immediately instead of when their buffers are garbage collected, 
+ * using sun.misc.Unsafe (Java 9 and later) or the buffer's cleaner (Java 8).
+ * 
+ * Any access to the buffer or its views after the release crashes the JVM, so callers have to
+ * make sure that the buffer is no longer used.
+ */
+public final class Unmapper {
+
+	private static final @Nullable Unmap UNMAP = findUnmap();
+
+	@FunctionalInterface
+	private static interface Unmap {
+		void unmap(ByteBuffer buffer) throws ReflectiveOperationException;
+	}
+
+	/**
+	 * Static utility class.
+	 */
+	private Unmapper() { }
+
+	public static boolean isSupported() {
+		return UNMAP != null;
+	}
+
+	/**
+	 * Releases the mapping if supported, otherwise it is left to the garbage collector.
+	 * 
+	 * @param buffer a buffer returned by FileChannel.map, not a view of it.
+	 */
+	public static void unmap(final MappedByteBuffer buffer) {
+		final Unmap unmap = UNMAP;
+		if (unmap == null) return;
+		try {
+			unmap.unmap(buffer);
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not unmap buffer.", e);
+		}
+	}
+
+	private static @Nullable Unmap findUnmap() {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			final Object unsafe = theUnsafe.get(null);
+			return buffer -> invoke(invokeCleaner, unsafe, buffer);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			//Java 8.
+		}
+		try {
+			final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			return buffer -> {
+				final Object c = invoke(cleaner, buffer);
+				if (c != null) invoke(clean, c);
+			};
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static @Nullable Object invoke(final Method method, final Object target, final Object... args) 
+			throws IllegalAccessException {
+		try {
+			return method.invoke(target, args);
+		} catch (final InvocationTargetException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IllegalStateException(cause);
+		}
+	}
+
+}
@@ -26,6 +26,8 @@ package org.zalando.testmailserver.util;
 import static org.zalando.testmailserver.util.FormattingUtils.format;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.file.DirectoryStream;
@@ -39,6 +41,11 @@ import org.slf4j.LoggerFactory;
 public class Utils {
 
 	private final static Logger LOG = LoggerFactory.getLogger(Utils.class);
+
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private static final ThreadLocal<byte[]> COPY_BUFFER = 
+			ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
 	
 	public static String getDefaultHostName(){
 		String hostName;
@@ -63,6 +70,24 @@ public class Utils {
 		return count.get();
 	}
 
+	/**
+	 * Copies all bytes from in to out using a small buffer that is reused by
+	 * the current thread. Does not close the streams.
+	 * 
+	 * @return the number of bytes copied.
+	 */
+	public static long copy(final InputStream in, final OutputStream out) throws IOException {
+		final byte[] buffer = COPY_BUFFER.get();
+		long count = 0;
+		int read = in.read(buffer);
+		while (read != -1) {
+			out.write(buffer, 0, read);
+			count += read;
+			read = in.read(buffer);
+		}
+		return count;
+	}
+
 
 
 }
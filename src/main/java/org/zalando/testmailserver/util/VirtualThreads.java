@@ -0,0 +1,71 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.Nullable;
+
+/**
+ * Access to virtual threads (Java 21 and later) while still compiling for Java 8.
+ */
+public final class VirtualThreads {
+
+	private static final @Nullable Method NEW_EXECUTOR = findNewExecutor();
+
+	/**
+	 * Static utility class.
+	 */
+	private VirtualThreads() { }
+
+	public static boolean isSupported() {
+		return NEW_EXECUTOR != null;
+	}
+
+	/**
+	 * @return an executor that starts a new virtual thread for each task, 
+	 * or empty if the JDK does not support virtual threads.
+	 */
+	public static Optional<ExecutorService> newThreadPerTaskExecutor() {
+		final Method newExecutor = NEW_EXECUTOR;
+		if (newExecutor == null) return Optional.empty();
+		try {
+			return Optional.of((ExecutorService) newExecutor.invoke(null));
+		} catch (final IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalStateException("Could not create virtual thread executor.", e);
+		}
+	}
+
+	private static @Nullable Method findNewExecutor() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (final NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+}
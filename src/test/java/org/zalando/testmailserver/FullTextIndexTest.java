@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FullTextIndexTest {
+
+	@Test
+	public void tokensOfAllTextPartsAreFoundNewestFirst() {
+		final FullTextIndex index = new FullTextIndex();
+		index.index(message("id0", 1000, "Order 4711", "text/plain", "Your order has been shipped."));
+		index.index(message("id1", 3000, "Password reset", "text/html", 
+				"<a href=\"https://test/reset?token=AbC123\">Reset</a>"));
+		index.index(message("id2", 2000, "Order 4712", "text/plain", "Thank you for your order."));
+		assertThat(index.search("order", 10), contains("id2", "id0"));
+		assertThat(index.search("ORDER 4711", 10), contains("id0"));
+		assertThat(index.search("abc123", 10), contains("id1"));
+		assertThat(index.search("order reset", 10), empty());
+		assertThat(index.search("your", 1), contains("id2"));
+	}
+
+	@Test
+	public void oldestMessagesAreRemoved() {
+		final FullTextIndex index = new FullTextIndex(2, 10);
+		for (int i = 0; i < 5; i++) index.index(message("id" + i, 1000, "Order " + i, "text/plain", "Shipped"));
+		assertThat(index.search("shipped", 10), contains("id4", "id3"));
+		assertThat(index.search("order 2", 10), empty());
+		assertThat(index.search("order 3", 10), contains("id3"));
+	}
+
+	@Test
+	public void deletedMessagesAreRemoved() {
+		final FullTextIndex index = new FullTextIndex(2, 1000);
+		for (int i = 0; i < 3; i++) index.index(message("id" + i, 1000, "Order " + i, "text/plain", "Shipped"));
+		index.remove("id2");
+		index.remove("id0");
+		assertThat(index.search("shipped", 10), contains("id1"));
+		assertThat(index.search("order 2", 10), empty());
+		index.index(message("id3", 1000, "Order 3", "text/plain", "Shipped"));
+		index.index(message("id4", 1000, "Order 4", "text/plain", "Shipped"));
+		assertThat(index.search("shipped", 10), contains("id4", "id3"));
+	}
+
+	@Test
+	public void messagesAreIndexedInTheBackground() throws InterruptedException {
+		final TestMessage first = message("id0", 1000, "Order 4711", "text/plain", "Shipped");
+		final FullTextIndex index = new FullTextIndex(10, first.getSize());
+		index.accept(first);
+		//Not started yet, so the queue is full:
+		index.accept(message("id1", 1000, "Order 4712", "text/plain", "Shipped"));
+		assertThat(index.getDroppedCount(), is(1L));
+		index.start();
+		try {
+			for (int i = 0; i < 500 && index.search("4711", 10).isEmpty(); i++) Thread.sleep(10);
+			assertThat(index.search("shipped", 10), contains("id0"));
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	public void quotedPrintableMultipartIsDecoded() {
+		final String data = "Subject: Test\r\n"
+				+ "MIME-Version: 1.0\r\n"
+				+ "Content-Type: multipart/alternative; boundary=\"b\"\r\n"
+				+ "\r\n"
+				+ "--b\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Transfer-Encoding: quoted-printable\r\n"
+				+ "\r\n"
+				+ "Gr=C3=BC=C3=9Fe aus M=C3=BCnchen\r\n"
+				+ "--b--\r\n";
+		final FullTextIndex index = new FullTextIndex();
+		index.index(new TestMessage("id0", 1000, "from@test", singletonList("to@test"), data.getBytes(UTF_8)));
+		assertThat(index.search("münchen", 10), contains("id0"));
+	}
+
+	private static TestMessage message(final String id, final long timestamp, final String subject, 
+			final String contentType, final String body) {
+		final String data = "Subject: " + subject + "\r\n"
+				+ "Content-Type: " + contentType + "; charset=UTF-8\r\n"
+				+ "\r\n"
+				+ body + "\r\n";
+		return new TestMessage(id, timestamp, "from@test", singletonList("to@test"), data.getBytes(UTF_8));
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zalando.testmailserver.store.SegmentStore;
+
+import com.google.common.io.ByteStreams;
+
+public class HttpInboxTest {
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void listsAndReturnsMessages() throws IOException {
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 1000);
+		store.accept(message("id0", "a@test", "first"));
+		store.accept(message("id1", "b@test", "second"));
+		try (final HttpInbox inbox = new HttpInbox(store, null, null, 0)) {
+			inbox.start();
+			final String list = get(inbox, "/messages?to=b%40test");
+			assertThat(list, containsString("\"id\":\"id1\""));
+			assertThat(list, not(containsString("\"id\":\"id0\"")));
+			assertThat(list, containsString("\"next\":2"));
+			assertThat(get(inbox, "/messages?after=2"), is("{\"next\":2,\"messages\":[]}"));
+			assertThat(get(inbox, "/messages/id0"), is("first"));
+		}
+	}
+
+	@Test
+	public void streamsStoredMessagesFromTheFolder() throws IOException {
+		final Path folder = temporaryFolder.getRoot().toPath();
+		final String id = "2015-06-01T12.30.00.123+0200-007";
+		final TestMessage stored = message(id, "a@test", "Subject: stored\r\n\r\nfrom disk");
+		try (final OutputStream out = Files.newOutputStream(folder.resolve(id + ".log"))) {
+			stored.writeTo(out);
+		}
+		final String compressedId = "2015-06-01T12.30.00.123+0200-008";
+		final TestMessage compressed = message(compressedId, "a@test", "Subject: compressed\r\n\r\nfrom disk");
+		try (final OutputStream out = new GZIPOutputStream(Files.newOutputStream(folder.resolve(compressedId + ".log.gz")))) {
+			compressed.writeTo(out);
+		}
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 1000);
+		store.accept(message("id0", "a@test", "in memory"));
+		try (final HttpInbox inbox = new HttpInbox(store, null, folder, 0)) {
+			inbox.start();
+			assertThat(get(inbox, "/messages/" + id), is("Subject: stored\r\n\r\nfrom disk"));
+			assertThat(get(inbox, "/messages/" + compressedId), is("Subject: compressed\r\n\r\nfrom disk"));
+			assertThat(get(inbox, "/messages/id0"), is("in memory"));
+			assertThat(status(inbox, "/messages/..%2F" + id), is(404));
+		}
+	}
+
+	@Test
+	public void streamsStoredMessagesFromSegments() throws IOException {
+		final Path folder = temporaryFolder.getRoot().toPath();
+		final TestMessage first = message("2015-06-01T12.30.00.123+0200-001", "a@test", "first");
+		final TestMessage second = message("2015-06-01T12.30.00.123+0200-002", "a@test", "second");
+		try (final SegmentStore segments = new SegmentStore(folder, 1024 * 1024);
+				final HttpInbox inbox = new HttpInbox(new InMemoryMessageStore(100, 1000), null, folder, 0)) {
+			inbox.start();
+			segments.append(first.getId(), first.getTimestamp(), first::writeTo);
+			assertThat(get(inbox, "/messages/" + first.getId()), is("first"));
+			//Appended to the segment the inbox already reads:
+			segments.append(second.getId(), second.getTimestamp(), second::writeTo);
+			assertThat(get(inbox, "/messages/" + second.getId()), is("second"));
+			assertThat(get(inbox, "/messages/" + first.getId()), is("first"));
+			assertThat(status(inbox, "/messages/2015-06-01T12.30.00.123+0200-003"), is(404));
+		}
+	}
+
+	@Test
+	public void unknownPathsAreNotFound() throws IOException {
+		try (final HttpInbox inbox = new HttpInbox(new InMemoryMessageStore(100, 1000), null, null, 0)) {
+			inbox.start();
+			assertThat(status(inbox, "/searchx"), is(404));
+			assertThat(status(inbox, "/messagesx"), is(404));
+			assertThat(status(inbox, "/messages/unknown"), is(404));
+		}
+	}
+
+	private static TestMessage message(final String id, final String recipient, final String data) {
+		return new TestMessage(id, System.currentTimeMillis(), "from@test", 
+				singletonList(recipient), data.getBytes(UTF_8));
+	}
+
+	private static String get(final HttpInbox inbox, final String path) throws IOException {
+		final HttpURLConnection connection = 
+				(HttpURLConnection) new URL("http://localhost:" + inbox.getPort() + path).openConnection();
+		try (final InputStream in = connection.getInputStream()) {
+			return new String(ByteStreams.toByteArray(in), UTF_8);
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private static int status(final HttpInbox inbox, final String path) throws IOException {
+		final HttpURLConnection connection = 
+				(HttpURLConnection) new URL("http://localhost:" + inbox.getPort() + path).openConnection();
+		try {
+			return connection.getResponseCode();
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+}
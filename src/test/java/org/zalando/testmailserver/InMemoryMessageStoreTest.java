@@ -0,0 +1,104 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class InMemoryMessageStoreTest {
+
+	@Test
+	public void oldestMessagesAreEvictedByCount() {
+		final InMemoryMessageStore store = new InMemoryMessageStore(3, 1000);
+		for (int i = 0; i < 5; i++) store.accept(message("id" + i, "to" + i + "@test", 10));
+		assertThat(ids(store.getMessages()), contains("id2", "id3", "id4"));
+	}
+
+	@Test
+	public void oldestMessagesAreEvictedBySize() {
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 25);
+		for (int i = 0; i < 5; i++) store.accept(message("id" + i, "to" + i + "@test", 10));
+		assertThat(ids(store.getMessages()), contains("id3", "id4"));
+	}
+
+	@Test
+	public void messagesCanBeFiltered() {
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 1000);
+		for (int i = 0; i < 5; i++) store.accept(message("id" + i, "to" + i % 2 + "@test", 10));
+		assertThat(ids(store.getMessages(MessageFilters.to("TO1@test"))), contains("id1", "id3"));
+		assertThat(store.getMessage("id4").isPresent(), is(true));
+	}
+
+	@Test
+	public void pagesContinueAfterCursor() {
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 1000);
+		for (int i = 0; i < 5; i++) store.accept(message("id" + i, "to" + i % 2 + "@test", 10));
+		final InMemoryMessageStore.Page first = store.getPage(0, MessageFilters.to("to0@test"), 2);
+		assertThat(ids(first.getMessages()), contains("id0", "id2"));
+		final InMemoryMessageStore.Page second = store.getPage(first.getNextCursor(), MessageFilters.to("to0@test"), 2);
+		assertThat(ids(second.getMessages()), contains("id4"));
+		store.accept(message("id5", "to0@test", 10));
+		assertThat(ids(store.getPage(second.getNextCursor(), m -> true, 2).getMessages()), contains("id5"));
+	}
+
+	@Test
+	public void awaitWakesUpWhenMatchingMessageArrives() throws Exception {
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 1000);
+		store.accept(message("id0", "other@test", 10));
+		final Thread sender = new Thread(() -> {
+			store.accept(message("id1", "other@test", 10));
+			store.accept(message("id2", "wanted@test", 10));
+		});
+		sender.start();
+		final List<TestMessage> messages = 
+				store.awaitMessages(MessageFilters.to("wanted@test"), 1, Duration.ofSeconds(10));
+		assertThat(ids(messages), contains("id2"));
+		sender.join();
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void awaitTimesOut() throws Exception {
+		final InMemoryMessageStore store = new InMemoryMessageStore(100, 1000);
+		store.accept(message("id0", "wanted@test", 10));
+		store.awaitMessages(MessageFilters.to("wanted@test"), 2, Duration.ofMillis(50));
+	}
+
+	static TestMessage message(final String id, final String recipient, final int size) {
+		return new TestMessage(id, System.currentTimeMillis(), "from@test", 
+				singletonList(recipient), new byte[size]);
+	}
+
+	private static List<String> ids(final List<TestMessage> messages) {
+		return messages.stream().map(TestMessage::getId).collect(Collectors.toList());
+	}
+
+}
@@ -0,0 +1,68 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+
+import org.junit.Test;
+import org.zalando.testmailserver.LoadGenerator.Phase;
+
+public class LoadGeneratorTest {
+
+	@Test
+	public void sendsAllMessagesWithAndWithoutPipelining() throws Exception {
+		try (TestMailServer server = new TestMailServer(0)) {
+			server.useNioFrontEnd(1);
+			server.enableInMemoryStore(1000, 10 * 1024 * 1024);
+			server.start();
+			final LoadGenerator.Options options = LoadGenerator.Options.parse(new String[]{
+					"--port=" + server.getPort(), "--connections=3", "--messages=30", "--size=2000", 
+					"--recipients=2", "--messagesPerConnection=4"});
+			final LoadGenerator.Report report = new LoadGenerator(options).run(silent());
+			assertThat(report.getSent(), is(30L));
+			assertThat(report.getFailed(), is(0L));
+			assertThat(report.getLatencies().get(Phase.RCPT).getCount(), is(60L));
+			assertThat(report.getLatencies(), not(hasKey(Phase.ENVELOPE)));
+
+			options.pipelining = true;
+			options.rate = 200;
+			final LoadGenerator.Report pipelined = new LoadGenerator(options).run(silent());
+			assertThat(pipelined.getSent(), is(30L));
+			assertThat(pipelined.getLatencies().get(Phase.ENVELOPE).getCount(), is(30L));
+			assertThat(pipelined.getLatencies(), not(hasKey(Phase.RCPT)));
+			assertThat(server.awaitMessages(m -> true, 60, Duration.ofSeconds(10)).size(), is(60));
+		}
+	}
+
+	private static PrintStream silent() {
+		return new PrintStream(new ByteArrayOutputStream());
+	}
+
+}
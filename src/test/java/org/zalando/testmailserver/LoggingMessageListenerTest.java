@@ -0,0 +1,137 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.core.Appender;
+
+/**
+ * Streams into the OneFilePerEventAppender of logback-test.xml.
+ */
+public class LoggingMessageListenerTest {
+
+	private static final Path FOLDER = Paths.get("testlogs/msg");
+
+	private final LoggingMessageListener listener = new LoggingMessageListener(true);
+	private Set<Path> before;
+
+	@Before
+	public void listFiles() throws IOException {
+		Files.createDirectories(FOLDER);
+		before = files();
+	}
+
+	@Test
+	public void streamedMessageIsStored() throws IOException {
+		listener.deliver("from@test", singletonList("to@test"), 
+				new ByteArrayInputStream("Subject: streamed\r\n\r\nBody\r\n".getBytes(UTF_8)));
+		final List<Path> added = added();
+		assertThat(added.size(), is(1));
+		assertThat(new String(Files.readAllBytes(added.get(0)), UTF_8), 
+				containsString("Envelope recipient: to@test\n\nSubject: streamed\r\n\r\nBody\r\n"));
+	}
+
+	@Test
+	public void abortedMessageIsDiscarded() throws IOException {
+		final InputStream aborted = new SequenceInputStream(
+				new ByteArrayInputStream("Subject: aborted\r\n\r\nBeginning".getBytes(UTF_8)),
+				new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("Client disconnected.");
+					}
+				});
+		try {
+			listener.deliver("from@test", singletonList("to@test"), aborted);
+			fail();
+		} catch (final IOException expected) {
+			assertThat(expected.getMessage(), is("Client disconnected."));
+		}
+		assertThat(added(), is(empty()));
+		assertThat(messageAppender().isStarted(), is(true));
+
+		streamedMessageIsStored();
+	}
+
+	@Test
+	public void messagesAreStreamedAndPassedToConsumers() throws IOException {
+		final List<TestMessage> consumed = new CopyOnWriteArrayList<>();
+		listener.addConsumer(consumed::add);
+		listener.setMaxConsumedSize(32);
+		listener.deliver("from@test", singletonList("to@test"), 
+				new ByteArrayInputStream("Subject: small\r\n\r\nBody\r\n".getBytes(UTF_8)));
+		listener.deliver("from@test", singletonList("to@test"), 
+				new ByteArrayInputStream("Subject: large\r\n\r\nLarger than the limit\r\n".getBytes(UTF_8)));
+		final List<Path> added = added();
+		assertThat(added.size(), is(2));
+		assertThat(consumed.size(), is(1));
+		assertThat(new String(consumed.get(0).getData(), UTF_8), is("Subject: small\r\n\r\nBody\r\n"));
+		assertThat(consumed.get(0).getEnvelopeReceivers(), is(singletonList("to@test")));
+		final String logged = new String(Files.readAllBytes(FOLDER.resolve(consumed.get(0).getId() + ".log")), UTF_8);
+		assertThat(logged, containsString("Subject: small\r\n\r\nBody\r\n"));
+	}
+
+	private static Appender<?> messageAppender() {
+		final Logger logger = (Logger) LoggerFactory.getLogger(LoggingMessageListener.MSG_LOG_NAME);
+		return logger.getAppender("MSG");
+	}
+
+	private List<Path> added() throws IOException {
+		final Set<Path> result = files();
+		result.removeAll(before);
+		return result.stream().collect(Collectors.toList());
+	}
+
+	private static Set<Path> files() throws IOException {
+		try (Stream<Path> files = Files.list(FOLDER)) {
+			return files.collect(Collectors.toCollection(HashSet::new));
+		}
+	}
+
+}
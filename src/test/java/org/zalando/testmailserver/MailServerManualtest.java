@@ -22,12 +22,18 @@
  */
 package org.zalando.testmailserver;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
 
+import java.net.Socket;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import javax.mail.Message;
@@ -38,7 +44,9 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
 import org.junit.Test;
+import org.zalando.testmailserver.util.ReusePort;
 import org.zalando.testmailserver.util.Utils;
+import org.zalando.testmailserver.util.VirtualThreads;
 
 public class MailServerManualtest {
 
@@ -56,6 +64,88 @@ public class MailServerManualtest {
 		assertThat(Utils.countDirectChildren(logDir), is(countBeforeMail+1));
 	}
 	
+	@Test
+	public void messageWithSeveralRecipientsIsStoredOnce() throws Exception {
+		final int port = 2025;
+		final Path logDir = FileSystems.getDefault().getPath("testlogs/msg").toAbsolutePath();
+		int countBeforeMail;
+		try (TestMailServer testMailServer = new TestMailServer(port)) {
+			testMailServer.start();
+			countBeforeMail = Utils.countDirectChildren(logDir);
+			sendMail(port, "recipient1@test", "recipient2@test", "recipient3@test");
+		}
+		assertThat(Utils.countDirectChildren(logDir), is(countBeforeMail+1));
+	}
+
+	@Test
+	public void messagesCanBeQueriedInMemory() throws Exception {
+		final int port = 2025;
+		try (TestMailServer testMailServer = new TestMailServer(port)) {
+			testMailServer.enableInMemoryStore(100, 10 * 1024 * 1024);
+			testMailServer.start();
+			sendMail(port, "recipient1@test", "recipient2@test");
+			final List<TestMessage> messages = testMailServer.awaitMessages(
+					MessageFilters.to("recipient2@test"), 1, Duration.ofSeconds(10));
+			assertThat(messages.size(), is(1));
+			assertThat(messages.get(0).getEnvelopeReceivers(), contains("recipient1@test", "recipient2@test"));
+		}
+	}
+
+	@Test
+	public void messagesAreReceivedByNioFrontEnd() throws Exception {
+		final int port = 2025;
+		try (TestMailServer testMailServer = new TestMailServer(port)) {
+			testMailServer.useNioFrontEnd(2);
+			testMailServer.enableInMemoryStore(100, 10 * 1024 * 1024);
+			testMailServer.start();
+			sendMail(port, "nio1@test", "nio2@test");
+			final List<TestMessage> messages = testMailServer.awaitMessages(
+					MessageFilters.to("nio2@test"), 1, Duration.ofSeconds(10));
+			assertThat(messages.get(0).getEnvelopeReceivers(), contains("nio1@test", "nio2@test"));
+		}
+	}
+
+	@Test
+	public void messagesAreReceivedOnAllPorts() throws Exception {
+		try (TestMailServer testMailServer = new TestMailServer(2025)) {
+			testMailServer.addPort(2587);
+			testMailServer.enableTracing(1);
+			if (ReusePort.isSupported()) testMailServer.setAcceptorsPerPort(2);
+			testMailServer.enableInMemoryStore(100, 10 * 1024 * 1024);
+			testMailServer.start();
+			assertThat(testMailServer.getPorts(), contains(2025, 2587));
+			sendMail(2025, "port25@test");
+			sendMail(2587, "port587@test");
+			assertThat(testMailServer.awaitMessages(MessageFilters.to("port587@test"), 1, Duration.ofSeconds(10)).size(), 
+					is(1));
+			assertThat(testMailServer.awaitMessages(MessageFilters.to("port25@test"), 1, Duration.ofSeconds(10)).size(), 
+					is(1));
+		}
+	}
+
+	/**
+	 * Needs Java 21 and a limit of open files above 10000.
+	 */
+	@Test
+	public void manyIdleConnectionsWithVirtualThreads() throws Exception {
+		assumeTrue(VirtualThreads.isSupported());
+		final int port = 2025;
+		final int idle = 10000;
+		final List<Socket> sockets = new ArrayList<>();
+		try (TestMailServer testMailServer = new TestMailServer(port)) {
+			testMailServer.useVirtualThreads();
+			testMailServer.setMaxConnections(idle + 100);
+			testMailServer.enableInMemoryStore(100, 10 * 1024 * 1024);
+			testMailServer.start();
+			for (int i = 0; i < idle; i++) sockets.add(new Socket("localhost", port));
+			sendMail(port, "virtual@test");
+			assertThat(testMailServer.awaitMessages(MessageFilters.to("virtual@test"), 1, Duration.ofSeconds(10)).size(), 
+					is(1));
+		} finally {
+			for (final Socket socket : sockets) socket.close();
+		}
+	}
+
 	/**
 	 * Needs a server that already runs on port 25.
 	 */
@@ -67,15 +157,20 @@ public class MailServerManualtest {
 
 
 	static void sendMail(final int port) throws MessagingException {
+		sendMail(port, "recipient@test");
+	}
+
+	static void sendMail(final int port, final String... recipients) throws MessagingException {
 		final Properties properties = new Properties();
 		properties.setProperty("mail.smtp.host", "localhost");
 		properties.setProperty("mail.smtp.port", Integer.toString(port));
 		final String from = "sender@test";
-		final String to = "recipient@test";
 		final Session session = Session.getDefaultInstance(properties);
 		final MimeMessage message = new MimeMessage(session);
 		message.setFrom(new InternetAddress(from));
-		message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+		for (final String to : recipients) {
+			message.addRecipient(Message.RecipientType.TO, new InternetAddress(to));
+		}
 		message.setSubject("Subject 1");
 		message.setText("This is the message.");
 		Transport.send(message);
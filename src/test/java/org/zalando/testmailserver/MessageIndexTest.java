@@ -0,0 +1,143 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zalando.testmailserver.store.SegmentStore;
+
+public class MessageIndexTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void headersAndEnvelopeAreIndexed() {
+		final MessageIndex index = new MessageIndex("X-Correlation-ID");
+		index.accept(message("id0", "user-1@test", "Hello", "<a@test>", "c-1"));
+		index.accept(message("id1", "user-2@test", "=?UTF-8?Q?Gr=C3=BC=C3=9Fe?=", "<b@test>", "c-2"));
+		index.accept(message("id2", "user-1@test", "Hello", "<c@test>", "c-1"));
+		assertThat(index.findByRecipient("USER-1@test"), contains("id0", "id2"));
+		assertThat(index.findBySender("from@test"), contains("id0", "id1", "id2"));
+		assertThat(index.findBySubject("hello"), contains("id0", "id2"));
+		assertThat(index.findBySubject("Grüße"), contains("id1"));
+		assertThat(index.findByMessageId("b@test"), is(Optional.of("id1")));
+		assertThat(index.findByCorrelation("c-1"), contains("id0", "id2"));
+	}
+
+	@Test
+	public void messagesAreRemoved() {
+		final MessageIndex index = new MessageIndex("X-Correlation-ID", 2);
+		index.accept(message("id0", "user-1@test", "Hello", "<a@test>", "c-1"));
+		index.accept(message("id1", "user-1@test", "Hello", "<b@test>", "c-1"));
+		index.accept(message("id2", "user-2@test", "Bye", "<c@test>", "c-2"));
+		//id0 has been removed to make room for id2:
+		assertThat(index.size(), is(2));
+		assertThat(index.findByRecipient("user-1@test"), contains("id1"));
+		assertThat(index.findByMessageId("a@test"), is(Optional.empty()));
+		assertThat(index.remove("id1"), is(true));
+		assertThat(index.remove("id1"), is(false));
+		assertThat(index.findByRecipient("user-1@test"), is(empty()));
+		assertThat(index.findBySender("from@test"), contains("id2"));
+		assertThat(index.size(), is(1));
+	}
+
+	@Test
+	public void indexIsRebuiltFromFiles() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		try (OutputStream out = Files.newOutputStream(folder.resolve("id0.log"))) {
+			message("id0", "user-1@test", "Hello", "<a@test>", "c-1").writeTo(out);
+		}
+		try (SegmentStore store = new SegmentStore(folder, 1000)) {
+			final TestMessage message = message("id1", "user-1@test", "Hello", "<b@test>", "c-2");
+			store.append(message.getId(), message.getTimestamp(), message::writeTo);
+		}
+		final MessageIndex index = new MessageIndex("X-Correlation-ID");
+		index.accept(message("id2", "user-1@test", "Hello", "<c@test>", "c-1"));
+		index.rebuild(folder);
+		assertThat(index.size(), is(3));
+		assertThat(index.findByRecipient("user-1@test"), contains("id2", "id0", "id1"));
+		assertThat(index.findByMessageId("<b@test>"), is(Optional.of("id1")));
+		index.rebuild(folder);
+		assertThat(index.size(), is(3));
+	}
+
+	@Test
+	public void compressedFilesAreIndexed() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(folder.resolve("id0.log.gz")))) {
+			message("id0", "user-1@test", "Hello", "<a@test>", "c-1").writeTo(out);
+		}
+		final MessageIndex index = new MessageIndex("X-Correlation-ID");
+		index.rebuild(folder);
+		assertThat(index.findByRecipient("user-1@test"), contains("id0"));
+		assertThat(index.findByMessageId("a@test"), is(Optional.of("id0")));
+		assertThat(index.findByCorrelation("c-1"), contains("id0"));
+	}
+
+	@Test
+	public void filesAreIndexedOldestFirstAndCorruptOnesSkipped() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		//Created in reverse order, so that the directory order is unlikely to be the right one:
+		for (final String id : asList("2015-06-01T12.30.02.000+0200-000", "2015-06-01T12.30.01.000+0200-000", 
+				"2015-06-01T12.30.00.000+0200-000")) {
+			try (OutputStream out = Files.newOutputStream(folder.resolve(id + ".log"))) {
+				message(id, "user-1@test", "Hello", "<a@test>", "c-1").writeTo(out);
+			}
+		}
+		Files.write(folder.resolve("2015-06-01T12.30.03.000+0200-000.log.gz"), "not gzip".getBytes(UTF_8));
+		final MessageIndex index = new MessageIndex("X-Correlation-ID", 2);
+		index.rebuild(folder);
+		//The oldest message has been removed to make room:
+		assertThat(index.findByRecipient("user-1@test"), 
+				contains("2015-06-01T12.30.01.000+0200-000", "2015-06-01T12.30.02.000+0200-000"));
+		assertThat(index.findByMessageId("a@test"), is(Optional.of("2015-06-01T12.30.02.000+0200-000")));
+	}
+
+	private static TestMessage message(final String id, final String recipient, final String subject, 
+			final String messageId, final String correlation) {
+		final String data = "Subject: " + subject + "\r\n"
+				+ "Message-ID:\r\n " + messageId + "\r\n"
+				+ "X-Correlation-ID: " + correlation + "\r\n"
+				+ "\r\n"
+				+ "Body\r\n";
+		return new TestMessage(id, System.currentTimeMillis(), "from@test", asList(recipient, "cc@test"), 
+				data.getBytes(UTF_8));
+	}
+
+}
@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.zalando.testmailserver.util.ContentSection;
+
+public class MimePartTest {
+
+	private static final String DATA = "Subject: Multi\r\n"
+			+ " line\r\n"
+			+ "Content-Type: multipart/mixed;\r\n"
+			+ "\tboundary=\"outer\"\r\n"
+			+ "\r\n"
+			+ "Preamble\r\n"
+			+ "--outer\r\n"
+			+ "Content-Type: text/plain\r\n"
+			+ "\r\n"
+			+ "First\r\n"
+			+ "--outer\r\n"
+			+ "Content-Type: multipart/alternative; boundary=inner\r\n"
+			+ "\r\n"
+			+ "--inner\r\n"
+			+ "\r\n"
+			+ "Second\r\n"
+			+ "--inner--\r\n"
+			+ "--outer--\r\n"
+			+ "Epilogue\r\n";
+
+	@Test
+	public void headersAndPartsAreViewsOfTheData() {
+		final TestMessage message = new TestMessage("id", 0, "from@test", singletonList("to@test"), 
+				DATA.getBytes(UTF_8));
+		final MimePart mime = message.getMime();
+		assertThat(mime.getHeader("SUBJECT"), is(Optional.of("Multi line")));
+		assertThat(mime.getMimeType(), is("multipart/mixed"));
+		final List<MimePart> parts = mime.getParts();
+		assertThat(parts.size(), is(2));
+		assertThat(text(parts.get(0).getBody()), is("First"));
+		assertThat(parts.get(0).getMimeType(), is("text/plain"));
+		final List<MimePart> inner = parts.get(1).getParts();
+		assertThat(inner.size(), is(1));
+		assertThat(text(inner.get(0).getBody()), is("Second"));
+		assertThat(inner.get(0).getMimeType(), is("text/plain"));
+		assertThat(parts.get(0).getBody().isReadOnly(), is(true));
+	}
+
+	@Test
+	public void dataIsNotShared() {
+		final TestMessage message = new TestMessage("id", 0, "from@test", singletonList("to@test"), 
+				DATA.getBytes(UTF_8));
+		final byte[] data = message.getData();
+		data[0] = 'x';
+		assertThat(message.getData()[0], is(DATA.getBytes(UTF_8)[0]));
+		assertThat(message.getMime(), sameInstance(message.getMime()));
+		assertThat(text(message.getDataBuffer()), is(DATA));
+	}
+
+	@Test
+	public void bodiesAreSharedSections() throws IOException {
+		final TestMessage message = new TestMessage("id", 0, "from@test", singletonList("to@test"), 
+				DATA.getBytes(UTF_8));
+		final StringBuilder concatenated = new StringBuilder();
+		final List<String> shared = new ArrayList<>();
+		for (final ContentSection section : message.getSections()) {
+			concatenated.append(text(section.getData()));
+			if (section.isShared()) shared.add(text(section.getData()));
+		}
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		message.writeTo(written);
+		assertThat(concatenated.toString(), is(new String(written.toByteArray(), UTF_8)));
+		assertThat(shared, contains("First", "Second"));
+	}
+
+	private static String text(final ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.zalando.testmailserver.metrics.ServerMetrics;
+import org.zalando.testmailserver.metrics.SessionTimes;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+public class MultiRecipientMessageListenerAdapterTest {
+
+	private final List<List<String>> deliveredTo = new ArrayList<>();
+	private final List<String> deliveredData = new ArrayList<>();
+
+	private final MultiRecipientMessageListener listener = new MultiRecipientMessageListener() {
+		@Override
+		public boolean accept(final String from, final String recipient) {
+			return !recipient.startsWith("unknown");
+		}
+
+		@Override
+		public void deliver(final String from, final List<String> recipients, final InputStream data) 
+				throws IOException {
+			deliveredTo.add(ImmutableList.copyOf(recipients));
+			deliveredData.add(new String(ByteStreams.toByteArray(data), UTF_8));
+		}
+	};
+
+	@Test
+	public void transactionIsDeliveredOnceWithAllRecipients() throws IOException {
+		final MessageHandler handler = new MultiRecipientMessageListenerAdapter(listener).create(context());
+		handler.from("from@test");
+		handler.recipient("first@test");
+		handler.recipient("second@test");
+		try {
+			handler.recipient("unknown@test");
+			fail();
+		} catch (final RejectException expected) {
+			assertThat(expected.getCode(), is(553));
+		}
+		handler.recipient("third@test");
+		handler.data(new ByteArrayInputStream("Subject: test\r\n\r\nBody\r\n".getBytes(UTF_8)));
+		handler.done();
+		assertThat(deliveredTo, contains(contains("first@test", "second@test", "third@test")));
+		assertThat(deliveredData, contains("Subject: test\r\n\r\nBody\r\n"));
+	}
+
+	@Test
+	public void firstMessageIsMeasuredFromTheAccept() throws IOException {
+		final long connected = System.nanoTime() - TimeUnit.SECONDS.toNanos(100);
+		final AtomicInteger transactions = new AtomicInteger();
+		final MessageContext ctx = (MessageContext) Proxy.newProxyInstance(MessageContext.class.getClassLoader(), 
+				new Class<?>[] {MessageContext.class, SessionTimes.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getConnectedNanos": return connected;
+					case "getHeloNanos": return 0L;
+					case "startTransaction": return transactions.getAndIncrement();
+					default: return null;
+					}
+				});
+		final MessageHandler handler = new MultiRecipientMessageListenerAdapter(listener).create(ctx);
+		handler.from("from@test");
+		handler.recipient("to@test");
+		handler.data(new ByteArrayInputStream("Subject: test\r\n\r\nBody\r\n".getBytes(UTF_8)));
+		handler.done();
+		assertThat(transactions.get(), is(1));
+		assertThat(ServerMetrics.getInstance().getDeliveryLatency().getMaxMicros(), 
+				greaterThanOrEqualTo(TimeUnit.SECONDS.toMicros(100)));
+	}
+
+	private static MessageContext context() {
+		return (MessageContext) Proxy.newProxyInstance(MessageContext.class.getClassLoader(), 
+				new Class<?>[] {MessageContext.class}, (proxy, method, args) -> null);
+	}
+
+}
@@ -0,0 +1,67 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import ch.qos.logback.core.ContextBase;
+
+public class AbstractAppenderTest {
+
+	@Test
+	public void noAppendAfterStopHasReturned() throws InterruptedException {
+		final AtomicLong appended = new AtomicLong();
+		final AbstractAppender<Object> appender = new AbstractAppender<Object>() {
+			@Override
+			protected void append(final Object event) {
+				appended.incrementAndGet();
+			}
+		};
+		appender.setContext(new ContextBase());
+		appender.setName("test");
+		appender.start();
+		final AtomicBoolean run = new AtomicBoolean(true);
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				while (run.get()) appender.doAppend(new Object());
+			});
+			threads[i].start();
+		}
+		Thread.sleep(50);
+		appender.stop();
+		final long afterStop = appended.get();
+		assertThat(appender.isStarted(), is(false));
+		Thread.sleep(50);
+		run.set(false);
+		for (final Thread thread : threads) thread.join();
+		assertThat(appended.get(), is(afterStop));
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import ch.qos.logback.core.ContextBase;
+
+/**
+ * Measures the throughput of {@link AbstractAppender#doAppend(Object)} with an appender that
+ * does nothing, for an increasing number of threads. Without contention in doAppend, the
+ * throughput grows with the number of threads up to the number of cores.
+ */
+public class AppenderContentionManualtest {
+
+	private static final long DURATION_MILLIS = 2000;
+
+	@Test
+	public void throughputScalesWithThreads() throws Exception {
+		final int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores * 2; threads *= 2) {
+			final double perSecond = measure(threads);
+			System.out.println(String.format("%2d threads: %,15.0f appends/s", threads, perSecond));
+		}
+	}
+
+	private static double measure(final int threadCount) throws InterruptedException {
+		final LongAdder appended = new LongAdder();
+		final AbstractAppender<Object> appender = new AbstractAppender<Object>() {
+			@Override
+			protected void append(final Object event) {
+				appended.increment();
+			}
+		};
+		appender.setContext(new ContextBase());
+		appender.setName("benchmark");
+		appender.start();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[threadCount];
+		final long[] end = new long[1];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(() -> {
+				final Object event = new Object();
+				try {
+					start.await();
+				} catch (final InterruptedException e) {
+					return;
+				}
+				while (System.nanoTime() < end[0]) {
+					for (int j = 0; j < 1000; j++) appender.doAppend(event);
+				}
+			});
+			threads[i].start();
+		}
+		end[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+		start.countDown();
+		for (final Thread thread : threads) thread.join();
+		appender.stop();
+		return appended.sum() * 1000.0 / DURATION_MILLIS;
+	}
+
+}
@@ -0,0 +1,127 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncBatchWriterTest {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CountDownLatch handling = new CountDownLatch(1);
+	private final List<Integer> written = new CopyOnWriteArrayList<>();
+	private final List<String> errors = new CopyOnWriteArrayList<>();
+	private AsyncBatchWriter<Integer> writer;
+
+	@After
+	public void stop() throws InterruptedException {
+		release.countDown();
+		if (writer != null) writer.stop();
+	}
+
+	@Test
+	public void blockWaitsForSpace() throws InterruptedException {
+		fill(OverflowPolicy.BLOCK);
+		final Thread blocked = new Thread(() -> {
+			try {
+				writer.submit(3);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		blocked.start();
+		blocked.join(200);
+		assertThat(blocked.isAlive(), is(true));
+		release.countDown();
+		blocked.join(5000);
+		assertThat(blocked.isAlive(), is(false));
+		writer.stop();
+		assertThat(written, contains(0, 1, 2, 3));
+	}
+
+	@Test
+	public void dropDiscardsAndCounts() throws InterruptedException {
+		fill(OverflowPolicy.DROP);
+		assertThat(writer.submit(3), is(false));
+		assertThat(writer.getDroppedCount(), is(1L));
+		release.countDown();
+		writer.stop();
+		assertThat(written, contains(0, 1, 2));
+	}
+
+	@Test
+	public void rejectThrows() throws InterruptedException {
+		fill(OverflowPolicy.REJECT);
+		try {
+			writer.submit(3);
+			fail();
+		} catch (final AppendRejectedException expected) {
+		}
+		release.countDown();
+		writer.stop();
+		assertThat(written, contains(0, 1, 2));
+		assertThat(writer.getDroppedCount(), is(0L));
+	}
+
+	@Test
+	public void failedBatchDoesNotStopTheWriter() throws InterruptedException {
+		writer = new AsyncBatchWriter<>("test", 4, 1, OverflowPolicy.BLOCK, batch -> {
+			if (batch.get(0) == 0) throw new IllegalStateException("test");
+			written.addAll(batch);
+		}, (message, e) -> errors.add(message));
+		writer.start();
+		writer.submit(0);
+		writer.submit(1);
+		writer.stop();
+		assertThat(written, contains(1));
+		assertThat(errors.size(), is(1));
+	}
+
+	/**
+	 * Starts a writer with queue size 2 whose handler blocks on the first item,
+	 * and fills the queue.
+	 */
+	private void fill(final OverflowPolicy policy) throws InterruptedException {
+		writer = new AsyncBatchWriter<>("test", 2, 1, policy, batch -> {
+			handling.countDown();
+			release.await();
+			written.addAll(batch);
+		}, (message, e) -> errors.add(message));
+		writer.start();
+		writer.submit(0);
+		assertThat(handling.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(writer.submit(1), is(true));
+		assertThat(writer.submit(2), is(true));
+	}
+
+}
@@ -0,0 +1,126 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageRetentionTest {
+
+	private static final long NOW = 1_000_000;
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void oldestMessagesAreDeletedFirst() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		write(folder, "b.log", 100, NOW - 500);
+		write(folder, "a.log", 100, NOW - 600);
+		write(folder, "other.txt", 1000, NOW - 600);
+		final MessageRetention retention = new MessageRetention("test", folder, 
+				name -> name.endsWith(".log"), Files::delete, 0, 250, 0, 1000, (m, e) -> {});
+		retention.scan();
+		retention.check(NOW);
+		assertThat(retention.getDeletedCount(), is(0L));
+
+		retention.added(write(folder, "c.log", 100, NOW));
+		retention.check(NOW);
+		assertThat(files(folder), contains("b.log", "c.log", "other.txt"));
+	}
+
+	@Test
+	public void ageAndCountAreLimited() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		write(folder, "a.log", 1, NOW - 600);
+		write(folder, "b.log", 1, NOW - 500);
+		write(folder, "c.log", 1, NOW - 100);
+		write(folder, "d.log", 1, NOW);
+		final MessageRetention retention = new MessageRetention("test", folder, 
+				name -> name.endsWith(".log"), Files::delete, 450, 0, 3, 1000, (m, e) -> {});
+		retention.scan();
+		retention.check(NOW);
+		assertThat(files(folder), contains("c.log", "d.log"));
+		assertThat(retention.getDeletedCount(), is(2L));
+	}
+
+	@Test
+	public void reportedMessagesAreAgedLikeScannedOnes() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		write(folder, "a.log", 1, NOW - 500);
+		final MessageRetention retention = new MessageRetention("test", folder, 
+				name -> name.endsWith(".log"), Files::delete, 450, 0, 0, 1000, (m, e) -> {});
+		retention.scan();
+		//The age is that of the file, not of the report:
+		retention.added(write(folder, "b.log", 1, NOW - 460));
+		retention.added(write(folder, "c.log", 1, NOW - 100));
+		retention.check(NOW);
+		assertThat(files(folder), contains("c.log"));
+	}
+
+	@Test
+	public void failuresAreReportedAndDoNotStopTheRetention() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		write(folder, "a.log", 1, NOW - 600);
+		write(folder, "b.log", 1, NOW - 500);
+		final List<String> errors = new ArrayList<>();
+		final MessageRetention retention = new MessageRetention("test", folder, 
+				name -> name.endsWith(".log"), file -> {
+					if (file.endsWith("a.log")) throw new IOException("locked");
+					Files.delete(file);
+				}, 0, 0, 1, 1000, (m, e) -> errors.add(m));
+		retention.scan();
+		retention.added(write(folder, "c.log", 1, NOW));
+		retention.check(NOW);
+		assertThat(errors.size(), is(1));
+		assertThat(files(folder), contains("a.log", "c.log"));
+	}
+
+	private static Path write(final Path folder, final String name, final int size, final long time) 
+			throws IOException {
+		final Path file = Files.write(folder.resolve(name), new byte[size]);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(time));
+		return file;
+	}
+
+	private static List<String> files(final Path folder) throws IOException {
+		try (Stream<Path> files = Files.list(folder)) {
+			return files.map(f -> f.getFileName().toString()).sorted().collect(Collectors.toList());
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.util.Duration;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+
+public class OneFilePerEventAppenderTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void asyncAppenderWritesQueuedEventsWhenStopped() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		final LoggerContext context = new LoggerContext();
+		final PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern("%msg");
+		layout.start();
+		final OneFilePerEventAppender<ILoggingEvent> appender = new OneFilePerEventAppender<>();
+		appender.setContext(context);
+		appender.setName("async");
+		appender.setFolder(folder.toString());
+		appender.setLayout(layout);
+		appender.setAsync(true);
+		appender.setQueueSize(4);
+		appender.setBatchSize(2);
+		appender.start();
+		final Logger logger = context.getLogger("test");
+		logger.setLevel(Level.INFO);
+		logger.addAppender(appender);
+		for (int i = 0; i < 20; i++) logger.info("message {}", i);
+		appender.stop();
+		assertThat(folder.toFile().list().length, is(20));
+		assertThat(appender.getDroppedCount(), is(0L));
+	}
+
+	@Test
+	public void deletedMessagesAreReported() throws IOException, InterruptedException {
+		final Path folder = tmp.getRoot().toPath();
+		final LoggerContext context = new LoggerContext();
+		final PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern("%msg");
+		layout.start();
+		final OneFilePerEventAppender<ILoggingEvent> appender = new OneFilePerEventAppender<>();
+		appender.setContext(context);
+		appender.setName("retention");
+		appender.setFolder(folder.toString());
+		appender.setLayout(layout);
+		appender.setMaxCount(2);
+		appender.setRetentionInterval(Duration.buildByMilliseconds(10));
+		final List<String> deleted = new CopyOnWriteArrayList<>();
+		appender.addDeletionListener(deleted::add);
+		appender.start();
+		try {
+			final Logger logger = context.getLogger("test");
+			logger.setLevel(Level.INFO);
+			logger.addAppender(appender);
+			for (int i = 0; i < 5; i++) logger.info("message {}", i);
+			for (int i = 0; i < 500 && deleted.size() < 3; i++) Thread.sleep(10);
+		} finally {
+			appender.stop();
+		}
+		assertThat(deleted.size(), is(3));
+		for (final String id : deleted) assertThat(id, Files.exists(folder.resolve(id + ".log")), is(false));
+		assertThat(folder.toFile().list().length, is(2));
+	}
+
+	@Test
+	public void largeEventsAreCompressed() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		final LoggerContext context = new LoggerContext();
+		final PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern("%msg");
+		layout.start();
+		final OneFilePerEventAppender<ILoggingEvent> appender = new OneFilePerEventAppender<>();
+		appender.setContext(context);
+		appender.setName("compressed");
+		appender.setFolder(folder.toString());
+		appender.setLayout(layout);
+		appender.setCompress(true);
+		appender.setCompressionThreshold(100);
+		appender.start();
+		final String large = Strings.repeat("large ", 100);
+		try {
+			final Logger logger = context.getLogger("test");
+			logger.setLevel(Level.INFO);
+			logger.addAppender(appender);
+			logger.info("small");
+			logger.info(large);
+		} finally {
+			appender.stop();
+		}
+		final String[] names = folder.toFile().list();
+		assertThat(names.length, is(2));
+		int compressed = 0;
+		for (final String name : names) {
+			if (name.endsWith(".log.gz")) {
+				compressed++;
+				try (InputStream in = new GZIPInputStream(Files.newInputStream(folder.resolve(name)))) {
+					assertThat(new String(ByteStreams.toByteArray(in), "UTF-8"), is(large));
+				}
+			} else {
+				assertThat(name.endsWith(".log"), is(true));
+				assertThat(new String(Files.readAllBytes(folder.resolve(name)), "UTF-8"), is("small"));
+			}
+		}
+		assertThat(compressed, is(1));
+	}
+
+}
@@ -0,0 +1,64 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.logbackext;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+public class RawContentEncoderTest {
+
+	@Test
+	public void rawContentIsWrittenUnchanged() throws IOException {
+		//Not valid UTF-8:
+		final byte[] data = new byte[]{'a', (byte) 0xE4, (byte) 0xFF, '\r', '\n'};
+		final RawContent content = out -> out.write(data);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final RawContentEncoder encoder = new RawContentEncoder();
+		encoder.init(out);
+		encoder.doEncode(event("{}", content));
+		encoder.doEncode(event("text", null));
+		encoder.close();
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(data);
+		expected.write("text".getBytes("UTF-8"));
+		assertThat(out.toByteArray(), is(expected.toByteArray()));
+	}
+
+	private static LoggingEvent event(final String message, final RawContent argument) {
+		final Logger logger = ((LoggerContext) LoggerFactory.getILoggerFactory()).getLogger("test");
+		return new LoggingEvent(Logger.class.getName(), logger, Level.DEBUG, message, null, 
+				argument == null ? null : new Object[]{argument});
+	}
+
+}
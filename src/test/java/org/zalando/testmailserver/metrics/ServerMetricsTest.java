@@ -0,0 +1,82 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+public class ServerMetricsTest {
+
+	@Test
+	public void bucketsCoverAllValues() {
+		long previousUpper = -1;
+		for (int i = 0; i < 300; i++) {
+			final long upper = LatencyHistogram.upperBound(i);
+			assertThat(LatencyHistogram.index(previousUpper + 1), is(i));
+			assertThat(LatencyHistogram.index(upper), is(i));
+			previousUpper = upper;
+		}
+		assertThat(LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)), is(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentilesAreWithinBucketPrecision() {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+		final LatencySnapshot snapshot = histogram.getSnapshot();
+		assertThat(snapshot.getCount(), is(1000L));
+		assertThat(snapshot.getP50Micros(), allOf(greaterThanOrEqualTo(500L), lessThanOrEqualTo(563L)));
+		assertThat(snapshot.getP99Micros(), allOf(greaterThanOrEqualTo(990L), lessThanOrEqualTo(1114L)));
+		assertThat(snapshot.getMaxMicros(), is(1000L));
+	}
+
+	@Test
+	public void metricsAreReadableOverJmx() throws Exception {
+		ServerMetrics.register();
+		final ServerMetrics metrics = ServerMetrics.getInstance();
+		final long messages = metrics.getMessages();
+		metrics.transactionStarted();
+		metrics.messageDelivered(100, System.nanoTime());
+		final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(ServerMetrics.OBJECT_NAME);
+		assertThat((Long) mBeanServer.getAttribute(name, "Messages"), is(messages + 1));
+		final CompositeData latency = (CompositeData) mBeanServer.getAttribute(name, "DeliveryLatency");
+		assertThat((Long) latency.get("count"), greaterThanOrEqualTo(1L));
+		assertThat((Double) mBeanServer.getAttribute(name, "MessagesPerSecond"), greaterThanOrEqualTo(0.0));
+		assertThat((Double) mBeanServer.getAttribute(name, "TransactionsPerSecond"), greaterThanOrEqualTo(0.0));
+		assertThat((Double) mBeanServer.getAttribute(name, "RecipientsPerSecond"), greaterThanOrEqualTo(0.0));
+	}
+
+}
@@ -0,0 +1,89 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.metrics;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SessionTracerTest {
+
+	@Test
+	public void overwrittenTracesAreCountedAsDropped() {
+		final List<String> written = new ArrayList<>();
+		final SessionTracer tracer = new SessionTracer(1, 4, trace -> written.add(trace.toString()));
+		for (int i = 0; i < 6; i++) {
+			final SessionTrace trace = tracer.begin(null, null);
+			for (int r = 0; r < i; r++) trace.recipient();
+			tracer.publish(trace);
+		}
+		tracer.dump();
+		assertThat(tracer.getDroppedCount(), is(2L));
+		assertThat(written.size(), is(4));
+		assertThat(written.get(0), containsString(" rcpts=2 "));
+		tracer.publish(tracer.begin(null, null));
+		tracer.dump();
+		assertThat(written.size(), is(5));
+	}
+
+	@Test
+	public void phasesAreRelativeToConnect() {
+		final List<SessionTrace> written = new ArrayList<>();
+		final SessionTracer tracer = new SessionTracer(1, 16, written::add);
+		final long connected = System.nanoTime() - 5_000_000;
+		final SessionTrace trace = tracer.begin(new InetSocketAddress("127.0.0.1", 1025), new SessionTimes() {
+			@Override
+			public long getConnectedNanos() {
+				return connected;
+			}
+
+			@Override
+			public long getHeloNanos() {
+				return connected + 1_000_000;
+			}
+		});
+		assertThat(trace, notNullValue());
+		trace.recipient();
+		trace.dataStarted();
+		trace.dataReceived();
+		trace.delivered(42, SessionTrace.Result.DELIVERED);
+		tracer.publish(trace);
+		tracer.dump();
+		assertThat(written, contains(trace));
+		final String text = trace.toString();
+		assertThat(text, text.matches("remote=/127.0.0.1:1025 helo=1000 mail=\\d+ rcpt=\\d+ "
+				+ "data=\\d+ received=\\d+ delivered=\\d+ rcpts=1 size=42 result=DELIVERED"), is(true));
+		//MAIL has been started at least 5 ms after the connect, however slow the clock is:
+		final long mail = Long.parseLong(text.replaceAll(".* mail=(\\d+) .*", "$1"));
+		assertThat(text, mail >= 5000, is(true));
+	}
+
+}
@@ -0,0 +1,309 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.nio;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.zalando.testmailserver.util.ReusePort;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+public class NioSmtpServerTest {
+
+	private final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+	private final BlockingQueue<String> doneThreads = new LinkedBlockingQueue<>();
+	private NioSmtpServer server;
+
+	@Before
+	public void start() throws IOException {
+		server = new NioSmtpServer(new RecordingFactory(), "localhost", 0, 2, Executors.newCachedThreadPool(), 100);
+		server.start();
+	}
+
+	@After
+	public void stop() throws Exception {
+		server.close();
+	}
+
+	@Test
+	public void messageIsDeliveredWithoutDotStuffing() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+			send(out, "EHLO client");
+			assertThat(readReply(in), contains("250-localhost", "250-8BITMIME", "250-PIPELINING", "250-CHUNKING", "250 Ok"));
+			send(out, "MAIL FROM:<from@test> BODY=8BITMIME");
+			assertThat(in.readLine(), is("250 Ok"));
+			send(out, "RCPT TO:<rejected@test>");
+			assertThat(in.readLine(), is("553 Rejected"));
+			send(out, "RCPT TO:<to@test>");
+			assertThat(in.readLine(), is("250 Ok"));
+			send(out, "DATA");
+			assertThat(in.readLine(), startsWith("354 "));
+			send(out, "Subject: test\r\n\r\n..leading dot\r\n.");
+			assertThat(in.readLine(), is("250 Ok"));
+			send(out, "QUIT");
+			assertThat(in.readLine(), is("221 Bye"));
+		}
+		assertThat(delivered.poll(10, TimeUnit.SECONDS), 
+				is("from@test>[to@test]:Subject: test\r\n\r\n.leading dot\r\n"));
+	}
+
+	@Test
+	public void largeMessageIsStreamed() throws Exception {
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 20000; i++) body.append("Line ").append(i).append(" of a long message.\r\n");
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+			send(out, "HELO client\r\nMAIL FROM:<from@test>\r\nRCPT TO:<to@test>\r\nDATA");
+			assertThat(in.readLine(), is("250 localhost"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), startsWith("354 "));
+			send(out, body + ".\r\nQUIT");
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("221 Bye"));
+		}
+		assertThat(delivered.poll(10, TimeUnit.SECONDS), is("from@test>[to@test]:" + body));
+	}
+
+	@Test
+	public void pipelinedTransactionsAreAnsweredInOrder() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+			send(out, "EHLO client\r\nMAIL FROM:<a@test>\r\nRCPT TO:<rejected@test>\r\nRCPT TO:<b@test>\r\nDATA");
+			assertThat(readReply(in).size(), is(5));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("553 Rejected"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), startsWith("354 "));
+			send(out, "first\r\n.\r\nMAIL FROM:<c@test>\r\nRCPT TO:<d@test>\r\nDATA");
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), startsWith("354 "));
+			send(out, "second\r\n.\r\nQUIT");
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("221 Bye"));
+		}
+		assertThat(delivered.poll(10, TimeUnit.SECONDS), is("a@test>[b@test]:first\r\n"));
+		assertThat(delivered.poll(10, TimeUnit.SECONDS), is("c@test>[d@test]:second\r\n"));
+	}
+
+	@Test
+	public void chunksArePassedUnchanged() throws Exception {
+		final String chunk1 = "Subject: binary\r\n\r\n.\r\n";
+		final String chunk2 = "..\u00ff\r\n";
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+			send(out, "EHLO client\r\nBDAT 3\r\nabcMAIL FROM:<a@test>\r\nRCPT TO:<b@test>\r\n"
+					+ "BDAT " + chunk1.length() + "\r\n" + chunk1 + "NOOP\r\n" 
+					+ "BDAT " + chunk2.length() + " LAST\r\n" + chunk2 + "QUIT");
+			assertThat(readReply(in).size(), is(5));
+			assertThat(in.readLine(), is("503 5.5.1 Error: need MAIL command"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("221 Bye"));
+		}
+		assertThat(delivered.poll(10, TimeUnit.SECONDS), is("a@test>[b@test]:" + chunk1 + chunk2));
+	}
+
+	@Test
+	public void emptyChunksAreAnswered() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			//Fail instead of hanging if a reply is missing:
+			socket.setSoTimeout(10000);
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+			send(out, "EHLO client\r\nMAIL FROM:<a@test>\r\nRCPT TO:<b@test>\r\nBDAT 7\r\nfirst");
+			assertThat(readReply(in).size(), is(5));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			assertThat(in.readLine(), is("250 Ok"));
+			//The command line is the last input, no chunk data follows:
+			send(out, "BDAT 0");
+			assertThat(in.readLine(), is("250 Ok"));
+			send(out, "BDAT 0 LAST");
+			assertThat(in.readLine(), is("250 Ok"));
+			send(out, "QUIT");
+			assertThat(in.readLine(), is("221 Bye"));
+		}
+		assertThat(delivered.poll(10, TimeUnit.SECONDS), is("a@test>[b@test]:first\r\n"));
+	}
+
+	@Test
+	public void abortedTransactionIsDoneByAWorker() throws Exception {
+		try (Socket socket = new Socket("localhost", server.getPort())) {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			assertThat(in.readLine(), startsWith("220 "));
+			send(out, "HELO client");
+			assertThat(in.readLine(), is("250 localhost"));
+			send(out, "MAIL FROM:<a@test>");
+			assertThat(in.readLine(), is("250 Ok"));
+			send(out, "RSET");
+			assertThat(in.readLine(), is("250 Ok"));
+		}
+		final String thread = doneThreads.poll(10, TimeUnit.SECONDS);
+		assertThat(thread, thread.startsWith("smtp-loop-"), is(false));
+	}
+
+	@Test
+	public void allPortsAndAcceptorsDeliver() throws Exception {
+		assumeTrue(ReusePort.isSupported());
+		try (NioSmtpServer sharded = new NioSmtpServer(new RecordingFactory(), "localhost", ImmutableList.of(0, 0), 
+				2, 2, Executors.newCachedThreadPool(), 100)) {
+			sharded.start();
+			final List<Integer> ports = sharded.getPorts();
+			assertThat(ports.size(), is(2));
+			for (int i = 0; i < 8; i++) {
+				final int port = ports.get(i % 2);
+				try (Socket socket = new Socket("localhost", port)) {
+					final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+					final OutputStream out = socket.getOutputStream();
+					assertThat(in.readLine(), startsWith("220 "));
+					send(out, "HELO client\r\nMAIL FROM:<" + port + "@test>\r\nRCPT TO:<to@test>\r\nDATA");
+					assertThat(in.readLine(), is("250 localhost"));
+					assertThat(in.readLine(), is("250 Ok"));
+					assertThat(in.readLine(), is("250 Ok"));
+					assertThat(in.readLine(), startsWith("354 "));
+					send(out, "message " + i + "\r\n.\r\nQUIT");
+					assertThat(in.readLine(), is("250 Ok"));
+					assertThat(in.readLine(), is("221 Bye"));
+				}
+				assertThat(delivered.poll(10, TimeUnit.SECONDS), is(port + "@test>[to@test]:message " + i + "\r\n"));
+			}
+		}
+	}
+
+	@Test
+	public void idleConnectionsAreClosed() throws Exception {
+		try (NioSmtpServer timing = new NioSmtpServer(new RecordingFactory(), "localhost", 0, 1, 
+				Executors.newCachedThreadPool(), 100)) {
+			timing.setConnectionTimeout(200);
+			timing.start();
+			try (Socket socket = new Socket("localhost", timing.getPort())) {
+				socket.setSoTimeout(10000);
+				final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), ISO_8859_1));
+				final OutputStream out = socket.getOutputStream();
+				assertThat(in.readLine(), startsWith("220 "));
+				send(out, "HELO client\r\nMAIL FROM:<a@test>\r\nRCPT TO:<b@test>\r\nDATA");
+				assertThat(in.readLine(), is("250 localhost"));
+				assertThat(in.readLine(), is("250 Ok"));
+				assertThat(in.readLine(), is("250 Ok"));
+				assertThat(in.readLine(), startsWith("354 "));
+				//The client stops in the middle of the DATA:
+				send(out, "unfinished");
+				assertThat(in.readLine(), startsWith("421 "));
+				assertThat(in.readLine(), is(nullValue()));
+			}
+		}
+		assertThat(delivered.poll(100, TimeUnit.MILLISECONDS), is(nullValue()));
+	}
+
+	private static void send(final OutputStream out, final String lines) throws IOException {
+		out.write((lines + "\r\n").getBytes(ISO_8859_1));
+		out.flush();
+	}
+
+	private static List<String> readReply(final BufferedReader in) throws IOException {
+		final List<String> lines = new ArrayList<>();
+		String line;
+		do {
+			line = in.readLine();
+			lines.add(line);
+		} while (line.charAt(3) == '-');
+		return lines;
+	}
+
+	private final class RecordingFactory implements MessageHandlerFactory {
+		@Override
+		public MessageHandler create(final MessageContext ctx) {
+			return new MessageHandler() {
+				private String from;
+				private final List<String> recipients = new ArrayList<>();
+
+				@Override
+				public void from(final String from) {
+					this.from = from;
+				}
+
+				@Override
+				public void recipient(final String recipient) {
+					if (recipient.startsWith("rejected")) throw new RejectException(553, "Rejected");
+					recipients.add(recipient);
+				}
+
+				@Override
+				public void data(final InputStream data) throws IOException {
+					final byte[] bytes = ByteStreams.toByteArray(data);
+					delivered.add(from + ">" + recipients + ":" + new String(bytes, ISO_8859_1));
+				}
+
+				@Override
+				public void done() {
+					doneThreads.add(Thread.currentThread().getName());
+				}
+			};
+		}
+	}
+
+}
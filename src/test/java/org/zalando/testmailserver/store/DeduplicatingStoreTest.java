@@ -0,0 +1,88 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zalando.testmailserver.util.ContentSection;
+
+import com.google.common.io.ByteStreams;
+
+public class DeduplicatingStoreTest {
+
+	private static final String BODY = new String(new char[2000]).replace('\0', 'b');
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void sharedSectionsAreStoredOnce() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		final DeduplicatingStore store = DeduplicatingStore.open(folder, 100);
+		store.append("first", message("Subject: first\r\n\r\n", BODY));
+		store.append("second", message("Subject: second\r\n\r\n", BODY));
+		store.append("small", message("Subject: small\r\n\r\n", "body"));
+		assertThat(store.getBlobCount(), is(1));
+		assertThat(text("second"), is("Subject: second\r\n\r\n" + BODY));
+		assertThat(text("small"), is("Subject: small\r\n\r\nbody"));
+
+		assertThat(store.delete("first"), is(true));
+		assertThat(store.delete("first"), is(false));
+		assertThat(store.getBlobCount(), is(1));
+		assertThat(text("second"), is("Subject: second\r\n\r\n" + BODY));
+
+		//References are counted again when the store is reopened:
+		final DeduplicatingStore reopened = DeduplicatingStore.open(folder, 100);
+		assertThat(reopened.getBlobCount(), is(1));
+		assertThat(reopened.delete("second"), is(true));
+		assertThat(reopened.getBlobCount(), is(0));
+		assertThat(folder.resolve("blobs").toFile().list().length, is(1));
+		assertThat(folder.resolve("blobs").toFile().listFiles()[0].list().length, is(0));
+	}
+
+	private static List<ContentSection> message(final String headers, final String body) {
+		return Arrays.asList(
+				ContentSection.inline(ByteBuffer.wrap(headers.getBytes(UTF_8))), 
+				ContentSection.shared(ByteBuffer.wrap(body.getBytes(UTF_8))));
+	}
+
+	private String text(final String id) throws IOException {
+		final Path manifest = tmp.getRoot().toPath().resolve(id + DeduplicatingStore.MANIFEST_EXTENSION);
+		try (InputStream in = DeduplicatingStore.openStream(manifest)) {
+			return new String(ByteStreams.toByteArray(in), UTF_8);
+		}
+	}
+
+}
@@ -0,0 +1,204 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.io.ByteStreams;
+
+public class SegmentStoreTest {
+
+	@Rule
+	public final TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void recordsCanBeReadBack() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		try (SegmentStore store = new SegmentStore(folder, 100)) {
+			for (int i = 0; i < 10; i++) {
+				final String text = "message " + i;
+				store.append("id-" + i, 1000 + i, out -> out.write(text.getBytes(UTF_8)));
+			}
+		}
+		try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+			assertThat(reader.count(), is(10));
+			assertThat(text(reader.find("id-7").get().getContent()), is("message 7"));
+			assertThat(ByteStreams.toByteArray(reader.find("id-3").get().openStream()), 
+					is("message 3".getBytes(UTF_8)));
+			assertThat(reader.find("id-10").isPresent(), is(false));
+			assertThat(
+					reader.findByTime(1002, 1005).stream().map(SegmentStoreReader.Record::getId)
+						.collect(Collectors.toList()),
+					contains("id-2", "id-3", "id-4"));
+		}
+	}
+
+	@Test
+	public void largeRecordsAreWrittenCompletely() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		final byte[] large = new byte[300 * 1024];
+		for (int i = 0; i < large.length; i++) large[i] = (byte) i;
+		try (SegmentStore store = new SegmentStore(folder, 1024 * 1024)) {
+			store.append("small", 1, out -> out.write(1));
+			store.append("large", 2, out -> out.write(large));
+		}
+		try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+			final ByteBuffer content = reader.find("large").get().getContent();
+			final byte[] read = new byte[content.remaining()];
+			content.get(read);
+			assertThat(read, is(large));
+		}
+	}
+
+	@Test
+	public void largeRecordsAreCompressed() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		final byte[] large = new byte[300 * 1024];
+		for (int i = 0; i < large.length; i++) large[i] = (byte) (i % 10);
+		try (SegmentStore store = new SegmentStore(folder, 1024 * 1024, 6, 100)) {
+			store.append("small", 1, out -> out.write("small".getBytes(UTF_8)));
+			try {
+				store.append("failed", 2, out -> {
+					out.write(large);
+					throw new IOException("test");
+				});
+			} catch (final IOException expected) {
+			}
+			store.append("large", 3, out -> out.write(large));
+		}
+		try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+			final SegmentStoreReader.Record small = reader.find("small").get();
+			assertThat(small.isCompressed(), is(false));
+			assertThat(text(small.getContent()), is("small"));
+			final SegmentStoreReader.Record compressed = reader.find("large").get();
+			assertThat(compressed.isCompressed(), is(true));
+			assertThat(compressed.getContentLength() < large.length / 10, is(true));
+			assertThat(ByteStreams.toByteArray(compressed.openStream()), is(large));
+		}
+	}
+
+	@Test
+	public void slowContentDoesNotBlockOtherAppends() throws Exception {
+		final Path folder = tmp.getRoot().toPath();
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try (SegmentStore store = new SegmentStore(folder, 1024 * 1024)) {
+			final Thread slow = new Thread(() -> {
+				try {
+					store.append("slow", 1, out -> {
+						out.write(1);
+						writing.countDown();
+						try {
+							release.await();
+						} catch (final InterruptedException e) {
+							throw new IOException(e);
+						}
+					});
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			slow.start();
+			assertThat(writing.await(5, TimeUnit.SECONDS), is(true));
+			store.append("fast", 2, out -> out.write(2));
+			try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+				assertThat(reader.find("fast").isPresent(), is(true));
+			}
+			release.countDown();
+			slow.join();
+		}
+		try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+			assertThat(reader.count(), is(2));
+		}
+	}
+
+	@Test
+	public void failedRecordIsSkipped() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		try (SegmentStore store = new SegmentStore(folder, 1024 * 1024)) {
+			store.append("first", 1, out -> out.write(1));
+			try {
+				store.append("failed", 2, out -> {
+					out.write(2);
+					throw new IOException("test");
+				});
+			} catch (final IOException expected) {
+			}
+			store.append("last", 3, out -> out.write(3));
+		}
+		final List<String> ids = new ArrayList<>();
+		try (SegmentStoreReader reader = SegmentStoreReader.open(folder)) {
+			reader.forEach(r -> ids.add(r.getId()));
+		}
+		assertThat(ids, contains("first", "last"));
+	}
+
+	@Test
+	public void closedReaderReleasesItsRecords() throws IOException {
+		final Path folder = tmp.getRoot().toPath();
+		try (SegmentStore store = new SegmentStore(folder, 1024 * 1024)) {
+			store.append("first", 1, out -> out.write(1));
+		}
+		final SegmentStoreReader reader = SegmentStoreReader.open(folder);
+		final SegmentStoreReader.Record record = reader.find("first").get();
+		reader.close();
+		try {
+			record.getContent();
+			fail("Content of a closed reader.");
+		} catch (final IllegalStateException expected) {
+		}
+		try {
+			reader.count();
+			fail("Count of a closed reader.");
+		} catch (final IllegalStateException expected) {
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void segmentsMustBeMappable() throws IOException {
+		new SegmentStore(tmp.getRoot().toPath(), SegmentStore.MAX_SEGMENT_SIZE + 1).close();
+	}
+
+	private static String text(final ByteBuffer buffer) {
+		return UTF_8.decode(buffer).toString();
+	}
+
+}
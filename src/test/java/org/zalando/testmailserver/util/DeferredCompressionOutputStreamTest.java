@@ -0,0 +1,102 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeferredCompressionOutputStreamTest {
+
+	private final List<Boolean> opened = new ArrayList<>();
+	private final ByteArrayOutputStream target = new ByteArrayOutputStream();
+	private boolean closed = false;
+
+	private OutputStream open(final boolean compressed) {
+		opened.add(compressed);
+		return new OutputStream() {
+			@Override
+			public void write(final int b) {
+				target.write(b);
+			}
+
+			@Override
+			public void close() {
+				closed = true;
+			}
+		};
+	}
+
+	@Test
+	public void smallContentIsWrittenUncompressedWhenClosed() throws IOException {
+		final DeferredCompressionOutputStream out = new DeferredCompressionOutputStream(16, this::open);
+		out.write("small".getBytes(StandardCharsets.US_ASCII));
+		out.write('!');
+		out.flush();
+		assertThat(opened.isEmpty(), is(true));
+		out.close();
+		assertThat(opened.toString(), is("[false]"));
+		assertThat(out.isCompressed(), is(false));
+		assertThat(target.toString("US-ASCII"), is("small!"));
+		assertThat(closed, is(true));
+	}
+
+	@Test
+	public void largeContentIsWrittenCompressedOnceTheThresholdIsExceeded() throws IOException {
+		final DeferredCompressionOutputStream out = new DeferredCompressionOutputStream(8, this::open);
+		out.write("12345678".getBytes(StandardCharsets.US_ASCII));
+		assertThat(opened.isEmpty(), is(true));
+		out.write('9');
+		assertThat(opened.toString(), is("[true]"));
+		assertThat(out.isCompressed(), is(true));
+		out.write("abc".getBytes(StandardCharsets.US_ASCII), 1, 2);
+		assertThat(closed, is(false));
+		out.close();
+		assertThat(opened.size(), is(1));
+		assertThat(target.toString("US-ASCII"), is("123456789bc"));
+		assertThat(closed, is(true));
+	}
+
+	@Test
+	public void emptyContentIsWrittenWhenClosed() throws IOException {
+		final DeferredCompressionOutputStream out = new DeferredCompressionOutputStream(0, this::open);
+		out.close();
+		assertThat(opened.toString(), is("[false]"));
+		assertThat(target.size(), is(0));
+		assertThat(closed, is(true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeThresholdIsRejected() {
+		new DeferredCompressionOutputStream(-1, this::open);
+	}
+
+}
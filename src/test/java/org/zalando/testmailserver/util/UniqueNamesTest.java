@@ -0,0 +1,70 @@
+/**
+ * The MIT License
+ * Copyright (c) 2015 Zalando SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.zalando.testmailserver.util;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class UniqueNamesTest {
+
+	@Test
+	public void namesAreSortedInGenerationOrder() {
+		final long millis = System.currentTimeMillis();
+		String previous = UniqueNames.next(millis);
+		for (int i = 0; i < 5000; i++) {
+			final String name = UniqueNames.next(millis);
+			assertThat(name.compareTo(previous) > 0, is(true));
+			previous = name;
+		}
+	}
+
+	@Test
+	public void namesAreUniqueAcrossThreads() throws InterruptedException {
+		final Set<String> names = ConcurrentHashMap.newKeySet();
+		final int threadCount = 8;
+		final int namesPerThread = 10000;
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; t++) {
+			threads.add(new Thread(() -> {
+				for (int i = 0; i < namesPerThread; i++) names.add(UniqueNames.next());
+			}));
+		}
+		threads.forEach(Thread::start);
+		for (final Thread thread : threads) thread.join();
+		assertThat(names.size(), is(threadCount * namesPerThread));
+	}
+
+	@Test
+	public void timestampCanBeParsed() {
+		final long millis = System.currentTimeMillis() + 60000;
+		assertThat(UniqueNames.getMillis(UniqueNames.next(millis)), is(millis));
+	}
+
+}